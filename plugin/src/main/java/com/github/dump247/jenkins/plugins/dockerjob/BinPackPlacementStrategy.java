@@ -0,0 +1,30 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import com.github.dump247.jenkins.plugins.dockerjob.slaves.SlaveOptions;
+import hudson.Extension;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.util.List;
+
+/**
+ * Places slaves on the host with the fewest remaining slots, filling each host before moving on
+ * to the next one.
+ */
+public class BinPackPlacementStrategy extends PlacementStrategy {
+    @DataBoundConstructor
+    public BinPackPlacementStrategy() {
+    }
+
+    @Override
+    public List<HostCapacity> rankHosts(List<HostCapacity> hosts, SlaveOptions options) {
+        return HostCapacity.MOST_REMAINING.reverse().sortedCopy(hosts);
+    }
+
+    @Extension
+    public static class Descriptor extends PlacementStrategy.Descriptor {
+        @Override
+        public String getDisplayName() {
+            return "Bin Pack";
+        }
+    }
+}
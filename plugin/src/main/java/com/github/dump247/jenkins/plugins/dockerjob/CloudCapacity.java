@@ -0,0 +1,93 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.net.HostAndPort;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts the slots used by the slaves of a {@link DockerJobCloud}.
+ * <p/>
+ * The cloud-wide count covers every slave from creation until termination. The per-host counts
+ * are the number of outstanding {@link HostReservation}s on each host. Both are updated as slaves
+ * change state, so capacity checks do not have to walk the Jenkins node list.
+ */
+public class CloudCapacity {
+    private final AtomicInteger _slaveCount = new AtomicInteger();
+    private final ConcurrentMap<HostAndPort, AtomicInteger> _hostSlots = new ConcurrentHashMap<HostAndPort, AtomicInteger>();
+
+    /**
+     * Number of slaves that have been created and not yet terminated.
+     */
+    public int getSlaveCount() {
+        return _slaveCount.get();
+    }
+
+    /**
+     * Number of slots reserved on a host and not yet released.
+     */
+    public int getHostSlots(HostAndPort host) {
+        AtomicInteger slots = _hostSlots.get(host);
+        return slots == null ? 0 : slots.get();
+    }
+
+    /**
+     * Copy of the per-host slot counts, for diagnostics.
+     */
+    public Map<HostAndPort, Integer> getHostSlotCounts() {
+        ImmutableMap.Builder<HostAndPort, Integer> counts = ImmutableMap.builder();
+
+        for (Map.Entry<HostAndPort, AtomicInteger> entry : _hostSlots.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+
+        return counts.build();
+    }
+
+    public void slaveCreated() {
+        _slaveCount.incrementAndGet();
+    }
+
+    public void slaveTerminated() {
+        _slaveCount.decrementAndGet();
+    }
+
+    /**
+     * Reserve a slot on a host, if it has fewer than {@code limit} slots reserved.
+     *
+     * @return reservation or null if the host is full
+     */
+    public HostReservation tryReserve(HostAndPort host, int limit) {
+        AtomicInteger slots = hostSlots(host);
+
+        while (true) {
+            int current = slots.get();
+
+            if (current >= limit) {
+                return null;
+            }
+
+            if (slots.compareAndSet(current, current + 1)) {
+                return new HostReservation(host, slots);
+            }
+        }
+    }
+
+    private AtomicInteger hostSlots(HostAndPort host) {
+        AtomicInteger slots = _hostSlots.get(host);
+
+        if (slots == null) {
+            AtomicInteger newSlots = new AtomicInteger();
+            slots = _hostSlots.putIfAbsent(host, newSlots);
+
+            if (slots == null) {
+                slots = newSlots;
+            }
+        }
+
+        return slots;
+    }
+}
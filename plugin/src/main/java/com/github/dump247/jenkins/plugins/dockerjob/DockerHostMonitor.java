@@ -0,0 +1,791 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import com.cloudbees.plugins.credentials.common.StandardUsernameCredentials;
+import com.github.dump247.jenkins.plugins.dockerjob.slaves.HostResources;
+import com.github.dump247.jenkins.plugins.dockerjob.slaves.SlaveClient;
+import com.github.dump247.jenkins.plugins.dockerjob.util.JenkinsUtils;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.net.HostAndPort;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Provider;
+import jenkins.model.Jenkins;
+import org.joda.time.Duration;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Strings.nullToEmpty;
+import static com.google.common.collect.Lists.newArrayList;
+import static java.lang.String.format;
+import static java.util.Collections.newSetFromMap;
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.FINER;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * Monitors the health of the hosts in a {@link DockerJobCloud}.
+ * <p/>
+ * The monitor lists hosts from the cloud's {@link DockerHostProvider} on a fixed interval. New
+ * and failed hosts are initialized. Every probe then refreshes the images available on the host and
+ * its resources (cores, memory, load, and disk), which placement uses to size and rank hosts.
+ * Probes are staggered across the interval so a large fleet is not probed all at once. Each cloud
+ * probes with its own {@link DockerJobCloud#getProbeThreads()} threads, and each probe has its own
+ * {@link DockerJobCloud#getProbeTimeoutSeconds()} deadline. Each result is published to an
+ * immutable snapshot as soon as it completes, so readers of {@link #getHosts()} never wait on SSH
+ * and a slow host does not hold up the others.
+ * <p/>
+ * Between probes, a {@link HostHeartbeat} checks every {@link HostHeartbeat#INTERVAL_MS} that the
+ * connected hosts still respond. A host that misses {@link HostHeartbeat#MISSES_TO_FAIL} heartbeats
+ * in a row is marked failed and initialized again by its next probe. If slaves are still running
+ * on it, the host is only marked unresponsive, so their connections are not closed, and the next
+ * probe that reaches the host makes it available again.
+ * <p/>
+ * The monitor starts on first use and stops itself once its cloud is no longer registered with
+ * Jenkins. Saving the cloud configuration replaces the cloud instance, and the monitor of the new
+ * instance takes over the connected hosts when it starts, so slaves launched through them keep
+ * running. If the credentials or init script changed, the new monitor connects to the hosts again,
+ * and the old clients are closed once the slaves launched through them are gone. Hosts that are
+ * removed from the provider, or from a deleted cloud, are closed the same way. Closing a client
+ * stops its host agent, which stops every container the agent launched.
+ */
+public class DockerHostMonitor {
+    private static final Logger LOG = Logger.getLogger(DockerHostMonitor.class.getName());
+    private static final Duration REFRESH_INTERVAL = Duration.standardSeconds(30);
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder()
+                    .setNameFormat("docker-job-monitor-%d")
+                    .setDaemon(true)
+                    .build());
+    public static final int DEFAULT_PROBE_THREADS = 5;
+    public static final int DEFAULT_PROBE_TIMEOUT_SECONDS = 120;
+
+    /**
+     * Snapshot of a monitor whose hosts were handed over or closed.
+     */
+    private static final HostSnapshot RETIRED = new HostSnapshot(ImmutableMap.<HostAndPort, HostState>of());
+
+    /**
+     * Clients that are no longer used for new slaves, but still have slaves running.
+     */
+    private static final Set<SlaveClient> DRAINING = newSetFromMap(new ConcurrentHashMap<SlaveClient, Boolean>());
+
+    static {
+        SCHEDULER.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                closeIdleClients();
+            }
+        }, REFRESH_INTERVAL.getMillis(), REFRESH_INTERVAL.getMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private final DockerJobCloud _cloud;
+    private final Jenkins _jenkins;
+    private final Provider<StandardUsernameCredentials> _credentialsProvider;
+    private final ThreadPoolExecutor _executor;
+    private final long _probeTimeoutMs;
+
+    private final AtomicReference<HostSnapshot> _hosts = new AtomicReference<HostSnapshot>(HostSnapshot.EMPTY);
+    private final Set<HostAndPort> _probing = newSetFromMap(new ConcurrentHashMap<HostAndPort, Boolean>());
+    private final HostHeartbeat _heartbeat = new HostHeartbeat(new HostHeartbeat.Listener() {
+        @Override
+        public void heartbeatFailed(HostState host, String message) {
+            DockerHostMonitor.this.heartbeatFailed(host, message);
+        }
+    });
+
+    private volatile ClientFactory _clientFactory;
+    private volatile Set<HostAndPort> _listedHosts = ImmutableSet.of();
+    private volatile Throwable _hostProviderError;
+    private ScheduledFuture<?> _refreshTask;
+    private ScheduledFuture<?> _heartbeatTask;
+
+    /**
+     * Monitor of the cloud instance this one replaced, until its hosts are taken over.
+     */
+    private DockerHostMonitor _previous;
+
+    /**
+     * Hosts this monitor handed over when it was retired.
+     */
+    private HostSnapshot _handedOver = HostSnapshot.EMPTY;
+
+    /**
+     * @param previous monitor of the cloud instance this one replaces, or null
+     */
+    public DockerHostMonitor(DockerJobCloud cloud, Jenkins jenkins, Provider<StandardUsernameCredentials> credentialsProvider, DockerHostMonitor previous) {
+        _cloud = checkNotNull(cloud);
+        _jenkins = checkNotNull(jenkins);
+        _credentialsProvider = checkNotNull(credentialsProvider);
+        _previous = previous;
+        _probeTimeoutMs = TimeUnit.SECONDS.toMillis(cloud.getProbeTimeoutSeconds());
+        _clientFactory = new ClientFactory() {
+            @Override
+            public SlaveClient create(HostAndPort host) {
+                return new SlaveClient(host, _credentialsProvider);
+            }
+        };
+
+        // Threads exit when idle, so stopped monitors and monitors of replaced cloud instances do
+        // not keep any
+        _executor = new ThreadPoolExecutor(
+                cloud.getProbeThreads(), cloud.getProbeThreads(),
+                60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("docker-job-probe-%d")
+                        .setDaemon(true)
+                        .build());
+        _executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Current state of the cloud hosts.
+     * <p/>
+     * Starts the monitor if it is not already running. This never blocks on host connections.
+     */
+    public Collection<HostState> getHosts() {
+        return getSnapshot().getHosts();
+    }
+
+    /**
+     * Current snapshot of the cloud hosts.
+     * <p/>
+     * Starts the monitor if it is not already running. This never blocks on host connections.
+     */
+    HostSnapshot getSnapshot() {
+        start();
+        return _hosts.get();
+    }
+
+    /**
+     * Error from the last attempt to list hosts from the provider, or null if it succeeded.
+     */
+    public Throwable getHostProviderError() {
+        return _hostProviderError;
+    }
+
+    /**
+     * Heartbeat statistics of the connected hosts.
+     */
+    public Map<HostAndPort, HostHeartbeat.Stats> getHeartbeatStats() {
+        return _heartbeat.getStats();
+    }
+
+    public synchronized void start() {
+        if (_refreshTask == null && _hosts.get() != RETIRED) {
+            LOG.log(FINE, "Starting host monitor: cloud={0}", _cloud.getDisplayName());
+            takeOverPrevious();
+
+            _refreshTask = SCHEDULER.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    refresh();
+                }
+            }, 0, REFRESH_INTERVAL.getMillis(), TimeUnit.MILLISECONDS);
+            _heartbeatTask = SCHEDULER.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    heartbeat();
+                }
+            }, HostHeartbeat.INTERVAL_MS, HostHeartbeat.INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    synchronized boolean isRunning() {
+        return _refreshTask != null;
+    }
+
+    /**
+     * Replace how host clients are created, before the monitor starts.
+     */
+    void setClientFactory(ClientFactory clientFactory) {
+        _clientFactory = checkNotNull(clientFactory);
+    }
+
+    /**
+     * Stop the scheduled refreshes and heartbeats. The monitor starts again on next use.
+     */
+    public synchronized void stop() {
+        if (_refreshTask != null) {
+            LOG.log(FINE, "Stopping host monitor: cloud={0}", _cloud.getDisplayName());
+            _refreshTask.cancel(false);
+            _heartbeatTask.cancel(false);
+            _refreshTask = null;
+            _heartbeatTask = null;
+        }
+    }
+
+    /**
+     * Take over the hosts of the monitor this one replaced, or close them if they must be
+     * initialized again.
+     */
+    private synchronized void takeOverPrevious() {
+        DockerHostMonitor previous = _previous;
+        _previous = null;
+
+        if (previous == null) {
+            return;
+        }
+
+        if (_cloud.canReuseHostsOf(previous._cloud)) {
+            HostSnapshot hosts = previous.retire(true);
+            LOG.log(FINE, "Taking over hosts of replaced cloud: cloud={0} hosts={1}", new Object[]{_cloud.getDisplayName(), hosts._hosts.keySet()});
+            _hosts.set(hosts);
+        } else {
+            LOG.log(FINE, "Closing hosts of replaced cloud: cloud={0}", _cloud.getDisplayName());
+            previous.retire(false);
+        }
+    }
+
+    /**
+     * Stop the monitor for good.
+     *
+     * @param handOver true if the caller takes over the hosts, false to close their clients once
+     *                 their slaves are gone
+     * @return hosts of the monitor
+     */
+    private synchronized HostSnapshot retire(boolean handOver) {
+        // Settle a chain of replacements that were never started
+        takeOverPrevious();
+        stop();
+
+        HostSnapshot hosts = _hosts.getAndSet(RETIRED);
+
+        if (hosts == RETIRED) {
+            return HostSnapshot.EMPTY;
+        }
+
+        if (handOver) {
+            _handedOver = hosts;
+        } else {
+            for (HostState state : hosts.getHosts()) {
+                if (state.client != null) {
+                    closeWhenIdle(state.client);
+                }
+            }
+        }
+
+        return hosts;
+    }
+
+    /**
+     * Close the client of a probe that finished after the monitor was retired, unless the
+     * replacing monitor took it over.
+     */
+    private synchronized void closeUnlessHandedOver(HostState state) {
+        HostState handedOver = _handedOver.getHost(state.host);
+
+        if (state.client != null && (handedOver == null || handedOver.client != state.client)) {
+            closeWhenIdle(state.client);
+        }
+    }
+
+    /**
+     * Close a client that is no longer used for new slaves, once the slaves launched through it
+     * are gone.
+     */
+    static void closeWhenIdle(SlaveClient client) {
+        if (client.hasActiveSlaves()) {
+            LOG.log(FINE, "Closing host client once its slaves are gone: host={0}", client.getHost());
+            DRAINING.add(client);
+            return;
+        }
+
+        client.close();
+    }
+
+    /**
+     * Close the clients waiting in {@link #DRAINING} whose slaves are gone.
+     */
+    static void closeIdleClients() {
+        for (SlaveClient client : DRAINING) {
+            try {
+                if (!client.hasActiveSlaves() && DRAINING.remove(client)) {
+                    LOG.log(FINE, "Closing host client, its slaves are gone: host={0}", client.getHost());
+                    client.close();
+                }
+            } catch (Throwable ex) {
+                LOG.log(WARNING, "Error closing host client: host=" + client.getHost(), ex);
+            }
+        }
+    }
+
+    /**
+     * Number of clients that will be closed once their slaves are gone.
+     */
+    static int getDrainingCount() {
+        return DRAINING.size();
+    }
+
+    void refresh() {
+        // The configuration snapshot is not used, since it is rebuilt only after the new
+        // configuration is saved
+        DockerJobCloud registered = JenkinsUtils.getCloud(_jenkins, DockerJobCloud.class, _cloud.getDisplayName()).orNull();
+
+        if (registered == null) {
+            LOG.log(FINE, "Cloud was removed, closing its hosts: cloud={0}", _cloud.getDisplayName());
+            retire(false);
+            return;
+        } else if (registered != _cloud) {
+            // The new instance takes over the hosts when its monitor starts
+            stop();
+            return;
+        }
+
+        List<HostAndPort> hosts = newArrayList();
+
+        try {
+            for (HostAndPort host : _cloud.getHostProvider().listHosts()) {
+                HostAndPort targetHost = host.withDefaultPort(_cloud.getSshPort());
+
+                if (!hosts.contains(targetHost)) {
+                    hosts.add(targetHost);
+                }
+            }
+
+            _hostProviderError = null;
+        } catch (Throwable ex) {
+            LOG.log(WARNING, "Error listing cloud hosts", ex);
+            _hostProviderError = ex;
+        }
+
+        _listedHosts = ImmutableSet.copyOf(hosts);
+        retainListedHosts();
+
+        // Replace pool slaves that failed or were retired, now that host capacity is known
+        _cloud.refillWarmPool();
+
+        // Retry failed prefetches and drop those of removed hosts. Probes only update the
+        // prefetches when they change a host.
+        _cloud.prefetchImages();
+
+        // Spread the probes across the refresh interval
+        long delayStep = hosts.isEmpty() ? 0 : REFRESH_INTERVAL.getMillis() / hosts.size();
+
+        for (int i = 0; i < hosts.size(); i++) {
+            final HostAndPort host = hosts.get(i);
+
+            SCHEDULER.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    probe(host);
+                }
+            }, i * delayStep, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void heartbeat() {
+        try {
+            _heartbeat.beat(_hosts.get().getHosts());
+        } catch (Throwable ex) {
+            LOG.log(WARNING, "Error sending host heartbeats", ex);
+        }
+    }
+
+    private void heartbeatFailed(HostState state, String message) {
+        // Only change the connection the heartbeat was sent on, not one a probe has since replaced
+        if (state.client.hasActiveSlaves()) {
+            if (state.status != HostState.Status.UNRESPONSIVE) {
+                LOG.log(WARNING, "Cloud host stopped responding, keeping its running slaves: host={0} error={1}", new Object[]{state.host, message});
+            }
+
+            replace(state, state.withStatus(HostState.Status.UNRESPONSIVE, message));
+        } else {
+            LOG.log(WARNING, "Cloud host stopped responding: host={0} error={1}", new Object[]{state.host, message});
+
+            if (replace(state, HostState.failed(state.host, message))) {
+                state.client.close();
+            }
+        }
+    }
+
+    void probe(final HostAndPort host) {
+        if (_hosts.get() == RETIRED) {
+            return;
+        }
+
+        if (!_probing.add(host)) {
+            LOG.log(FINER, "Probe already in progress: host={0}", host);
+            return;
+        }
+
+        try {
+            final Probe probe = new Probe(host);
+            final Future<?> future = _executor.submit(probe);
+
+            SCHEDULER.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    probe.expire(future);
+                }
+            }, _probeTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (Throwable ex) {
+            _probing.remove(host);
+            LOG.log(WARNING, "Error scheduling probe for cloud host: host=" + host, ex);
+        }
+    }
+
+    private HostState initializeHost(Probe probe) {
+        SlaveClient client = null;
+
+        try {
+            String rootUrl = _jenkins.getRootUrl();
+
+            client = _clientFactory.create(probe.host);
+            probe.client = client;
+
+            String description = client.initialize(
+                    _jenkins.getJnlpJars("slave.jar").getURL(),
+                    nullToEmpty(_cloud.getSlaveInitScript()),
+                    rootUrl == null ? null : rootUrl + "jnlpJars/slave.jar",
+                    _cloud.getSlaveJarDistributor());
+            return HostState.success(probe.host, description, client);
+        } catch (Exception ex) {
+            if (client != null) {
+                client.close();
+            }
+
+            return HostState.failed(probe.host, ex);
+        }
+    }
+
+    /**
+     * Refresh the image inventory and resources of a connected host.
+     * <p/>
+     * If reading the images or resources fails on the host, the last known values are kept.
+     * Closing the client for it would also fail the slaves launched through it. Only a connection
+     * failure fails the host.
+     */
+    private HostState refreshHost(HostState currentState) {
+        try {
+            return refreshImages(refreshResources(currentState));
+        } catch (IOException ex) {
+            currentState.client.close();
+            return HostState.failed(currentState.host, ex);
+        }
+    }
+
+    private HostState refreshResources(HostState currentState) throws IOException {
+        try {
+            HostResources resources = currentState.client.getResources();
+            int slotLimit = _cloud.computeSlotLimit(currentState.host, resources);
+
+            LOG.log(FINER, "Host resources: host={0} resources={1} slotLimit={2}", new Object[]{currentState.host, resources, slotLimit});
+            return currentState.withResources(resources, slotLimit);
+        } catch (RuntimeException ex) {
+            LOG.log(WARNING, format("Error reading host resources, keeping last known resources: host=%s", currentState.host), ex);
+            return currentState;
+        }
+    }
+
+    private HostState refreshImages(HostState currentState) throws IOException {
+        try {
+            return currentState.withImages(currentState.client.listImages());
+        } catch (RuntimeException ex) {
+            LOG.log(WARNING, format("Error listing host images, keeping last known images: host=%s", currentState.host), ex);
+            return currentState;
+        }
+    }
+
+    /**
+     * Atomically replace the state of a single host in the snapshot.
+     */
+    private void publish(HostState state) {
+        while (true) {
+            HostSnapshot current = _hosts.get();
+
+            if (current == RETIRED) {
+                closeUnlessHandedOver(state);
+                return;
+            }
+
+            if (!_listedHosts.contains(state.host)) {
+                // Host was removed from the provider while the probe was running
+                if (state.client != null) {
+                    closeWhenIdle(state.client);
+                }
+
+                return;
+            }
+
+            ImmutableMap.Builder<HostAndPort, HostState> updated = ImmutableMap.builder();
+
+            for (Map.Entry<HostAndPort, HostState> entry : current._hosts.entrySet()) {
+                if (!entry.getKey().equals(state.host)) {
+                    updated.put(entry);
+                }
+            }
+
+            updated.put(state.host, state);
+
+            if (_hosts.compareAndSet(current, new HostSnapshot(updated.build()))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Atomically replace the state of a single host in the snapshot, if it still has the client of
+     * {@code expected}.
+     *
+     * @return true if the state was replaced
+     */
+    private boolean replace(HostState expected, HostState state) {
+        while (true) {
+            HostSnapshot current = _hosts.get();
+            HostState currentState = current.getHost(expected.host);
+
+            if (currentState == null || currentState.client != expected.client) {
+                return false;
+            }
+
+            ImmutableMap.Builder<HostAndPort, HostState> updated = ImmutableMap.builder();
+
+            for (Map.Entry<HostAndPort, HostState> entry : current._hosts.entrySet()) {
+                if (!entry.getKey().equals(state.host)) {
+                    updated.put(entry);
+                }
+            }
+
+            updated.put(state.host, state);
+
+            if (_hosts.compareAndSet(current, new HostSnapshot(updated.build()))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Atomically drop hosts that the provider no longer lists from the snapshot, and close their
+     * clients.
+     */
+    private void retainListedHosts() {
+        while (true) {
+            HostSnapshot current = _hosts.get();
+
+            if (current == RETIRED) {
+                return;
+            }
+
+            Set<HostAndPort> listedHosts = _listedHosts;
+            ImmutableMap.Builder<HostAndPort, HostState> updated = ImmutableMap.builder();
+            List<HostState> removed = newArrayList();
+
+            for (Map.Entry<HostAndPort, HostState> entry : current._hosts.entrySet()) {
+                if (listedHosts.contains(entry.getKey())) {
+                    updated.put(entry);
+                } else {
+                    removed.add(entry.getValue());
+                }
+            }
+
+            if (_hosts.compareAndSet(current, new HostSnapshot(updated.build()))) {
+                for (HostState state : removed) {
+                    LOG.log(FINE, "Host no longer listed by provider: host={0}", state.host);
+
+                    if (state.client != null) {
+                        closeWhenIdle(state.client);
+                    }
+                }
+
+                return;
+            }
+        }
+    }
+
+    /**
+     * Check if a probe changed anything that decides which images are prefetched onto the host.
+     */
+    private static boolean changesPrefetch(HostState before, HostState after) {
+        return before == null ||
+                before.status != after.status ||
+                before.client != after.client ||
+                (before.slotLimit > 0) != (after.slotLimit > 0) ||
+                !before.images.equals(after.images);
+    }
+
+    /**
+     * Initializes or refreshes a single host, within the probe deadline.
+     * <p/>
+     * The result is published when the probe completes, independent of the other hosts. If the
+     * deadline passes first, the host is published as failed and the client the probe is using is
+     * closed, which fails the SSH calls the probe is blocked on. If slaves are running through the
+     * client, closing it would stop them, so the host is only marked unresponsive instead, like
+     * for missed heartbeats.
+     */
+    private final class Probe implements Runnable {
+        public final HostAndPort host;
+        public volatile SlaveClient client;
+        private final AtomicReference<Outcome> _outcome = new AtomicReference<Outcome>(Outcome.RUNNING);
+        private volatile boolean _expired;
+
+        public Probe(HostAndPort host) {
+            this.host = host;
+        }
+
+        @Override
+        public void run() {
+            try {
+                HostState currentState = _hosts.get().getHost(host);
+                HostState newState;
+
+                if (currentState == null || currentState.status == HostState.Status.FAILED) {
+                    newState = initializeHost(this);
+                } else {
+                    client = currentState.client;
+                    newState = currentState;
+                }
+
+                if (newState.status != HostState.Status.FAILED) {
+                    newState = refreshHost(newState);
+                }
+
+                if (newState.status == HostState.Status.UNRESPONSIVE) {
+                    // The refresh reached the host, so it can take new slaves again
+                    LOG.log(FINE, "Cloud host is responding again: host={0}", host);
+                    newState = newState.withStatus(HostState.Status.SUCCESS, "Responding again after missed heartbeats");
+                }
+
+                if (!_outcome.compareAndSet(Outcome.RUNNING, Outcome.FINISHED)) {
+                    // The deadline passed and the host was already published as failed, or as
+                    // unresponsive if its client was kept
+                    if (newState.client != null && _outcome.get() != Outcome.EXPIRED_KEPT_CLIENT) {
+                        newState.client.close();
+                    }
+
+                    return;
+                }
+
+                if (newState.status == HostState.Status.FAILED) {
+                    LOG.log(WARNING, "Error connecting to cloud host: host={0} error={1}", new Object[]{newState.host, newState.message});
+                }
+
+                publish(newState);
+
+                if (changesPrefetch(currentState, newState)) {
+                    _cloud.prefetchImages();
+                }
+            } catch (Throwable ex) {
+                LOG.log(WARNING, "Error probing cloud host: host=" + host, ex);
+            } finally {
+                if (!_expired) {
+                    _probing.remove(host);
+                }
+            }
+        }
+
+        public void expire(Future<?> future) {
+            SlaveClient probeClient = client;
+            boolean keepClient = probeClient != null && probeClient.hasActiveSlaves();
+
+            if (!_outcome.compareAndSet(Outcome.RUNNING, keepClient ? Outcome.EXPIRED_KEPT_CLIENT : Outcome.EXPIRED)) {
+                return;
+            }
+
+            LOG.log(WARNING, "Timed out probing cloud host: host={0} timeoutMs={1}", new Object[]{host, _probeTimeoutMs});
+            _expired = true;
+            String message = "Timed out after " + _probeTimeoutMs + "ms";
+
+            if (keepClient) {
+                // The probe is not interrupted either, since failing its SSH calls closes the client
+                HostState current = _hosts.get().getHost(host);
+
+                if (current != null && current.client == probeClient) {
+                    replace(current, current.withStatus(HostState.Status.UNRESPONSIVE, message));
+                }
+            } else {
+                future.cancel(true);
+                publish(HostState.failed(host, message));
+
+                if (probeClient != null) {
+                    probeClient.close();
+                }
+            }
+
+            // Allow the next refresh to probe the host even if this thread is still unwinding
+            _probing.remove(host);
+        }
+    }
+
+    /**
+     * Creates the client that initializes and talks to a host.
+     */
+    interface ClientFactory {
+        SlaveClient create(HostAndPort host);
+    }
+
+    private static enum Outcome {
+        RUNNING,
+        FINISHED,
+        EXPIRED,
+
+        /**
+         * The deadline passed, but the client was kept for its running slaves.
+         */
+        EXPIRED_KEPT_CLIENT
+    }
+
+    /**
+     * Immutable view of the cloud hosts at a point in time.
+     */
+    static final class HostSnapshot {
+        public static final HostSnapshot EMPTY = new HostSnapshot(ImmutableMap.<HostAndPort, HostState>of());
+
+        private final ImmutableMap<HostAndPort, HostState> _hosts;
+        private final int _successfulHostCount;
+        private final int _totalSlots;
+
+        public HostSnapshot(ImmutableMap<HostAndPort, HostState> hosts) {
+            int successfulHostCount = 0;
+            int totalSlots = 0;
+
+            for (HostState state : hosts.values()) {
+                if (state.status == HostState.Status.SUCCESS) {
+                    successfulHostCount += 1;
+                    totalSlots += state.slotLimit;
+                }
+            }
+
+            _hosts = hosts;
+            _successfulHostCount = successfulHostCount;
+            _totalSlots = totalSlots;
+        }
+
+        public Collection<HostState> getHosts() {
+            return _hosts.values();
+        }
+
+        public HostState getHost(HostAndPort host) {
+            return _hosts.get(host);
+        }
+
+        /**
+         * Number of hosts that are connected and ready to run slaves.
+         */
+        public int getSuccessfulHostCount() {
+            return _successfulHostCount;
+        }
+
+        /**
+         * Sum of the slot limits of the hosts that are connected and ready to run slaves.
+         */
+        public int getTotalSlots() {
+            return _totalSlots;
+        }
+    }
+}
@@ -7,27 +7,22 @@ import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
 import com.cloudbees.plugins.credentials.common.StandardUsernameCredentials;
 import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
 import com.github.dump247.jenkins.plugins.dockerjob.slaves.DirectoryMapping;
+import com.github.dump247.jenkins.plugins.dockerjob.slaves.HostResources;
 import com.github.dump247.jenkins.plugins.dockerjob.slaves.SlaveClient;
+import com.github.dump247.jenkins.plugins.dockerjob.slaves.SlaveJarDistributor;
 import com.github.dump247.jenkins.plugins.dockerjob.slaves.SlaveOptions;
 import com.github.dump247.jenkins.plugins.dockerjob.util.ConfigUtil;
 import com.github.dump247.jenkins.plugins.dockerjob.util.JenkinsUtils;
 import com.github.dump247.jenkins.plugins.dockerjob.util.SshCredentialsProvider;
-import com.google.common.base.Function;
+import com.google.common.base.Objects;
 import com.google.common.base.Optional;
 import com.google.common.base.Predicate;
 import com.google.common.base.Throwables;
-import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Ordering;
 import com.google.common.collect.Sets;
 import com.google.common.net.HostAndPort;
-import com.google.common.util.concurrent.Futures;
-import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.ListeningExecutorService;
-import com.google.common.util.concurrent.MoreExecutors;
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Provider;
 import hudson.Extension;
 import hudson.model.AbstractProject;
@@ -35,7 +30,6 @@ import hudson.model.Computer;
 import hudson.model.Item;
 import hudson.model.Label;
 import hudson.model.labels.LabelAtom;
-import hudson.model.queue.MappingWorksheet;
 import hudson.security.ACL;
 import hudson.slaves.Cloud;
 import hudson.slaves.NodeProvisioner;
@@ -43,36 +37,30 @@ import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 import jenkins.model.Jenkins;
 import org.apache.commons.lang.RandomStringUtils;
-import org.joda.time.Duration;
-import org.joda.time.Instant;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 
 import java.io.IOException;
 import java.util.Collection;
-import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Strings.isNullOrEmpty;
 import static com.google.common.base.Strings.nullToEmpty;
-import static com.google.common.collect.Iterables.getFirst;
 import static com.google.common.collect.Lists.newArrayList;
-import static com.google.common.collect.Lists.newArrayListWithCapacity;
 import static com.google.common.collect.Maps.newHashMap;
 import static java.lang.String.format;
 import static java.util.Collections.unmodifiableSet;
 import static java.util.logging.Level.FINE;
 import static java.util.logging.Level.FINER;
 import static java.util.logging.Level.SEVERE;
-import static java.util.logging.Level.WARNING;
 
 /**
  * Cloud that maps Jenkins jobs to a docker cluster.
@@ -88,64 +76,110 @@ import static java.util.logging.Level.WARNING;
  * </ul>
  */
 public class DockerJobCloud extends Cloud {
-    private static final Duration HOSTS_REFRESH_INTERVAL = Duration.standardSeconds(30);
     private static final Logger LOG = Logger.getLogger(DockerJobCloud.class.getName());
-    private static final ListeningExecutorService EXECUTOR = MoreExecutors.listeningDecorator(
-            Executors.newFixedThreadPool(
-                    5,
-                    new ThreadFactoryBuilder()
-                            .setNameFormat("docker-job-%d")
-                            .setDaemon(true)
-                            .build()));
 
     private final DockerHostProvider _hostProvider;
     private final int _sshPort;
     private final String _credentialsId;
     private final int _maxJobsPerHost;
+    private final int _coresPerJob;
+    private final int _memoryPerJobMb;
+    private final int _minFreeDiskMb;
+    private final int _imagePullTtlSeconds;
+    private final int _probeThreads;
+    private final int _probeTimeoutSeconds;
     private final String _labelString;
     private final String _requiredLabelString;
     private final String _directoryMappingString;
     private final String _slaveInitScript;
+    private final boolean _warmPoolEnabled;
+    private final boolean _slaveJarDistributionEnabled;
+    private final boolean _tunnelRemotingEnabled;
+    private PlacementStrategy _placementStrategy;
 
     private transient Jenkins _jenkins;
-    private transient Instant _nextHostsRefresh;
-    private transient Map<HostAndPort, HostState> _hosts;
-    private transient Throwable _hostProviderError;
+    private transient DockerHostMonitor _hostMonitor;
+    private transient CloudCapacity _capacity;
+    private transient JobAffinity _affinity;
+    private transient WarmPool _warmPool;
+    private transient ImagePrefetcher _prefetcher;
+    private transient SlaveJarDistributor _slaveJarDistributor;
     private transient Provider<StandardUsernameCredentials> _credentialsProvider;
     private transient Set<LabelAtom> _labels;
     private transient Set<LabelAtom> _requiredLabels;
+    private transient Set<LabelAtom> _allLabels;
+    private transient AtomicReference<ValidationCache> _validationCache;
     private transient List<DirectoryMapping> _directoryMappings;
 
     @DataBoundConstructor
     public DockerJobCloud(String name, DockerHostProvider hostProvider, int sshPort,
                           String credentialsId, int maxJobsPerHost,
+                          int coresPerJob, int memoryPerJobMb, int minFreeDiskMb,
+                          int imagePullTtlSeconds,
+                          int probeThreads, int probeTimeoutSeconds,
                           String labelString, String requiredLabelString,
                           String directoryMappingString,
-                          String slaveInitScript) {
+                          String slaveInitScript,
+                          boolean warmPoolEnabled,
+                          boolean slaveJarDistributionEnabled,
+                          boolean tunnelRemotingEnabled,
+                          PlacementStrategy placementStrategy) {
         super(name);
 
         _hostProvider = checkNotNull(hostProvider);
         _sshPort = sshPort;
         _credentialsId = credentialsId;
         _maxJobsPerHost = maxJobsPerHost;
+        _coresPerJob = coresPerJob;
+        _memoryPerJobMb = memoryPerJobMb;
+        _minFreeDiskMb = minFreeDiskMb;
+        _imagePullTtlSeconds = imagePullTtlSeconds;
+        _probeThreads = probeThreads;
+        _probeTimeoutSeconds = probeTimeoutSeconds;
         _labelString = nullToEmpty(labelString);
         _requiredLabelString = nullToEmpty(requiredLabelString);
         _directoryMappingString = nullToEmpty(directoryMappingString);
         _slaveInitScript = nullToEmpty(slaveInitScript);
+        _warmPoolEnabled = warmPoolEnabled;
+        _slaveJarDistributionEnabled = slaveJarDistributionEnabled;
+        _tunnelRemotingEnabled = tunnelRemotingEnabled;
+        _placementStrategy = placementStrategy;
 
         checkArgument(sshPort >= 1 && sshPort <= 65535);
         checkArgument(maxJobsPerHost > 0);
+        checkArgument(coresPerJob >= 0);
+        checkArgument(memoryPerJobMb >= 0);
+        checkArgument(minFreeDiskMb >= 0);
+        checkArgument(imagePullTtlSeconds >= 0);
+        checkArgument(probeThreads >= 1, "probeThreads must be greater than 0");
+        checkArgument(probeTimeoutSeconds >= 1, "probeTimeoutSeconds must be greater than 0");
 
         readResolve();
     }
 
     protected Object readResolve() {
-        _nextHostsRefresh = new Instant(0);
+        if (_placementStrategy == null) {
+            _placementStrategy = new SpreadPlacementStrategy();
+        }
+
         _jenkins = Jenkins.getInstance();
-        _hosts = newHashMap();
         _credentialsProvider = new SshCredentialsProvider(_jenkins, _credentialsId);
+
+        // Saving the cloud configuration replaces the cloud instance. Carry over the slot counts
+        // and job affinity from the instance being replaced so slaves that are still running are
+        // accounted for, and let the new monitor take over the connected hosts.
+        DockerJobCloud previous = JenkinsUtils.getCloud(_jenkins, DockerJobCloud.class, name).orNull();
+        _hostMonitor = new DockerHostMonitor(this, _jenkins, _credentialsProvider, previous == null ? null : previous._hostMonitor);
+        _capacity = previous == null ? new CloudCapacity() : previous._capacity;
+        _affinity = previous == null ? new JobAffinity() : previous._affinity;
+        _warmPool = previous == null ? new WarmPool() : previous._warmPool;
+        _prefetcher = previous == null ? new ImagePrefetcher() : previous._prefetcher;
+        _slaveJarDistributor = previous == null ? new SlaveJarDistributor() : previous._slaveJarDistributor;
+
         _labels = unmodifiableSet(Label.parse(_labelString));
         _requiredLabels = unmodifiableSet(Label.parse(_requiredLabelString));
+        _allLabels = ImmutableSet.copyOf(Sets.union(_requiredLabels, _labels));
+        _validationCache = new AtomicReference<ValidationCache>(new ValidationCache(null));
         _directoryMappings = parseDirectoryMappings(_directoryMappingString);
         return this;
     }
@@ -166,6 +200,38 @@ public class DockerJobCloud extends Cloud {
         return _maxJobsPerHost;
     }
 
+    public int getCoresPerJob() {
+        return _coresPerJob;
+    }
+
+    public int getMemoryPerJobMb() {
+        return _memoryPerJobMb;
+    }
+
+    public int getMinFreeDiskMb() {
+        return _minFreeDiskMb;
+    }
+
+    public int getImagePullTtlSeconds() {
+        return _imagePullTtlSeconds;
+    }
+
+    /**
+     * Number of hosts connected or probed at the same time. 0 in configurations saved before the
+     * option existed, which means {@link DockerHostMonitor#DEFAULT_PROBE_THREADS}.
+     */
+    public int getProbeThreads() {
+        return _probeThreads <= 0 ? DockerHostMonitor.DEFAULT_PROBE_THREADS : _probeThreads;
+    }
+
+    /**
+     * Deadline for connecting to or probing a single host. 0 in configurations saved before the
+     * option existed, which means {@link DockerHostMonitor#DEFAULT_PROBE_TIMEOUT_SECONDS}.
+     */
+    public int getProbeTimeoutSeconds() {
+        return _probeTimeoutSeconds <= 0 ? DockerHostMonitor.DEFAULT_PROBE_TIMEOUT_SECONDS : _probeTimeoutSeconds;
+    }
+
     public String getLabelString() {
         return _labelString;
     }
@@ -182,6 +248,29 @@ public class DockerJobCloud extends Cloud {
         return _slaveInitScript;
     }
 
+    public boolean isWarmPoolEnabled() {
+        return _warmPoolEnabled;
+    }
+
+    public boolean isSlaveJarDistributionEnabled() {
+        return _slaveJarDistributionEnabled;
+    }
+
+    public boolean isTunnelRemotingEnabled() {
+        return _tunnelRemotingEnabled;
+    }
+
+    /**
+     * Distributor of slave.jar among the hosts, or null if the master pushes the jar to each host.
+     */
+    public SlaveJarDistributor getSlaveJarDistributor() {
+        return _slaveJarDistributionEnabled ? _slaveJarDistributor : null;
+    }
+
+    public PlacementStrategy getPlacementStrategy() {
+        return _placementStrategy;
+    }
+
     @Override
     public Collection<NodeProvisioner.PlannedNode> provision(Label label, int excessWorkload) {
         // Don't provision a node here. Provisioning is handled in DockerJobLoadBalancer.
@@ -194,8 +283,8 @@ public class DockerJobCloud extends Cloud {
         return validateJob(label).isPresent();
     }
 
-    public ProvisionResult provisionJob(final String jobName, AbstractProject job, MappingWorksheet.WorkChunk task) throws Exception {
-        JobValidationResult result = validateJob(task.assignedLabel).orNull();
+    public ProvisionResult provisionJob(final String jobName, AbstractProject job, Label label) throws Exception {
+        JobValidationResult result = validateJob(label).orNull();
 
         if (result == null) {
             return ProvisionResult.NOT_SUPPORTED;
@@ -225,22 +314,188 @@ public class DockerJobCloud extends Cloud {
         // Provision DockerJobSlave
         SlaveOptions options = new SlaveOptions(jobName, imageName);
         options.setCleanEnvironment(resetJob);
+        options.setImagePullTtlSeconds(_imagePullTtlSeconds);
+        options.setTunnelRemoting(_tunnelRemotingEnabled);
         options.setEnvironment(jobEnv);
         options.setDirectoryMappings(_directoryMappings);
 
-        final DockerJobSlave slave = new DockerJobSlave(
+        HostReservation reservation = reserveHost(options);
+
+        if (reservation == null) {
+            return ProvisionResult.NO_CAPACITY;
+        }
+
+        DockerJobSlave slave = addSlave(
                 jobName + '-' + RandomStringUtils.random(6, true, true),
-                "Job running in docker container",
                 jobName,
-                "/",
                 ImmutableSet.<LabelAtom>builder()
                         .addAll(result.labels)
                         .add(new LabelAtom("image/" + imageName))
                         .build(),
-                new DockerJobComputerLauncher(getDisplayName(), options));
+                options,
+                reservation);
 
-        _jenkins.addNode(slave);
+        DockerJobSlaveIndex.get().add(slave);
+        connect(slave);
+        _prefetcher.recordUse(imageName);
 
+        return ProvisionResult.SUCCESS;
+    }
+
+    /**
+     * Start a slave for the warm pool.
+     *
+     * @return new slave or null if the cloud has no capacity for it
+     */
+    DockerJobSlave provisionPoolSlave(LabeledDockerImage image, WarmPool.Key key) throws Exception {
+        if (availableCapacity() <= 0) {
+            return null;
+        }
+
+        String nodeName = "docker-pool-" + RandomStringUtils.random(6, true, true);
+
+        // Pool slaves are not tied to a job, so they always get a new container
+        SlaveOptions options = new SlaveOptions(nodeName, key.imageName);
+        options.setCleanEnvironment(true);
+        options.setImagePullTtlSeconds(_imagePullTtlSeconds);
+        options.setTunnelRemoting(_tunnelRemotingEnabled);
+        options.setEnvironment(key.environment);
+        options.setDirectoryMappings(_directoryMappings);
+
+        HostReservation reservation = reserveHost(options);
+
+        if (reservation == null) {
+            return null;
+        }
+
+        LOG.log(FINE, "Provisioning pool slave: cloud={0} node={1} image={2}", new Object[]{getDisplayName(), nodeName, image.imageName});
+        DockerJobSlave slave = addSlave(nodeName, null, key.labels, options, reservation);
+        connect(slave);
+        return slave;
+    }
+
+    /**
+     * Claim a started slave from the warm pool for a job.
+     * <p/>
+     * Only jobs that would get the same container as the pool slave can use it, so jobs that
+     * override the image or add environment variables always get their own slave. Pool slaves
+     * run in a new container, so the job does not reuse the container from its last build.
+     *
+     * @return claimed slave or null if the job can not use a pool slave
+     */
+    public DockerJobSlave claimPoolSlave(String jobName, AbstractProject job, Label label) {
+        if (!_warmPoolEnabled) {
+            return null;
+        }
+
+        JobValidationResult result = validateJob(label).orNull();
+
+        if (result == null || isNullOrEmpty(result.imageName)) {
+            return null;
+        }
+
+        DockerJobProperty jobConfig = (DockerJobProperty) job.getProperty(DockerJobProperty.class);
+
+        if (jobConfig != null && (!isNullOrEmpty(jobConfig.imageName) || !jobConfig.getEnvironmentVars().isEmpty())) {
+            return null;
+        }
+
+        DockerJobSlave slave = _warmPool.claim(jobName, label, result.imageName, result.environment);
+
+        if (slave != null) {
+            DockerJobSlaveIndex.get().add(slave);
+            _warmPool.requestRefill(this);
+        }
+
+        return slave;
+    }
+
+    /**
+     * Start or retire pool slaves in the background to match the configured pool sizes.
+     */
+    public void refillWarmPool() {
+        _warmPool.requestRefill(this);
+    }
+
+    public WarmPool getWarmPool() {
+        return _warmPool;
+    }
+
+    /**
+     * Pull the labeled images onto the healthy hosts that do not have them, in the background.
+     */
+    public void prefetchImages() {
+        _prefetcher.schedule(
+                _hostMonitor.getSnapshot().getHosts(),
+                DockerJobConfig.get().getLabeledImageIndex().getImages());
+    }
+
+    /**
+     * State of the cloud hosts as of their last probe.
+     */
+    public Collection<HostState> getHostStates() {
+        return listHosts();
+    }
+
+    /**
+     * Heartbeat statistics of the connected hosts.
+     */
+    public Map<HostAndPort, HostHeartbeat.Stats> getHeartbeatStats() {
+        return _hostMonitor.getHeartbeatStats();
+    }
+
+    public ImagePrefetcher getPrefetcher() {
+        return _prefetcher;
+    }
+
+    DockerHostMonitor getHostMonitor() {
+        return _hostMonitor;
+    }
+
+    /**
+     * Check if hosts initialized for another instance of this cloud can be used as they are.
+     * The hosts must be initialized again if the credentials or the initialization changed.
+     */
+    boolean canReuseHostsOf(DockerJobCloud other) {
+        return Objects.equal(_credentialsId, other._credentialsId) &&
+                Objects.equal(_slaveInitScript, other._slaveInitScript) &&
+                _slaveJarDistributionEnabled == other._slaveJarDistributionEnabled;
+    }
+
+    WarmPool.Key getPoolKey(LabeledDockerImage image) {
+        return new WarmPool.Key(
+                image.imageName,
+                image.getEnvironmentVars(),
+                ImmutableSet.<LabelAtom>builder()
+                        .addAll(_allLabels)
+                        .addAll(image.getLabels())
+                        .add(new LabelAtom("image/" + image.imageName))
+                        .build());
+    }
+
+    private DockerJobSlave addSlave(String nodeName, String jobName, Set<LabelAtom> labels, SlaveOptions options, HostReservation reservation) throws Exception {
+        DockerJobSlave slave;
+
+        try {
+            slave = new DockerJobSlave(
+                    nodeName,
+                    "Job running in docker container",
+                    jobName,
+                    "/",
+                    labels,
+                    new DockerJobComputerLauncher(getDisplayName(), options, reservation));
+
+            _jenkins.addNode(slave);
+        } catch (Exception ex) {
+            reservation.release();
+            throw ex;
+        }
+
+        _capacity.slaveCreated();
+        return slave;
+    }
+
+    private void connect(final DockerJobSlave slave) {
         Computer.threadPoolForRemoting.submit(new Runnable() {
             @Override
             public void run() {
@@ -248,34 +503,136 @@ public class DockerJobCloud extends Cloud {
                     Computer slaveComputer = slave.toComputer();
                     slaveComputer.connect(false).get();
                 } catch (Exception ex) {
-                    LOG.log(SEVERE, format("Error provisioning docker slave: job=%s image=%s", jobName, imageName), ex);
+                    LOG.log(SEVERE, format("Error provisioning docker slave: node=%s", slave.getNodeName()), ex);
                     throw Throwables.propagate(ex);
                 }
             }
         });
-
-        return ProvisionResult.SUCCESS;
     }
 
-    public SlaveClient.SlaveConnection createSlave(SlaveOptions options) throws IOException {
-        List<CapacityCount> successfulHosts = FluentIterable.from(listHosts())
-                .filter(SUCCESSFUL_HOSTS)
-                .transform(new Function<HostState, CapacityCount>() {
-                    public CapacityCount apply(HostState input) {
-                        return new CapacityCount(input.client, _maxJobsPerHost - input.client.sessionCount());
+    /**
+     * Reserve a slot for a slave on one of the cloud hosts.
+     * <p/>
+     * The host that last ran the job is tried first, since it may still have the job's container.
+     * The other hosts are tried in the order given by the cloud's {@link PlacementStrategy}, except
+     * that hosts that already have the job's image go before hosts that would have to pull it. The
+     * slot check and the reservation are a single atomic step, so concurrent callers never
+     * oversubscribe a host.
+     *
+     * @return reservation or null if no host has a free slot
+     */
+    public HostReservation reserveHost(SlaveOptions options) {
+        List<HostCapacity> candidates = newArrayList();
+        HostCapacity affinityHost = null;
+        HostAndPort lastHost = options.isCleanEnvironment() ? null : _affinity.getHost(options.getName());
+
+        for (HostState host : listHosts()) {
+            if (host.status == HostState.Status.SUCCESS) {
+                HostCapacity capacity = new HostCapacity(host, _capacity.getHostSlots(host.host), host.slotLimit);
+
+                if (capacity.getRemainingSlots() > 0) {
+                    if (host.host.equals(lastHost)) {
+                        affinityHost = capacity;
+                    } else {
+                        candidates.add(capacity);
                     }
-                })
-                .toSortedList(CAPACITY_ORDER);
+                }
+            }
+        }
+
+        List<HostCapacity> rankedHosts = newArrayList();
+
+        // Prefer the host that has the job's container from the last run
+        if (affinityHost != null) {
+            rankedHosts.add(affinityHost);
+        }
+
+        rankedHosts.addAll(preferHostsWithImage(_placementStrategy.rankHosts(candidates, options), options.getImage()));
+
+        for (HostCapacity candidate : rankedHosts) {
+            HostReservation reservation = _capacity.tryReserve(candidate.getState().host, candidate.getMaxSlots());
+
+            if (reservation != null) {
+                LOG.log(FINER, "Reserved host slot: job={0} host={1} lastHost={2}", new Object[]{options.getName(), reservation.getHost(), lastHost});
+
+                if (!options.isCleanEnvironment()) {
+                    _affinity.placed(options.getName(), reservation.getHost());
+                }
+
+                return reservation;
+            }
+        }
 
-        CapacityCount host = getFirst(successfulHosts, null);
+        return null;
+    }
 
-        if (host == null) {
-            throw new RuntimeException("No available hosts to create slave");
+    /**
+     * Move the hosts that have the image to the front, keeping the order within each group.
+     */
+    private static List<HostCapacity> preferHostsWithImage(List<HostCapacity> hosts, String image) {
+        List<HostCapacity> withImage = newArrayList();
+        List<HostCapacity> withoutImage = newArrayList();
+
+        for (HostCapacity host : hosts) {
+            if (host.getState().hasImage(image)) {
+                withImage.add(host);
+            } else {
+                withoutImage.add(host);
+            }
+        }
+
+        withImage.addAll(withoutImage);
+        return withImage;
+    }
+
+    public SlaveClient.SlaveConnection createSlave(SlaveOptions options, HostReservation reservation) throws IOException {
+        checkArgument(!reservation.isReleased(), "Reservation has been released");
+        HostState host = _hostMonitor.getSnapshot().getHost(reservation.getHost());
+
+        if (host == null || host.status != HostState.Status.SUCCESS) {
+            throw new IOException(format("Reserved host is not available: %s", reservation.getHost()));
         }
 
         return host.client.createSlave(options);
     }
 
+    /**
+     * Called when a slave created by this cloud is terminated.
+     */
+    public void slaveTerminated(DockerJobSlave slave) {
+        LOG.log(FINER, "Slave terminated: cloud={0} node={1}", new Object[]{getDisplayName(), slave.getNodeName()});
+        _capacity.slaveTerminated();
+        _warmPool.remove(slave);
+    }
+
+    /**
+     * Slot counters for this cloud.
+     */
+    public CloudCapacity getCapacity() {
+        return _capacity;
+    }
+
+    /**
+     * Job to host affinity for this cloud, including container reuse hit and miss counts.
+     */
+    public JobAffinity getAffinity() {
+        return _affinity;
+    }
+
+    /**
+     * Count the slaves of this cloud by walking the Jenkins node list. This is slow with many
+     * nodes and is only meant for checking that {@link #getCapacity()} agrees with the nodes.
+     */
+    public int countSlaveNodes() {
+        return JenkinsUtils.getNodes(_jenkins, DockerJobSlave.class)
+                .filter(new Predicate<DockerJobSlave>() {
+                    public boolean apply(DockerJobSlave input) {
+                        return input.getLauncher().getCloudName().equals(getDisplayName());
+                    }
+                })
+                .size();
+    }
+
     private static String getImageName(DockerJobProperty jobConfig, JobValidationResult result) {
         if (jobConfig != null && !isNullOrEmpty(jobConfig.imageName)) {
             return jobConfig.imageName;
@@ -288,8 +645,43 @@ public class DockerJobCloud extends Cloud {
         return null;
     }
 
+    /**
+     * Check if a job with the given label can run in this cloud.
+     * <p/>
+     * Results are cached by label. The cache starts empty for each cloud instance (i.e. when the
+     * cloud configuration is saved) and is dropped when the labeled images change.
+     */
     private Optional<JobValidationResult> validateJob(Label label) {
-        Set<LabelAtom> allLabels = Sets.union(_requiredLabels, _labels);
+        LabeledImageIndex imageIndex = DockerJobConfig.get().getLabeledImageIndex();
+
+        if (label == null) {
+            return validateJob(null, imageIndex);
+        }
+
+        ValidationCache cache = _validationCache.get();
+
+        if (cache.imageIndex != imageIndex) {
+            LOG.log(FINER, "Labeled images changed, clearing validation cache: cloud={0}", getDisplayName());
+            ValidationCache newCache = new ValidationCache(imageIndex);
+            cache = _validationCache.compareAndSet(cache, newCache) ? newCache : _validationCache.get();
+        }
+
+        Optional<JobValidationResult> result = cache.results.get(label);
+
+        if (result == null) {
+            result = validateJob(label, imageIndex);
+
+            // Only cache results computed against the current images
+            if (cache.imageIndex == imageIndex) {
+                cache.results.put(label, result);
+            }
+        }
+
+        return result;
+    }
+
+    private Optional<JobValidationResult> validateJob(Label label, LabeledImageIndex imageIndex) {
+        Set<LabelAtom> allLabels = _allLabels;
 
         if (label == null) {
             if (_requiredLabels.size() > 0) {
@@ -313,116 +705,59 @@ public class DockerJobCloud extends Cloud {
             return Optional.of(new JobValidationResult(allLabels, null, ImmutableMap.<String, String>of()));
         }
 
-        // Check if the condition matches the cloud's labels combined with a specific image
-        DockerJobGlobalConfiguration config = DockerJobGlobalConfiguration.get();
-
-        for (LabeledDockerImage image : config.getLabeledImages()) {
+        // Check if the condition matches the cloud's labels combined with a specific image. Only
+        // images that share an atom with the condition can change the outcome.
+        for (LabeledDockerImage image : imageIndex.getCandidates(label)) {
             Set<LabelAtom> imageLabels = Sets.union(image.getLabels(), allLabels);
 
             if (label.matches(imageLabels)) {
                 LOG.log(FINE, "Condition matched cloud+image labels: condition={0} cloud={1} image={2} labels={3}", new Object[]{label, getDisplayName(), image.imageName, imageLabels});
-                return Optional.of(new JobValidationResult(imageLabels, image.imageName, image.getEnvironmentVars()));
+                return Optional.of(new JobValidationResult(ImmutableSet.copyOf(imageLabels), image.imageName, image.getEnvironmentVars()));
             } else {
                 LOG.log(FINE, "Condition does not match cloud+image labels: condition={0} cloud={1} image={2} labels={3}", new Object[]{label, getDisplayName(), image.imageName, imageLabels});
             }
         }
 
-        LOG.log(FINE, "Condition does not match cloud: condition={0} cloud={1} labels={2} images={3}", new Object[]{label, getDisplayName(), allLabels, config.getLabeledImages().size()});
+        LOG.log(FINE, "Condition does not match cloud: condition={0} cloud={1} labels={2} images={3}", new Object[]{label, getDisplayName(), allLabels, imageIndex.getImages().size()});
         return Optional.absent();
     }
 
     private int availableCapacity() {
-        int maxCapacity = FluentIterable.from(listHosts()).filter(SUCCESSFUL_HOSTS).size() * _maxJobsPerHost;
-        int currentUsage = JenkinsUtils.getNodes(_jenkins, DockerJobSlave.class)
-                .filter(new Predicate<DockerJobSlave>() {
-                    public boolean apply(DockerJobSlave input) {
-                        return input.getLauncher().getCloudName().equals(getDisplayName());
-                    }
-                })
-                .size();
-
-        return maxCapacity - currentUsage;
+        return _hostMonitor.getSnapshot().getTotalSlots() - _capacity.getSlaveCount();
     }
 
-    private Collection<HostState> listHosts() {
-        Instant now = Instant.now();
-
-        if (now.isAfter(_nextHostsRefresh)) {
-            _nextHostsRefresh = now.plus(HOSTS_REFRESH_INTERVAL);
-
-            try {
-                Map<HostAndPort, HostState> newHosts = newHashMap();
-                Collection<HostAndPort> hosts = _hostProvider.listHosts();
-                List<ListenableFuture<HostState>> hostFutures = newArrayListWithCapacity(hosts.size());
-
-                for (HostAndPort host : hosts) {
-                    final HostAndPort targetHost = host.withDefaultPort(_sshPort);
-
-                    final HostState currentState = _hosts.get(targetHost);
-
-                    if (currentState == null || currentState.status == HostStatus.FAILED) {
-                        hostFutures.add(EXECUTOR.submit(new Callable<HostState>() {
-                            @Override
-                            public HostState call() throws Exception {
-                                SlaveClient client = null;
-                                try {
-                                    client = new SlaveClient(targetHost, _credentialsProvider);
-                                    String description = client.initialize(
-                                            _jenkins.getJnlpJars("slave.jar").getURL(),
-                                            nullToEmpty(_slaveInitScript));
-                                    return HostState.success(targetHost, description, client);
-                                } catch (Exception ex) {
-                                    if (client != null) {
-                                        client.close();
-                                    }
-
-                                    return HostState.failed(targetHost, ex);
-                                }
-                            }
-                        }));
-                    } else {
-                        // Ping the server to make sure it is still up
-                        hostFutures.add(EXECUTOR.submit(new Callable<HostState>() {
-                            @Override
-                            public HostState call() throws Exception {
-                                try {
-                                    currentState.client.ping();
-                                    return currentState;
-                                } catch (Exception ex) {
-                                    currentState.client.close();
-                                    return HostState.failed(targetHost, ex);
-                                }
-                            }
-                        }));
-                    }
-                }
+    /**
+     * Maximum number of slaves that may run on a host with the given resources.
+     * <p/>
+     * Each resource limit that is configured (non-zero) caps the number of slots, and
+     * {@link #getMaxJobsPerHost()} caps it in all cases. A host with less free disk than the
+     * minimum gets no slots. A host whose load average exceeds its core count keeps its current
+     * slaves but gets no new ones until the load drops.
+     */
+    int computeSlotLimit(HostAndPort host, HostResources resources) {
+        int slots = _maxJobsPerHost;
+
+        if (_minFreeDiskMb > 0 && resources.getFreeDiskMb() < _minFreeDiskMb) {
+            return 0;
+        }
 
-                if (hostFutures.size() > 0) {
-                    try {
-                        for (HostState state : Futures.allAsList(hostFutures).get()) {
-                            if (state.status == HostStatus.FAILED) {
-                                LOG.log(WARNING, "Error connecting to cloud host: host={0} error={1}", new Object[]{state.host, state.message});
-                            }
-
-                            newHosts.put(state.host, state);
-                        }
-                    } catch (InterruptedException ex) {
-                        Thread.currentThread().interrupt();
-                    } catch (ExecutionException ex) {
-                        throw Throwables.propagate(ex);
-                    }
-                }
+        if (_coresPerJob > 0) {
+            slots = Math.min(slots, resources.getCores() / _coresPerJob);
 
-                _hosts = newHosts;
-                _hostProviderError = null;
-            } catch (Throwable ex) {
-                LOG.log(WARNING, "Error listing cloud hosts", ex);
-                _hosts = newHashMap();
-                _hostProviderError = ex;
+            if (resources.getLoadAverage() > resources.getCores()) {
+                slots = Math.min(slots, _capacity.getHostSlots(host));
             }
         }
 
-        return _hosts.values();
+        if (_memoryPerJobMb > 0) {
+            slots = (int) Math.min(slots, resources.getMemoryMb() / _memoryPerJobMb);
+        }
+
+        return slots;
+    }
+
+    private Collection<HostState> listHosts() {
+        return _hostMonitor.getHosts();
     }
 
     private static List<DirectoryMapping> parseDirectoryMappings(String value) {
@@ -521,6 +856,40 @@ public class DockerJobCloud extends Cloud {
                     : FormValidation.error("Must be greater than 0");
         }
 
+        public FormValidation doCheckCoresPerJob(@QueryParameter int value) {
+            return checkNotNegative(value);
+        }
+
+        public FormValidation doCheckMemoryPerJobMb(@QueryParameter int value) {
+            return checkNotNegative(value);
+        }
+
+        public FormValidation doCheckMinFreeDiskMb(@QueryParameter int value) {
+            return checkNotNegative(value);
+        }
+
+        public FormValidation doCheckImagePullTtlSeconds(@QueryParameter int value) {
+            return checkNotNegative(value);
+        }
+
+        public FormValidation doCheckProbeThreads(@QueryParameter int value) {
+            return value >= 1
+                    ? FormValidation.ok()
+                    : FormValidation.error("Must be greater than 0");
+        }
+
+        public FormValidation doCheckProbeTimeoutSeconds(@QueryParameter int value) {
+            return value >= 1
+                    ? FormValidation.ok()
+                    : FormValidation.error("Must be greater than 0");
+        }
+
+        private static FormValidation checkNotNegative(int value) {
+            return value >= 0
+                    ? FormValidation.ok()
+                    : FormValidation.error("Must be 0 or greater");
+        }
+
         public FormValidation doCheckSshPort(@QueryParameter int value) {
             return value >= 1 && value <= 65535
                     ? FormValidation.ok()
@@ -556,35 +925,12 @@ public class DockerJobCloud extends Cloud {
         SUCCESS
     }
 
-    private static class HostState {
-        public final HostAndPort host;
-        public final HostStatus status;
-        public final String message;
-        public final SlaveClient client;
-
-        public HostState(HostAndPort host, HostStatus status, String message, SlaveClient client) {
-            this.host = host;
-            this.status = status;
-            this.message = message;
-            this.client = client;
-        }
-
-        public static HostState failed(HostAndPort host, Throwable error) {
-            return new HostState(host, HostStatus.FAILED, error.getMessage(), null);
-        }
-
-        public static HostState success(HostAndPort host, String message, SlaveClient client) {
-            return new HostState(host, HostStatus.SUCCESS, message, client);
-        }
-    }
-
-    private static class CapacityCount {
-        public final SlaveClient client;
-        public int remaining;
+    private static class ValidationCache {
+        private final LabeledImageIndex imageIndex;
+        private final ConcurrentMap<Label, Optional<JobValidationResult>> results = new ConcurrentHashMap<Label, Optional<JobValidationResult>>();
 
-        public CapacityCount(SlaveClient client, int capacity) {
-            this.client = client;
-            this.remaining = capacity;
+        public ValidationCache(LabeledImageIndex imageIndex) {
+            this.imageIndex = imageIndex;
         }
     }
 
@@ -599,21 +945,4 @@ public class DockerJobCloud extends Cloud {
             this.environment = environment;
         }
     }
-
-    private static enum HostStatus {
-        FAILED,
-        SUCCESS
-    }
-
-    private static final Predicate<HostState> SUCCESSFUL_HOSTS = new Predicate<HostState>() {
-        public boolean apply(HostState input) {
-            return input.status == HostStatus.SUCCESS;
-        }
-    };
-
-    private static final Ordering<CapacityCount> CAPACITY_ORDER = Ordering.from(new Comparator<CapacityCount>() {
-        public int compare(CapacityCount o1, CapacityCount o2) {
-            return Integer.compare(o2.remaining, o1.remaining);
-        }
-    });
 }
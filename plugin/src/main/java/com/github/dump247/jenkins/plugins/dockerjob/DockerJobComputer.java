@@ -22,7 +22,7 @@ public class DockerJobComputer extends SlaveComputer {
 
     private boolean _hasAcceptedJob = false;
     private boolean _hasCompletedJob = false;
-    private Instant _nodeLaunchTimeMs = Instant.now();
+    private volatile Instant _nodeLaunchTimeMs = Instant.now();
 
     public DockerJobComputer(DockerJobSlave slave) {
         super(slave);
@@ -69,7 +69,21 @@ public class DockerJobComputer extends SlaveComputer {
         _nodeLaunchTimeMs = Instant.now();
     }
 
+    /**
+     * Called when a warm pool slave is claimed by a job. The job accept timeout starts over, since
+     * the slave may have been idle in the pool for much longer than the timeout.
+     */
+    public void claimed() {
+        _nodeLaunchTimeMs = Instant.now();
+    }
+
     public boolean hasCompletedJob(Duration launchTimeout) {
+        if (!_slave.isClaimed()) {
+            // Warm pool slaves wait for a job indefinitely, unless they fail to launch or lose
+            // their connection.
+            return isOffline() && _nodeLaunchTimeMs.plus(launchTimeout).isBefore(Instant.now());
+        }
+
         return hasCompletedJob() ||
                 (!hasAcceptedJob() && _nodeLaunchTimeMs.plus(launchTimeout).isBefore(Instant.now())) ||
                 (hasAcceptedJob() && isOffline());
@@ -0,0 +1,149 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import com.github.dump247.jenkins.plugins.dockerjob.util.JenkinsUtils;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+import jenkins.model.Jenkins;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.FINE;
+
+/**
+ * Immutable snapshot of the plugin configuration used while scheduling jobs.
+ * <p/>
+ * Looking up clouds by name walks {@code jenkins.clouds} and finding the global configuration
+ * walks the extension list. The scheduling path does both many times per queue maintenance, so
+ * the results are compiled into a snapshot instead. The snapshot is rebuilt and swapped when the
+ * Jenkins or plugin configuration is saved. The clouds and labeled images it references parse
+ * their labels, environment variables, and directory mappings once when they are configured and
+ * are never modified afterwards.
+ */
+public final class DockerJobConfig {
+    private static final Logger LOG = Logger.getLogger(DockerJobConfig.class.getName());
+    private static final AtomicReference<DockerJobConfig> CURRENT = new AtomicReference<DockerJobConfig>();
+
+    private final ImmutableMap<String, DockerJobCloud> _clouds;
+    private final LabeledImageIndex _labeledImageIndex;
+
+    private DockerJobConfig(ImmutableMap<String, DockerJobCloud> clouds, LabeledImageIndex labeledImageIndex) {
+        _clouds = clouds;
+        _labeledImageIndex = labeledImageIndex;
+    }
+
+    /**
+     * Current configuration snapshot. The snapshot is built on first use.
+     */
+    public static DockerJobConfig get() {
+        DockerJobConfig config = CURRENT.get();
+        return config == null ? rebuild() : config;
+    }
+
+    /**
+     * Build a new snapshot from the current Jenkins configuration and make it current.
+     */
+    public static synchronized DockerJobConfig rebuild() {
+        DockerJobConfig config = build(Jenkins.getInstance());
+        CURRENT.set(config);
+        return config;
+    }
+
+    /**
+     * Rebuild the snapshot if the clouds or the labeled images changed since it was built.
+     *
+     * @return new snapshot, or null if the current one is still up to date
+     */
+    static synchronized DockerJobConfig rebuildIfChanged() {
+        DockerJobConfig current = CURRENT.get();
+
+        if (current != null && current.isCurrent(
+                JenkinsUtils.getClouds(Jenkins.getInstance(), DockerJobCloud.class),
+                DockerJobGlobalConfiguration.get().getLabeledImageIndex())) {
+            return null;
+        }
+
+        return rebuild();
+    }
+
+    private static DockerJobConfig build(Jenkins jenkins) {
+        ImmutableMap.Builder<String, DockerJobCloud> clouds = ImmutableMap.builder();
+
+        for (DockerJobCloud cloud : JenkinsUtils.getClouds(jenkins, DockerJobCloud.class)) {
+            clouds.put(cloud.getDisplayName(), cloud);
+        }
+
+        DockerJobConfig config = new DockerJobConfig(
+                clouds.build(),
+                DockerJobGlobalConfiguration.get().getLabeledImageIndex());
+
+        LOG.log(FINE, "Built configuration snapshot: clouds={0} images={1}", new Object[]{config._clouds.keySet(), config._labeledImageIndex.getImages().size()});
+        return config;
+    }
+
+    /**
+     * Check if the snapshot holds exactly these cloud instances, in this order, and this image
+     * index. Saving the configuration pages creates new instances of both.
+     */
+    private boolean isCurrent(Iterable<DockerJobCloud> clouds, LabeledImageIndex labeledImageIndex) {
+        if (labeledImageIndex != _labeledImageIndex) {
+            return false;
+        }
+
+        Iterator<DockerJobCloud> configured = clouds.iterator();
+
+        for (DockerJobCloud cloud : _clouds.values()) {
+            if (!configured.hasNext() || configured.next() != cloud) {
+                return false;
+            }
+        }
+
+        return !configured.hasNext();
+    }
+
+    /**
+     * Docker job clouds in the order they are configured in Jenkins.
+     */
+    public Collection<DockerJobCloud> getClouds() {
+        return _clouds.values();
+    }
+
+    public Optional<DockerJobCloud> getCloud(String name) {
+        return Optional.fromNullable(_clouds.get(name));
+    }
+
+    public LabeledImageIndex getLabeledImageIndex() {
+        return _labeledImageIndex;
+    }
+
+    /**
+     * Rebuilds the snapshot when the clouds (saved with the Jenkins configuration) or the plugin
+     * configuration change, and starts pulling any new images onto the cloud hosts.
+     * <p/>
+     * Jenkins is also saved for changes that do not touch the clouds, such as adding a node for
+     * every slave, so saves that leave the clouds and images as they are do nothing.
+     */
+    @Extension
+    public static class Listener extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof Jenkins || o instanceof DockerJobGlobalConfiguration) {
+                DockerJobConfig config = rebuildIfChanged();
+
+                if (config == null) {
+                    return;
+                }
+
+                for (DockerJobCloud cloud : config.getClouds()) {
+                    cloud.prefetchImages();
+                }
+            }
+        }
+    }
+}
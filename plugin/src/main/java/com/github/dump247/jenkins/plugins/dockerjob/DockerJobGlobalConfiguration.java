@@ -18,6 +18,7 @@ import static com.google.common.base.Preconditions.checkNotNull;
 @Extension
 public class DockerJobGlobalConfiguration extends GlobalConfiguration {
     private List<LabeledDockerImage> _labeledImages = ImmutableList.of();
+    private transient LabeledImageIndex _labeledImageIndex;
 
     public DockerJobGlobalConfiguration() {
         // Classes deriving from GlobalConfiguration must call load() in their constructor
@@ -44,8 +45,25 @@ public class DockerJobGlobalConfiguration extends GlobalConfiguration {
         return _labeledImages;
     }
 
-    public void setLabeledImages(final List<LabeledDockerImage> labeledImages) {
+    /**
+     * Index of the labeled images by label atom.
+     * <p/>
+     * A new index instance is created each time the images change, so callers can use the
+     * instance to tell whether results they derived from it are still current.
+     */
+    public synchronized LabeledImageIndex getLabeledImageIndex() {
+        if (_labeledImageIndex == null) {
+            // Built on first use rather than on load, since parsing the image labels during
+            // jenkins startup can result in a recursive dependency load.
+            _labeledImageIndex = new LabeledImageIndex(_labeledImages);
+        }
+
+        return _labeledImageIndex;
+    }
+
+    public synchronized void setLabeledImages(final List<LabeledDockerImage> labeledImages) {
         checkNotNull(labeledImages);
         _labeledImages = ImmutableList.copyOf(labeledImages);
+        _labeledImageIndex = null;
     }
 }
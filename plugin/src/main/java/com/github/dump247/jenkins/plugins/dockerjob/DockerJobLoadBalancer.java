@@ -8,11 +8,8 @@ import jenkins.model.Jenkins;
 
 import java.util.logging.Logger;
 
-import static com.github.dump247.jenkins.plugins.dockerjob.util.JenkinsUtils.getClouds;
-import static com.github.dump247.jenkins.plugins.dockerjob.util.JenkinsUtils.getNodes;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.lang.String.format;
-import static java.util.logging.Level.FINE;
 import static java.util.logging.Level.FINER;
 import static java.util.logging.Level.WARNING;
 
@@ -20,9 +17,11 @@ import static java.util.logging.Level.WARNING;
  * Creates docker containers on demand for Jenkins jobs.
  * <p/>
  * The {@link #map} method is polled at regular intervals by Jenkins until it maps the job to a
- * slave. If the job is managed by this plugin, this load balancer will launch a container for the
- * specific job and will only map the job to that specific container. If the job is not managed by
- * this container, it will fallback to the default load balancer implementation.
+ * slave. If the job is managed by this plugin, this load balancer will claim a started container
+ * from a cloud's {@link WarmPool} or request a container for the specific job from
+ * {@link DockerJobProvisioner}, and will only map the job to that specific container once it
+ * exists. If the job is not managed by this container, it will fallback to the
+ * default load balancer implementation.
  * <p/>
  * This load balancer is injected into the Jenkins system in {@link DockerJobPlugin}.
  */
@@ -42,10 +41,12 @@ public class DockerJobLoadBalancer extends LoadBalancer {
 
     private final Jenkins _jenkins;
     private final LoadBalancer _fallback;
+    private final DockerJobProvisioner _provisioner;
 
     public DockerJobLoadBalancer(Jenkins jenkins, LoadBalancer fallback) {
         _jenkins = checkNotNull(jenkins);
         _fallback = checkNotNull(fallback);
+        _provisioner = new DockerJobProvisioner();
     }
 
     @Override
@@ -55,7 +56,7 @@ public class DockerJobLoadBalancer extends LoadBalancer {
         if (task instanceof AbstractProject) {
             return map((AbstractProject) task, worksheet);
         } else {
-            return _fallback.map(task, worksheet);
+            return mapFallback(task, worksheet);
         }
     }
 
@@ -73,29 +74,14 @@ public class DockerJobLoadBalancer extends LoadBalancer {
             DockerJobSlave taskSlave = findSlave(jobName);
 
             if (taskSlave == null) {
-                boolean supported = false;
-                boolean mapped = false;
-
-                for (DockerJobCloud cloud : getClouds(_jenkins, DockerJobCloud.class)) {
-                    try {
-                        DockerJobCloud.ProvisionResult result = cloud.provisionJob(jobName, task, workChunk);
-
-                        if (result == DockerJobCloud.ProvisionResult.SUCCESS) {
-                            LOG.log(FINE, "Successfully provisioned job: name={0} index={1} cloud={2}", new Object[]{task.getFullDisplayName(), workIndex, cloud.getDisplayName()});
-                            mapped = true;
-                            break;
-                        } else if (result == DockerJobCloud.ProvisionResult.NO_CAPACITY) {
-                            LOG.log(FINE, "Cloud capacity is exceeded: name={0} index={1} cloud={2}", new Object[]{task.getFullDisplayName(), workIndex, cloud.getDisplayName()});
-                            supported = true;
-                        }
-                    } catch (Exception ex) {
-                        LOG.log(WARNING, format("Failed to launch task: name=%s index=%d cloud=%s", task.getFullDisplayName(), workIndex, cloud.getDisplayName()), ex);
-                    }
-                }
+                taskSlave = _provisioner.claimPoolSlave(jobName, task, workChunk.assignedLabel);
+            }
 
-                if (mapped) {
-                    taskSlave = findSlave(jobName);
-                } else if (supported) {
+            if (taskSlave == null) {
+                // The slave is created in the background. Until it shows up in the index, the
+                // job is held in the queue rather than handed to the fallback load balancer.
+                if (_provisioner.provision(jobName, task, workChunk.assignedLabel)) {
+                    LOG.log(FINER, "Waiting for slave: name={0} index={1}", new Object[]{task.getFullDisplayName(), workIndex});
                     mappedCount += 1;
                 }
             }
@@ -114,20 +100,7 @@ public class DockerJobLoadBalancer extends LoadBalancer {
         }
 
         if (mappedCount == 0) {
-            mapping = _fallback.map(task, worksheet);
-
-            if (mapping == null || !mapping.isCompletelyValid()) {
-                return null;
-            }
-
-            for (int i = 0; i < mapping.size(); i++) {
-                // Fallback can not assign to docker job slaves
-                if (mapping.assigned(i).node instanceof DockerJobSlave) {
-                    return null;
-                }
-            }
-
-            return mapping;
+            return mapFallback(task, worksheet);
         } else if (mappedCount < worksheet.works.size()) {
             LOG.log(WARNING, "Unable to launch job node because one or more tasks could not be mapped to a docker cloud. Mixed Docker and normal jobs are not supported. Job={0}", task.getFullDisplayName());
             return null;
@@ -136,20 +109,31 @@ public class DockerJobLoadBalancer extends LoadBalancer {
         }
 
         for (int i = 0; i < mapping.size(); i++) {
-            ((DockerJobSlave) mapping.assigned(i).node).isMapped = true;
+            ((DockerJobSlave) mapping.assigned(i).node).setMapped();
         }
 
         return mapping;
     }
 
-    private DockerJobSlave findSlave(String jobName) {
-        for (DockerJobSlave slave : getNodes(_jenkins, DockerJobSlave.class)) {
-            if (!slave.isMapped && slave.jobName.equals(jobName)) {
-                return slave;
+    private MappingWorksheet.Mapping mapFallback(Queue.Task task, MappingWorksheet worksheet) {
+        MappingWorksheet.Mapping mapping = _fallback.map(task, worksheet);
+
+        if (mapping == null || !mapping.isCompletelyValid()) {
+            return null;
+        }
+
+        for (int i = 0; i < mapping.size(); i++) {
+            // Fallback can not assign to docker job slaves, including idle warm pool slaves
+            if (mapping.assigned(i).node instanceof DockerJobSlave) {
+                return null;
             }
         }
 
-        return null;
+        return mapping;
+    }
+
+    private DockerJobSlave findSlave(String jobName) {
+        return DockerJobSlaveIndex.get().find(jobName);
     }
 
     private MappingWorksheet.ExecutorChunk findExecutor(MappingWorksheet worksheet, DockerJobSlave slave) {
@@ -0,0 +1,159 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import hudson.model.AbstractProject;
+import hudson.model.Label;
+import hudson.model.Queue;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.lang.String.format;
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * Provisions docker job slaves in the background.
+ * <p/>
+ * {@link DockerJobLoadBalancer#map} is called while Jenkins holds the queue lock, so it must not
+ * block on host connections or on adding nodes. Instead, the load balancer submits a request
+ * here and keeps polling until the slave for the job shows up in {@link DockerJobSlaveIndex}.
+ * Requests are de-duplicated by job name, so repeated calls to map never provision a job twice.
+ */
+public class DockerJobProvisioner {
+    private static final Logger LOG = Logger.getLogger(DockerJobProvisioner.class.getName());
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(
+            2,
+            new ThreadFactoryBuilder()
+                    .setNameFormat("docker-job-provision-%d")
+                    .setDaemon(true)
+                    .build());
+
+    private final ConcurrentMap<String, ProvisionRequest> _requests = new ConcurrentHashMap<String, ProvisionRequest>();
+    private final Executor _executor;
+
+    public DockerJobProvisioner() {
+        this(EXECUTOR);
+    }
+
+    DockerJobProvisioner(Executor executor) {
+        _executor = checkNotNull(executor);
+    }
+
+    /**
+     * Request a slave for a job, if one of the docker clouds supports it.
+     * <p/>
+     * This method does not block. If a request for the job is already in progress, no new
+     * request is submitted.
+     *
+     * @return true if a docker cloud supports the job and a slave is being provisioned
+     */
+    public boolean provision(String jobName, AbstractProject job, Label label) {
+        if (_requests.containsKey(jobName)) {
+            return true;
+        }
+
+        if (!isSupported(label)) {
+            return false;
+        }
+
+        ProvisionRequest request = new ProvisionRequest(jobName, job, label);
+
+        if (_requests.putIfAbsent(jobName, request) == null) {
+            LOG.log(FINE, "Submitting provision request: job={0}", jobName);
+            _executor.execute(request);
+        }
+
+        return true;
+    }
+
+    /**
+     * Claim a started slave from the warm pool of one of the docker clouds.
+     * <p/>
+     * This method does not block.
+     *
+     * @return claimed slave or null if no pool slave fits the job
+     */
+    public DockerJobSlave claimPoolSlave(String jobName, AbstractProject job, Label label) {
+        for (DockerJobCloud cloud : DockerJobConfig.get().getClouds()) {
+            DockerJobSlave slave = cloud.claimPoolSlave(jobName, job, label);
+
+            if (slave != null) {
+                return slave;
+            }
+        }
+
+        return null;
+    }
+
+    boolean isSupported(Label label) {
+        for (DockerJobCloud cloud : DockerJobConfig.get().getClouds()) {
+            if (cloud.canProvision(label)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Provision a slave for the job on the first docker cloud that has capacity. Blocks until the
+     * slave is added.
+     *
+     * @return true if a slave was provisioned
+     */
+    boolean provisionJob(String jobName, AbstractProject job, Label label) {
+        for (DockerJobCloud cloud : DockerJobConfig.get().getClouds()) {
+            try {
+                DockerJobCloud.ProvisionResult result = cloud.provisionJob(jobName, job, label);
+
+                if (result == DockerJobCloud.ProvisionResult.SUCCESS) {
+                    LOG.log(FINE, "Successfully provisioned job: name={0} cloud={1}", new Object[]{jobName, cloud.getDisplayName()});
+                    return true;
+                } else if (result == DockerJobCloud.ProvisionResult.NO_CAPACITY) {
+                    LOG.log(FINE, "Cloud capacity is exceeded: name={0} cloud={1}", new Object[]{jobName, cloud.getDisplayName()});
+                }
+            } catch (Exception ex) {
+                LOG.log(WARNING, format("Failed to launch task: name=%s cloud=%s", jobName, cloud.getDisplayName()), ex);
+            }
+        }
+
+        return false;
+    }
+
+    private class ProvisionRequest implements Runnable {
+        private final String _jobName;
+        private final AbstractProject _job;
+        private final Label _label;
+
+        public ProvisionRequest(String jobName, AbstractProject job, Label label) {
+            _jobName = jobName;
+            _job = job;
+            _label = label;
+        }
+
+        @Override
+        public void run() {
+            boolean provisioned = false;
+
+            try {
+                provisioned = provisionJob(_jobName, _job, _label);
+            } finally {
+                // The slave is in the index before the request is removed, so map never sees a
+                // window where the job has neither a slave nor a pending request.
+                _requests.remove(_jobName, this);
+            }
+
+            if (provisioned) {
+                // Let the queue map the job to the new slave without waiting for the next
+                // periodic maintenance.
+                Queue.getInstance().scheduleMaintenance();
+            }
+        }
+    }
+}
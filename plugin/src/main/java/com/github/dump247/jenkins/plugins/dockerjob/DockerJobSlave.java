@@ -1,6 +1,7 @@
 package com.github.dump247.jenkins.plugins.dockerjob;
 
 import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
 import hudson.model.Computer;
 import hudson.model.Descriptor;
@@ -15,9 +16,12 @@ import jenkins.model.Jenkins;
 import javax.annotation.Nonnull;
 import java.io.IOException;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import static com.google.common.base.Preconditions.checkNotNull;
 import static java.lang.String.format;
 
 /**
@@ -27,8 +31,13 @@ public class DockerJobSlave extends Slave implements EphemeralNode {
     private static final Logger LOG = Logger.getLogger(DockerJobSlave.class.getName());
     private static final Joiner LABEL_JOINER = Joiner.on(' ');
 
-    public boolean isMapped;
-    public final String jobName;
+    /**
+     * Job the slave runs. Null for a warm pool slave that has not been claimed by a job yet.
+     */
+    private final AtomicReference<String> _jobName;
+
+    private volatile boolean _mapped;
+    private final AtomicBoolean _terminated = new AtomicBoolean();
 
     public DockerJobSlave(@Nonnull String nodeName, String nodeDescription, String jobName, String remoteFS, Set<LabelAtom> labels, DockerJobComputerLauncher launcher) throws Descriptor.FormException, IOException {
         super(nodeName,
@@ -41,7 +50,47 @@ public class DockerJobSlave extends Slave implements EphemeralNode {
                 new DockerJobRetentionStrategy(),
                 ImmutableList.<NodeProperty<?>>of());
 
-        this.jobName = jobName;
+        _jobName = new AtomicReference<String>(jobName);
+    }
+
+    public String getJobName() {
+        return _jobName.get();
+    }
+
+    /**
+     * Check if the slave has been assigned to a job. Only warm pool slaves are ever unclaimed.
+     */
+    public boolean isClaimed() {
+        return _jobName.get() != null;
+    }
+
+    /**
+     * Assign a warm pool slave to a job.
+     *
+     * @return true if the slave was unclaimed and now belongs to the job
+     */
+    public boolean claim(String jobName) {
+        checkNotNull(jobName);
+
+        if (!_jobName.compareAndSet(null, jobName)) {
+            return false;
+        }
+
+        DockerJobComputer computer = (DockerJobComputer) toComputer();
+
+        if (computer != null) {
+            computer.claimed();
+        }
+
+        return true;
+    }
+
+    /**
+     * Check if the slave is connected.
+     */
+    public boolean isOnline() {
+        Computer computer = toComputer();
+        return computer != null && computer.isOnline();
     }
 
     @Override
@@ -59,7 +108,31 @@ public class DockerJobSlave extends Slave implements EphemeralNode {
         return (DockerJobComputerLauncher) super.getLauncher();
     }
 
+    public boolean isMapped() {
+        return _mapped;
+    }
+
+    /**
+     * Mark the slave as assigned to a job. Once mapped, the slave is no longer considered for
+     * other queued items.
+     */
+    public void setMapped() {
+        _mapped = true;
+        DockerJobSlaveIndex.get().remove(this);
+    }
+
     public void terminate() throws IOException, InterruptedException {
+        DockerJobSlaveIndex.get().remove(this);
+        getLauncher().releaseReservation();
+
+        if (_terminated.compareAndSet(false, true)) {
+            Optional<DockerJobCloud> cloud = DockerJobConfig.get().getCloud(getLauncher().getCloudName());
+
+            if (cloud.isPresent()) {
+                cloud.get().slaveTerminated(this);
+            }
+        }
+
         try {
             VirtualChannel channel = getChannel();
 
@@ -0,0 +1,161 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+import hudson.Extension;
+import hudson.slaves.ComputerListener;
+import jenkins.model.Jenkins;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.FINER;
+
+/**
+ * Index of docker job slaves that have not been mapped to a queued job yet, keyed by job name.
+ * <p/>
+ * {@link DockerJobLoadBalancer} uses the index to find the slave provisioned for a job without
+ * walking every node in Jenkins. Slaves are added when they are provisioned and removed when
+ * they are mapped or terminated. Changes to the Jenkins node list also drop any slave that was
+ * removed some other way (e.g. deleted by a user).
+ */
+@Extension
+public class DockerJobSlaveIndex extends ComputerListener {
+    private static final Logger LOG = Logger.getLogger(DockerJobSlaveIndex.class.getName());
+
+    private final ConcurrentMap<String, List<DockerJobSlave>> _unmappedSlaves = new ConcurrentHashMap<String, List<DockerJobSlave>>();
+
+    /**
+     * Load the slave index registered with the current Jenkins runtime.
+     */
+    public static DockerJobSlaveIndex get() {
+        return ComputerListener.all().get(DockerJobSlaveIndex.class);
+    }
+
+    /**
+     * Find an unmapped slave for the given job.
+     *
+     * @return slave or null if no unmapped slave exists for the job
+     */
+    public DockerJobSlave find(String jobName) {
+        List<DockerJobSlave> slaves = _unmappedSlaves.get(jobName);
+
+        if (slaves != null) {
+            for (DockerJobSlave slave : slaves) {
+                if (!slave.isMapped()) {
+                    return slave;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    public void add(DockerJobSlave slave) {
+        checkNotNull(slave);
+        LOG.log(FINER, "Indexing unmapped slave: job={0} node={1}", new Object[]{slave.getJobName(), slave.getNodeName()});
+
+        while (true) {
+            List<DockerJobSlave> current = _unmappedSlaves.get(slave.getJobName());
+
+            if (current == null) {
+                if (_unmappedSlaves.putIfAbsent(slave.getJobName(), ImmutableList.of(slave)) == null) {
+                    return;
+                }
+            } else if (current.contains(slave)) {
+                return;
+            } else {
+                List<DockerJobSlave> updated = ImmutableList.<DockerJobSlave>builder()
+                        .addAll(current)
+                        .add(slave)
+                        .build();
+
+                if (_unmappedSlaves.replace(slave.getJobName(), current, updated)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    public void remove(DockerJobSlave slave) {
+        checkNotNull(slave);
+
+        while (true) {
+            List<DockerJobSlave> current = _unmappedSlaves.get(slave.getJobName());
+
+            if (current == null || !current.contains(slave)) {
+                return;
+            }
+
+            ImmutableList.Builder<DockerJobSlave> updated = ImmutableList.builder();
+
+            for (DockerJobSlave s : current) {
+                if (s != slave) {
+                    updated.add(s);
+                }
+            }
+
+            List<DockerJobSlave> updatedList = updated.build();
+            boolean replaced = updatedList.isEmpty()
+                    ? _unmappedSlaves.remove(slave.getJobName(), current)
+                    : _unmappedSlaves.replace(slave.getJobName(), current, updatedList);
+
+            if (replaced) {
+                LOG.log(FINER, "Removed slave from index: job={0} node={1}", new Object[]{slave.getJobName(), slave.getNodeName()});
+                return;
+            }
+        }
+    }
+
+    /**
+     * Number of unmapped slaves currently in the index.
+     */
+    public int size() {
+        int total = 0;
+
+        for (List<DockerJobSlave> slaves : _unmappedSlaves.values()) {
+            total += slaves.size();
+        }
+
+        return total;
+    }
+
+    /**
+     * Called by Jenkins when a node is added or removed. Drops slaves that are no longer
+     * registered with Jenkins.
+     */
+    @Override
+    public void onConfigurationChange() {
+        final Jenkins jenkins = Jenkins.getInstance();
+
+        if (jenkins == null) {
+            return;
+        }
+
+        retainAll(new Predicate<DockerJobSlave>() {
+            @Override
+            public boolean apply(DockerJobSlave slave) {
+                return jenkins.getNode(slave.getNodeName()) == slave;
+            }
+        });
+    }
+
+    /**
+     * Drop the slaves that do not match the predicate.
+     */
+    void retainAll(Predicate<DockerJobSlave> registered) {
+        for (Map.Entry<String, List<DockerJobSlave>> entry : _unmappedSlaves.entrySet()) {
+            for (DockerJobSlave slave : entry.getValue()) {
+                if (!registered.apply(slave)) {
+                    LOG.log(FINE, "Slave no longer registered with jenkins: job={0} node={1}", new Object[]{slave.getJobName(), slave.getNodeName()});
+                    remove(slave);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import hudson.Extension;
+import hudson.model.ManagementLink;
+
+import java.util.Collection;
+
+/**
+ * Status page for the docker job clouds, linked from <em>Manage Jenkins</em>.
+ * <p/>
+ * Shows the hosts of each cloud with their slots and image prefetches, and the warm pool.
+ */
+@Extension
+public class DockerJobStatusLink extends ManagementLink {
+    @Override
+    public String getIconFileName() {
+        return "computer.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Docker Job Status";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Hosts, warm pool slaves, and image prefetches of the docker job clouds.";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "docker-job-status";
+    }
+
+    public Collection<DockerJobCloud> getClouds() {
+        return DockerJobConfig.get().getClouds();
+    }
+}
@@ -0,0 +1,52 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import com.google.common.collect.Ordering;
+
+import java.util.Comparator;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Slot usage of a single host at the time a slave is placed.
+ */
+public class HostCapacity {
+    private final HostState _state;
+    private final int _usedSlots;
+    private final int _maxSlots;
+
+    public HostCapacity(HostState state, int usedSlots, int maxSlots) {
+        _state = checkNotNull(state);
+        _usedSlots = usedSlots;
+        _maxSlots = maxSlots;
+    }
+
+    public HostState getState() {
+        return _state;
+    }
+
+    public int getUsedSlots() {
+        return _usedSlots;
+    }
+
+    public int getMaxSlots() {
+        return _maxSlots;
+    }
+
+    public int getRemainingSlots() {
+        return _maxSlots - _usedSlots;
+    }
+
+    @Override
+    public String toString() {
+        return "HostCapacity{host=" + _state.host + ", used=" + _usedSlots + ", max=" + _maxSlots + '}';
+    }
+
+    /**
+     * Orders hosts with the most remaining slots first.
+     */
+    public static final Ordering<HostCapacity> MOST_REMAINING = Ordering.from(new Comparator<HostCapacity>() {
+        public int compare(HostCapacity o1, HostCapacity o2) {
+            return Integer.compare(o2.getRemainingSlots(), o1.getRemainingSlots());
+        }
+    });
+}
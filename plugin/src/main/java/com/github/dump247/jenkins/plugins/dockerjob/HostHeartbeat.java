@@ -0,0 +1,264 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.net.HostAndPort;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.collect.Sets.newHashSet;
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.FINER;
+
+/**
+ * Checks that the connected hosts of a {@link DockerHostMonitor} respond, and measures their round
+ * trip time.
+ * <p/>
+ * Each heartbeat is an SSH keepalive request on a pooled connection to the host, so it does not
+ * open a channel or start a process. A host without an open connection is skipped, which counts
+ * as neither an answer nor a miss, so a heartbeat thread never waits on a connect. All clouds
+ * share {@link #THREADS} heartbeat threads. A heartbeat takes a thread only for one round trip, and
+ * a host has at most one heartbeat outstanding. A heartbeat that fails, or gets no answer within
+ * {@link #TIMEOUT_MS} of being sent, is a miss. After {@link #MISSES_TO_FAIL} misses in a row the
+ * host is reported to the monitor, so a single dropped keepalive does not fail a host.
+ */
+public class HostHeartbeat {
+    private static final Logger LOG = Logger.getLogger(HostHeartbeat.class.getName());
+    public static final long INTERVAL_MS = TimeUnit.SECONDS.toMillis(10);
+    public static final long TIMEOUT_MS = TimeUnit.SECONDS.toMillis(15);
+    public static final int MISSES_TO_FAIL = 3;
+    private static final int THREADS = 4;
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(
+            THREADS,
+            new ThreadFactoryBuilder()
+                    .setNameFormat("docker-job-heartbeat-%d")
+                    .setDaemon(true)
+                    .build());
+
+    private final Listener _listener;
+    private final ConcurrentMap<HostAndPort, Beat> _outstanding = new ConcurrentHashMap<HostAndPort, Beat>();
+    private final ConcurrentMap<HostAndPort, Stats> _stats = new ConcurrentHashMap<HostAndPort, Stats>();
+
+    public HostHeartbeat(Listener listener) {
+        _listener = checkNotNull(listener);
+    }
+
+    /**
+     * Send a heartbeat to each connected host that does not have one outstanding, and count the
+     * outstanding heartbeats that timed out. Called every {@link #INTERVAL_MS}.
+     */
+    public void beat(Collection<HostState> hosts) {
+        beat(hosts, System.currentTimeMillis());
+    }
+
+    void beat(Collection<HostState> hosts, long now) {
+        Set<HostAndPort> connected = newHashSet();
+
+        for (final HostState host : hosts) {
+            if (host.client == null) {
+                continue;
+            }
+
+            connected.add(host.host);
+            Beat outstanding = _outstanding.get(host.host);
+
+            if (outstanding != null) {
+                // A heartbeat still waiting for a thread has not been sent, so it can not time out
+                long sent = outstanding.sent;
+
+                if (sent > 0 && now - sent > TIMEOUT_MS && _outstanding.remove(host.host, outstanding)) {
+                    missed(host, now, "No heartbeat response within " + TIMEOUT_MS + "ms");
+                }
+
+                continue;
+            }
+
+            final Beat beat = new Beat();
+
+            if (_outstanding.putIfAbsent(host.host, beat) == null) {
+                EXECUTOR.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        send(host, beat);
+                    }
+                });
+            }
+        }
+
+        _stats.keySet().retainAll(connected);
+    }
+
+    /**
+     * Heartbeat statistics for each connected host.
+     */
+    public Map<HostAndPort, Stats> getStats() {
+        return ImmutableMap.copyOf(_stats);
+    }
+
+    private void send(HostState host, Beat beat) {
+        beat.sent = System.currentTimeMillis();
+
+        try {
+            Optional<Long> rtt = host.client.heartbeat();
+
+            // Skip the result if the heartbeat was already counted as timed out
+            if (!_outstanding.remove(host.host, beat)) {
+                return;
+            }
+
+            if (!rtt.isPresent()) {
+                // Neither an answer nor a miss
+                LOG.log(FINER, "Heartbeat skipped, no open connection: host={0}", host.host);
+            } else {
+                long rttNanos = rtt.get();
+                LOG.log(FINER, "Heartbeat: host={0} rttMs={1}", new Object[]{host.host, rttNanos / 1e6});
+                stats(host.host).succeeded(System.currentTimeMillis(), rttNanos);
+            }
+        } catch (Throwable ex) {
+            if (_outstanding.remove(host.host, beat)) {
+                LOG.log(FINE, "Heartbeat failed: host=" + host.host, ex);
+                missed(host, System.currentTimeMillis(), "Heartbeat failed: " + ex.getMessage());
+            }
+        }
+    }
+
+    private void missed(HostState host, long now, String message) {
+        int misses = stats(host.host).failed(now);
+
+        if (misses >= MISSES_TO_FAIL) {
+            _listener.heartbeatFailed(host, message + " (" + misses + " missed in a row)");
+        }
+    }
+
+    private Stats stats(HostAndPort host) {
+        Stats stats = _stats.get(host);
+
+        if (stats == null) {
+            Stats newStats = new Stats();
+            stats = _stats.putIfAbsent(host, newStats);
+
+            if (stats == null) {
+                stats = newStats;
+            }
+        }
+
+        return stats;
+    }
+
+    private static final class Beat {
+        /**
+         * Time the heartbeat was sent, in epoch milliseconds, or 0 while it waits for a thread.
+         */
+        volatile long sent;
+    }
+
+    public interface Listener {
+        /**
+         * A connected host missed {@link #MISSES_TO_FAIL} or more heartbeats in a row. Called
+         * again for each further miss.
+         *
+         * @param host state of the host when the heartbeat was sent
+         */
+        void heartbeatFailed(HostState host, String message);
+    }
+
+    /**
+     * Round trip times and failures of the heartbeats to a host.
+     */
+    public static final class Stats {
+        private static final double SMOOTHING = 0.2;
+
+        private long _count;
+        private long _failures;
+        private int _consecutiveFailures;
+        private double _lastMs = Double.NaN;
+        private double _averageMs = Double.NaN;
+        private double _minMs = Double.NaN;
+        private double _maxMs = Double.NaN;
+        private long _lastSuccess;
+        private long _lastFailure;
+
+        synchronized void succeeded(long now, long rttNanos) {
+            double ms = rttNanos / 1e6;
+
+            _count += 1;
+            _lastMs = ms;
+            _averageMs = Double.isNaN(_averageMs) ? ms : _averageMs + SMOOTHING * (ms - _averageMs);
+            _minMs = Double.isNaN(_minMs) ? ms : Math.min(_minMs, ms);
+            _maxMs = Double.isNaN(_maxMs) ? ms : Math.max(_maxMs, ms);
+            _lastSuccess = now;
+            _consecutiveFailures = 0;
+        }
+
+        /**
+         * @return number of heartbeats missed in a row
+         */
+        synchronized int failed(long now) {
+            _count += 1;
+            _failures += 1;
+            _consecutiveFailures += 1;
+            _lastFailure = now;
+            return _consecutiveFailures;
+        }
+
+        public synchronized long getCount() {
+            return _count;
+        }
+
+        public synchronized long getFailures() {
+            return _failures;
+        }
+
+        public synchronized int getConsecutiveFailures() {
+            return _consecutiveFailures;
+        }
+
+        public synchronized double getLastMs() {
+            return _lastMs;
+        }
+
+        /**
+         * Exponentially weighted moving average of the round trip time.
+         */
+        public synchronized double getAverageMs() {
+            return _averageMs;
+        }
+
+        public synchronized double getMinMs() {
+            return _minMs;
+        }
+
+        public synchronized double getMaxMs() {
+            return _maxMs;
+        }
+
+        /**
+         * Time of the last answered heartbeat, in epoch milliseconds, or 0 if none was answered.
+         */
+        public synchronized long getLastSuccess() {
+            return _lastSuccess;
+        }
+
+        public Date getLastSuccessDate() {
+            return new Date(getLastSuccess());
+        }
+
+        /**
+         * Time of the last failed heartbeat, in epoch milliseconds, or 0 if none failed.
+         */
+        public synchronized long getLastFailure() {
+            return _lastFailure;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import com.google.common.net.HostAndPort;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A slot on a host that is held for a single slave.
+ * <p/>
+ * Reservations are taken when a slave is provisioned, so the capacity check and the host
+ * selection happen in one atomic step. The slot stays taken until the reservation is released,
+ * which happens when the slave fails to launch or is terminated. Releasing more than once has no
+ * additional effect.
+ */
+public class HostReservation {
+    private final HostAndPort _host;
+    private final AtomicInteger _hostSlots;
+    private final AtomicBoolean _released = new AtomicBoolean();
+
+    HostReservation(HostAndPort host, AtomicInteger hostSlots) {
+        _host = checkNotNull(host);
+        _hostSlots = checkNotNull(hostSlots);
+    }
+
+    public HostAndPort getHost() {
+        return _host;
+    }
+
+    public boolean isReleased() {
+        return _released.get();
+    }
+
+    public void release() {
+        if (_released.compareAndSet(false, true)) {
+            _hostSlots.decrementAndGet();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "HostReservation{host=" + _host + ", released=" + _released.get() + '}';
+    }
+}
@@ -0,0 +1,137 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import com.github.dump247.jenkins.plugins.dockerjob.slaves.HostResources;
+import com.github.dump247.jenkins.plugins.dockerjob.slaves.SlaveClient;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.net.HostAndPort;
+
+import java.util.Set;
+
+/**
+ * State of a cloud host as of its last probe.
+ * <p/>
+ * Instances are immutable and are published by {@link DockerHostMonitor}.
+ */
+public class HostState {
+    public final HostAndPort host;
+    public final Status status;
+    public final String message;
+    public final SlaveClient client;
+
+    /**
+     * Image IDs, tags, and digests available locally on the host.
+     */
+    public final ImmutableSet<String> images;
+
+    /**
+     * Cores, memory, load, and disk of the host, or null if they are not known.
+     */
+    public final HostResources resources;
+
+    /**
+     * Maximum number of slaves that may run on the host, based on its resources.
+     */
+    public final int slotLimit;
+
+    public HostState(HostAndPort host, Status status, String message, SlaveClient client,
+                     Set<String> images, HostResources resources, int slotLimit) {
+        this.host = host;
+        this.status = status;
+        this.message = message;
+        this.client = client;
+        this.images = ImmutableSet.copyOf(images);
+        this.resources = resources;
+        this.slotLimit = slotLimit;
+    }
+
+    public static HostState failed(HostAndPort host, Throwable error) {
+        return failed(host, error.getMessage());
+    }
+
+    public static HostState failed(HostAndPort host, String message) {
+        return new HostState(host, Status.FAILED, message, null, ImmutableSet.<String>of(), null, 0);
+    }
+
+    public static HostState success(HostAndPort host, String message, SlaveClient client) {
+        return new HostState(host, Status.SUCCESS, message, client, ImmutableSet.<String>of(), null, 0);
+    }
+
+    /**
+     * Copy of this state with a new status and message, keeping the client.
+     */
+    public HostState withStatus(Status status, String message) {
+        return new HostState(host, status, message, client, images, resources, slotLimit);
+    }
+
+    /**
+     * Copy of this state with a new image inventory.
+     */
+    public HostState withImages(Set<String> images) {
+        return new HostState(host, status, message, client, images, resources, slotLimit);
+    }
+
+    /**
+     * Copy of this state with new resource measurements and the slot limit derived from them.
+     */
+    public HostState withResources(HostResources resources, int slotLimit) {
+        return new HostState(host, status, message, client, images, resources, slotLimit);
+    }
+
+    public HostAndPort getHost() {
+        return host;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public Set<String> getImages() {
+        return images;
+    }
+
+    public HostResources getResources() {
+        return resources;
+    }
+
+    public int getSlotLimit() {
+        return slotLimit;
+    }
+
+    /**
+     * Check if an image is available locally on the host, so launching it does not require a
+     * full pull.
+     *
+     * @param image image name as given to docker (e.g. {@code ubuntu}, {@code ubuntu:14.04},
+     *              or {@code ubuntu@sha256:...})
+     */
+    public boolean hasImage(String image) {
+        return images.contains(normalizeImageName(image));
+    }
+
+    /**
+     * Add the implicit {@code latest} tag to image names without a tag or digest.
+     */
+    static String normalizeImageName(String image) {
+        if (image.indexOf('@') >= 0) {
+            return image;
+        }
+
+        // A colon before the last slash is the registry port, not a tag
+        return image.lastIndexOf(':') > image.lastIndexOf('/') ? image : image + ":latest";
+    }
+
+    public static enum Status {
+        FAILED,
+        SUCCESS,
+
+        /**
+         * Connected, but missing heartbeats. Slaves that are running keep the client, but no new
+         * slaves are placed on the host until a probe reaches it again.
+         */
+        UNRESPONSIVE
+    }
+}
@@ -0,0 +1,336 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import com.github.dump247.jenkins.plugins.dockerjob.slaves.SlaveClient;
+import com.google.common.collect.ImmutableList;
+import com.google.common.net.HostAndPort;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Maps.newHashMap;
+import static com.google.common.collect.Maps.newLinkedHashMap;
+import static com.google.common.collect.Sets.newHashSet;
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * Pulls the {@link LabeledDockerImage}s onto the hosts of a {@link DockerJobCloud} before jobs
+ * need them.
+ * <p/>
+ * {@link DockerHostMonitor} reports each refresh and each probe that changes a host, and the
+ * configuration snapshot reports image changes.
+ * Each healthy host that does not have a configured image gets a prefetch. At most
+ * {@link #MAX_PULLS_PER_HOST} pulls run on a host and {@link #MAX_PULLS} across the cloud. Waiting
+ * prefetches start in order of how much their image was used recently, so the images most likely
+ * to be needed next arrive first. A failed prefetch, including a pull that hangs past the pull
+ * timeout of {@link SlaveClient#pullImage}, is retried after {@link #RETRY_DELAY_MS}.
+ */
+public class ImagePrefetcher {
+    private static final Logger LOG = Logger.getLogger(ImagePrefetcher.class.getName());
+    private static final int MAX_PULLS = 4;
+    private static final int MAX_PULLS_PER_HOST = 1;
+    private static final long RETRY_DELAY_MS = TimeUnit.MINUTES.toMillis(10);
+    private static final long USAGE_HALF_LIFE_MS = TimeUnit.HOURS.toMillis(1);
+
+    private final ConcurrentMap<String, Usage> _usage = new ConcurrentHashMap<String, Usage>();
+    private final Map<Target, Prefetch> _prefetches = newLinkedHashMap();
+    private final Map<HostAndPort, Integer> _hostPulls = newHashMap();
+    private int _pulls;
+
+    /**
+     * Runs the pulls. {@link #dispatch} never starts more than {@link #MAX_PULLS}, so pulls do not
+     * wait in the queue. Threads exit when idle.
+     */
+    private final ThreadPoolExecutor _executor;
+
+    public ImagePrefetcher() {
+        _executor = new ThreadPoolExecutor(
+                MAX_PULLS, MAX_PULLS,
+                60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("docker-job-prefetch-%d")
+                        .setDaemon(true)
+                        .build());
+        _executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Record that a job started with an image. Recent use raises the prefetch priority of the image.
+     */
+    public void recordUse(String imageName) {
+        Usage usage = _usage.get(imageName);
+
+        if (usage == null) {
+            Usage newUsage = new Usage();
+            usage = _usage.putIfAbsent(imageName, newUsage);
+
+            if (usage == null) {
+                usage = newUsage;
+            }
+        }
+
+        usage.add(System.currentTimeMillis());
+    }
+
+    /**
+     * Queue prefetches for the images that are missing from the healthy hosts and start as many
+     * as the concurrency limits allow.
+     */
+    public synchronized void schedule(Collection<HostState> hosts, List<LabeledDockerImage> images) {
+        long now = System.currentTimeMillis();
+        Set<Target> wanted = newHashSet();
+
+        for (HostState host : hosts) {
+            if (host.status != HostState.Status.SUCCESS || host.slotLimit <= 0) {
+                continue;
+            }
+
+            for (LabeledDockerImage image : images) {
+                Target target = new Target(host.host, image.imageName);
+
+                if (host.hasImage(image.imageName)) {
+                    continue;
+                }
+
+                wanted.add(target);
+                Prefetch prefetch = _prefetches.get(target);
+
+                if (prefetch == null) {
+                    _prefetches.put(target, new Prefetch(target, host.client));
+                } else if (prefetch.state == State.FAILED && now - prefetch.updated >= RETRY_DELAY_MS) {
+                    prefetch.client = host.client;
+                    prefetch.update(State.QUEUED, null);
+                } else if (prefetch.state == State.QUEUED) {
+                    prefetch.client = host.client;
+                }
+            }
+        }
+
+        // Forget hosts and images that went away and prefetches the host inventory now reflects
+        Iterator<Map.Entry<Target, Prefetch>> iter = _prefetches.entrySet().iterator();
+
+        while (iter.hasNext()) {
+            Prefetch prefetch = iter.next().getValue();
+
+            if (prefetch.state != State.PULLING && !wanted.contains(prefetch.target)) {
+                iter.remove();
+            }
+        }
+
+        dispatch();
+    }
+
+    /**
+     * Current prefetches that have not yet shown up in the host image inventory.
+     */
+    public synchronized List<PrefetchStatus> getStatus() {
+        ImmutableList.Builder<PrefetchStatus> status = ImmutableList.builder();
+
+        for (Prefetch prefetch : _prefetches.values()) {
+            status.add(new PrefetchStatus(prefetch.target.host, prefetch.target.imageName, prefetch.state, prefetch.message, prefetch.updated));
+        }
+
+        return status.build();
+    }
+
+    private synchronized void dispatch() {
+        if (_pulls >= MAX_PULLS) {
+            return;
+        }
+
+        List<Prefetch> queued = newArrayList();
+
+        for (Prefetch prefetch : _prefetches.values()) {
+            if (prefetch.state == State.QUEUED) {
+                queued.add(prefetch);
+            }
+        }
+
+        final long now = System.currentTimeMillis();
+        final Map<String, Double> scores = newHashMap();
+
+        for (Prefetch prefetch : queued) {
+            Usage usage = _usage.get(prefetch.target.imageName);
+            scores.put(prefetch.target.imageName, usage == null ? 0.0 : usage.score(now));
+        }
+
+        // Stable sort, so images with the same usage keep their configuration order
+        Collections.sort(queued, new Comparator<Prefetch>() {
+            @Override
+            public int compare(Prefetch o1, Prefetch o2) {
+                return Double.compare(scores.get(o2.target.imageName), scores.get(o1.target.imageName));
+            }
+        });
+
+        for (Prefetch prefetch : queued) {
+            if (_pulls >= MAX_PULLS) {
+                break;
+            }
+
+            Integer hostPulls = _hostPulls.get(prefetch.target.host);
+
+            if (hostPulls != null && hostPulls >= MAX_PULLS_PER_HOST) {
+                continue;
+            }
+
+            _pulls += 1;
+            _hostPulls.put(prefetch.target.host, hostPulls == null ? 1 : hostPulls + 1);
+            prefetch.update(State.PULLING, null);
+            start(prefetch);
+        }
+    }
+
+    private void start(final Prefetch prefetch) {
+        final SlaveClient client = prefetch.client;
+
+        _executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                State state = State.DONE;
+                String message = null;
+
+                LOG.log(FINE, "Prefetching image: host={0} image={1}", new Object[]{prefetch.target.host, prefetch.target.imageName});
+
+                try {
+                    client.pullImage(prefetch.target.imageName);
+                } catch (Throwable ex) {
+                    LOG.log(WARNING, "Error prefetching image: host=" + prefetch.target.host + " image=" + prefetch.target.imageName, ex);
+                    state = State.FAILED;
+                    message = ex.getMessage();
+                }
+
+                finished(prefetch, state, message);
+            }
+        });
+    }
+
+    private synchronized void finished(Prefetch prefetch, State state, String message) {
+        _pulls -= 1;
+
+        int hostPulls = _hostPulls.get(prefetch.target.host) - 1;
+
+        if (hostPulls <= 0) {
+            _hostPulls.remove(prefetch.target.host);
+        } else {
+            _hostPulls.put(prefetch.target.host, hostPulls);
+        }
+
+        prefetch.update(state, message);
+        dispatch();
+    }
+
+    public static enum State {
+        QUEUED,
+        PULLING,
+
+        /**
+         * The pull finished, but the next probe of the host has not yet seen the image.
+         */
+        DONE,
+        FAILED
+    }
+
+    /**
+     * Point in time state of a prefetch, for display.
+     */
+    public static final class PrefetchStatus {
+        public final HostAndPort host;
+        public final String imageName;
+        public final State state;
+        public final String message;
+        public final long updated;
+
+        public PrefetchStatus(HostAndPort host, String imageName, State state, String message, long updated) {
+            this.host = host;
+            this.imageName = imageName;
+            this.state = state;
+            this.message = message;
+            this.updated = updated;
+        }
+
+        public Date getUpdatedDate() {
+            return new Date(updated);
+        }
+    }
+
+    private static final class Target {
+        public final HostAndPort host;
+        public final String imageName;
+
+        public Target(HostAndPort host, String imageName) {
+            this.host = checkNotNull(host);
+            this.imageName = checkNotNull(imageName);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+
+            if (!(o instanceof Target)) {
+                return false;
+            }
+
+            Target other = (Target) o;
+            return host.equals(other.host) && imageName.equals(other.imageName);
+        }
+
+        @Override
+        public int hashCode() {
+            return host.hashCode() * 31 + imageName.hashCode();
+        }
+    }
+
+    private static final class Prefetch {
+        public final Target target;
+        public SlaveClient client;
+        public State state = State.QUEUED;
+        public String message;
+        public long updated = System.currentTimeMillis();
+
+        public Prefetch(Target target, SlaveClient client) {
+            this.target = target;
+            this.client = client;
+        }
+
+        public void update(State state, String message) {
+            this.state = state;
+            this.message = message;
+            this.updated = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Exponentially decayed count of job starts for an image.
+     */
+    private static final class Usage {
+        private double _score;
+        private long _time;
+
+        public synchronized void add(long now) {
+            _score = score(now) + 1;
+            _time = now;
+        }
+
+        public synchronized double score(long now) {
+            return _score * Math.pow(0.5, (double) (now - _time) / USAGE_HALF_LIFE_MS);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.net.HostAndPort;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the host that last ran each job.
+ * <p/>
+ * The launch script reuses a job's stopped container when nothing has changed, which is much
+ * faster than creating a new one. The container only exists on the host that last ran the job,
+ * so {@link DockerJobCloud} tries that host first when it places the job again.
+ * <p/>
+ * A hit is a placement on the remembered host. A miss is a placement somewhere else because the
+ * remembered host was full or gone. The first placement of a job is neither.
+ * <p/>
+ * Deleted and renamed jobs are never placed again under their old name, so at most
+ * {@link #MAX_JOBS} jobs are remembered and the least recently used ones are dropped.
+ */
+public class JobAffinity {
+    public static final int MAX_JOBS = Integer.getInteger(JobAffinity.class.getName() + ".maxJobs", 10000);
+
+    private final ConcurrentMap<String, HostAndPort> _jobHosts;
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+
+    public JobAffinity() {
+        this(MAX_JOBS);
+    }
+
+    JobAffinity(int maxJobs) {
+        _jobHosts = CacheBuilder.newBuilder()
+                .maximumSize(maxJobs)
+                .<String, HostAndPort>build()
+                .asMap();
+    }
+
+    /**
+     * Host that last ran the job, or null if the job has not run.
+     */
+    public HostAndPort getHost(String jobName) {
+        return _jobHosts.get(jobName);
+    }
+
+    /**
+     * Record that the job was placed on a host.
+     */
+    public void placed(String jobName, HostAndPort host) {
+        HostAndPort previous = _jobHosts.put(jobName, host);
+
+        if (previous != null) {
+            if (previous.equals(host)) {
+                _hits.incrementAndGet();
+            } else {
+                _misses.incrementAndGet();
+            }
+        }
+    }
+
+    public long getHitCount() {
+        return _hits.get();
+    }
+
+    public long getMissCount() {
+        return _misses.get();
+    }
+
+    /**
+     * Number of jobs with a remembered host.
+     */
+    public int size() {
+        return _jobHosts.size();
+    }
+}
@@ -26,14 +26,21 @@ public class LabeledDockerImage implements Describable<LabeledDockerImage> {
     public final String environmentVarString;
     public final String imageName;
 
+    /**
+     * Number of started slaves to keep ready for this image in clouds that have the warm pool
+     * enabled.
+     */
+    public final int warmPoolSize;
+
     private transient Set<LabelAtom> _labels;
     private transient Map<String, String> _environmentVars;
 
     @DataBoundConstructor
-    public LabeledDockerImage(String imageName, String labelString, String environmentVarString) {
+    public LabeledDockerImage(String imageName, String labelString, String environmentVarString, int warmPoolSize) {
         this.imageName = imageName;
         this.labelString = labelString;
         this.environmentVarString = environmentVarString;
+        this.warmPoolSize = warmPoolSize;
 
         this.readResolve();
     }
@@ -91,6 +98,12 @@ public class LabeledDockerImage implements Describable<LabeledDockerImage> {
                     : FormValidation.ok();
         }
 
+        public FormValidation doCheckWarmPoolSize(@QueryParameter int value) {
+            return value >= 0
+                    ? FormValidation.ok()
+                    : FormValidation.error("Must be 0 or greater");
+        }
+
         public FormValidation doCheckEnvironmentVarString(@QueryParameter String value) {
             try {
                 parseEnvVars(value);
@@ -0,0 +1,67 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import com.google.common.collect.ImmutableList;
+import hudson.model.Label;
+import hudson.model.labels.LabelAtom;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.collect.Maps.newHashMap;
+
+/**
+ * Index of {@link LabeledDockerImage}s by label atom.
+ * <p/>
+ * Atoms that do not appear in a label expression can not change whether the expression matches.
+ * So an image whose labels share no atom with a job's label can only match if the cloud labels
+ * alone already match. The index uses this to skip those images without evaluating the expression.
+ */
+public class LabeledImageIndex {
+    private final List<LabeledDockerImage> _images;
+    private final Map<LabelAtom, BitSet> _imagesByAtom = newHashMap();
+
+    public LabeledImageIndex(List<LabeledDockerImage> images) {
+        _images = ImmutableList.copyOf(images);
+
+        for (int i = 0; i < _images.size(); i++) {
+            for (LabelAtom atom : _images.get(i).getLabels()) {
+                BitSet imageIndexes = _imagesByAtom.get(atom);
+
+                if (imageIndexes == null) {
+                    imageIndexes = new BitSet(_images.size());
+                    _imagesByAtom.put(atom, imageIndexes);
+                }
+
+                imageIndexes.set(i);
+            }
+        }
+    }
+
+    public List<LabeledDockerImage> getImages() {
+        return _images;
+    }
+
+    /**
+     * Images that have at least one of the atoms in the label, in configuration order.
+     */
+    public List<LabeledDockerImage> getCandidates(Label label) {
+        BitSet candidates = new BitSet(_images.size());
+
+        for (LabelAtom atom : label.listAtoms()) {
+            BitSet imageIndexes = _imagesByAtom.get(atom);
+
+            if (imageIndexes != null) {
+                candidates.or(imageIndexes);
+            }
+        }
+
+        ImmutableList.Builder<LabeledDockerImage> result = ImmutableList.builder();
+
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            result.add(_images.get(i));
+        }
+
+        return result.build();
+    }
+}
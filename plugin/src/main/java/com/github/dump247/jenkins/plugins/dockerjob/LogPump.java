@@ -0,0 +1,166 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import com.github.dump247.jenkins.plugins.dockerjob.slaves.LogSource;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.logging.Level.FINER;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * Copies the launch messages of every slave to its listener on a few shared threads.
+ * <p/>
+ * Launch messages arrive mostly while the container starts and rarely afterwards, so a thread per
+ * slave would sit idle for the whole build. Instead, every {@link #INTERVAL_MS} the pump copies
+ * what each {@link LogSource} has available, without blocking, to the listener in a single write.
+ * At most {@link #MAX_BYTES_PER_PASS} are copied per slave per pass. Bytes that are not copied stay
+ * with the source, which bounds them: SSH flow control holds back the stderr of an exec launch,
+ * and the host agent sends only a window of messages ahead of the pump.
+ * <p/>
+ * Each slave is copied by one of {@link #THREADS} threads at a time, and is skipped by later passes
+ * until its copy finishes. A listener that blocks holds up only its own slave and one thread, not
+ * the other slaves. The thread count can be set with the {@code .threads} system property named
+ * after this class.
+ */
+public class LogPump {
+    private static final Logger LOG = Logger.getLogger(LogPump.class.getName());
+    private static final long INTERVAL_MS = 200;
+    private static final int MAX_BYTES_PER_PASS = 64 * 1024;
+    public static final int THREADS = Integer.getInteger(LogPump.class.getName() + ".threads", 4);
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder()
+                    .setNameFormat("docker-job-log-%d")
+                    .setDaemon(true)
+                    .build());
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(
+            THREADS, THREADS,
+            60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactoryBuilder()
+                    .setNameFormat("docker-job-log-copy-%d")
+                    .setDaemon(true)
+                    .build());
+    private static final List<Stream> STREAMS = new CopyOnWriteArrayList<Stream>();
+
+    /**
+     * Copy buffer of each pump thread.
+     */
+    private static final ThreadLocal<byte[]> BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[MAX_BYTES_PER_PASS];
+        }
+    };
+
+    static {
+        EXECUTOR.allowCoreThreadTimeOut(true);
+        SCHEDULER.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                pumpAll();
+            }
+        }, INTERVAL_MS, INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Start copying a log source to an output.
+     *
+     * @param name name of the slave, for diagnostics
+     */
+    public static Stream start(String name, LogSource source, OutputStream output) {
+        Stream stream = new Stream(name, source, output);
+        STREAMS.add(stream);
+        return stream;
+    }
+
+    /**
+     * Number of log sources being copied.
+     */
+    public static int getStreamCount() {
+        return STREAMS.size();
+    }
+
+    private static void pumpAll() {
+        for (final Stream stream : STREAMS) {
+            // Skip a stream whose last copy is still running, e.g. blocked on its listener
+            if (!stream._queued.compareAndSet(false, true)) {
+                continue;
+            }
+
+            try {
+                EXECUTOR.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            stream.pump(BUFFER.get());
+                        } catch (Throwable ex) {
+                            LOG.log(WARNING, "Error copying log stream for " + stream._name, ex);
+                            STREAMS.remove(stream);
+                        } finally {
+                            stream._queued.set(false);
+                        }
+                    }
+                });
+            } catch (Throwable ex) {
+                stream._queued.set(false);
+                LOG.log(WARNING, "Error scheduling log stream copy for " + stream._name, ex);
+            }
+        }
+    }
+
+    public static final class Stream {
+        private final String _name;
+        private final LogSource _source;
+        private final OutputStream _output;
+        private final AtomicBoolean _queued = new AtomicBoolean();
+        private boolean _ended;
+
+        private Stream(String name, LogSource source, OutputStream output) {
+            _name = checkNotNull(name);
+            _source = checkNotNull(source);
+            _output = checkNotNull(output);
+        }
+
+        /**
+         * Copy what the source has available and stop copying it.
+         */
+        public void close() {
+            try {
+                pump(new byte[MAX_BYTES_PER_PASS]);
+            } catch (IOException ex) {
+                LOG.log(FINER, "Error copying log stream for " + _name, ex);
+            } finally {
+                STREAMS.remove(this);
+            }
+        }
+
+        private synchronized void pump(byte[] buffer) throws IOException {
+            if (_ended) {
+                return;
+            }
+
+            int count = _source.read(buffer, 0, buffer.length);
+
+            if (count < 0) {
+                LOG.log(FINER, "Log stream ended: slave={0}", _name);
+                _ended = true;
+                STREAMS.remove(this);
+            } else if (count > 0) {
+                _output.write(buffer, 0, count);
+                _output.flush();
+            }
+        }
+    }
+}
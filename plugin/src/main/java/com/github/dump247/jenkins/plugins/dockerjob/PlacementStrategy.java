@@ -0,0 +1,29 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import com.github.dump247.jenkins.plugins.dockerjob.slaves.SlaveOptions;
+import hudson.ExtensionPoint;
+import hudson.model.AbstractDescribableImpl;
+
+import java.util.List;
+
+/**
+ * Extension point for choosing the host a slave runs on.
+ * <p/>
+ * The strategy is configured on each {@link DockerJobCloud}. When a slave is provisioned, the cloud
+ * passes the hosts that are connected and have a free slot, and reserves a slot on the first host
+ * in the returned list that still has one.
+ */
+public abstract class PlacementStrategy extends AbstractDescribableImpl<PlacementStrategy> implements ExtensionPoint {
+    /**
+     * Rank hosts for a new slave, most preferred first.
+     * <p/>
+     * Hosts left out of the result are not used for the slave.
+     *
+     * @param hosts   hosts that are connected and have at least one free slot
+     * @param options options of the slave being placed
+     */
+    public abstract List<HostCapacity> rankHosts(List<HostCapacity> hosts, SlaveOptions options);
+
+    public static abstract class Descriptor extends hudson.model.Descriptor<PlacementStrategy> {
+    }
+}
@@ -0,0 +1,55 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import com.github.dump247.jenkins.plugins.dockerjob.slaves.SlaveOptions;
+import hudson.Extension;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.util.List;
+import java.util.Random;
+
+import static com.google.common.collect.Lists.newArrayList;
+
+/**
+ * Picks two hosts at random and places the slave on the one with more remaining slots.
+ * <p/>
+ * This spreads load nearly as well as {@link SpreadPlacementStrategy}, but concurrent placements
+ * do not all pick the same host. The remaining hosts follow the two choices, most remaining
+ * slots first.
+ */
+public class RandomOfTwoPlacementStrategy extends PlacementStrategy {
+    private static final Random RANDOM = new Random();
+
+    @DataBoundConstructor
+    public RandomOfTwoPlacementStrategy() {
+    }
+
+    @Override
+    public List<HostCapacity> rankHosts(List<HostCapacity> hosts, SlaveOptions options) {
+        List<HostCapacity> remaining = newArrayList(hosts);
+        List<HostCapacity> ranked = newArrayList();
+
+        if (remaining.size() >= 2) {
+            HostCapacity first = remaining.remove(RANDOM.nextInt(remaining.size()));
+            HostCapacity second = remaining.remove(RANDOM.nextInt(remaining.size()));
+
+            if (second.getRemainingSlots() > first.getRemainingSlots()) {
+                ranked.add(second);
+                ranked.add(first);
+            } else {
+                ranked.add(first);
+                ranked.add(second);
+            }
+        }
+
+        ranked.addAll(HostCapacity.MOST_REMAINING.sortedCopy(remaining));
+        return ranked;
+    }
+
+    @Extension
+    public static class Descriptor extends PlacementStrategy.Descriptor {
+        @Override
+        public String getDisplayName() {
+            return "Random of Two";
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import com.github.dump247.jenkins.plugins.dockerjob.slaves.SlaveOptions;
+import hudson.Extension;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.util.List;
+
+/**
+ * Places slaves on the host with the most remaining slots, spreading load across the cloud.
+ */
+public class SpreadPlacementStrategy extends PlacementStrategy {
+    @DataBoundConstructor
+    public SpreadPlacementStrategy() {
+    }
+
+    @Override
+    public List<HostCapacity> rankHosts(List<HostCapacity> hosts, SlaveOptions options) {
+        return HostCapacity.MOST_REMAINING.sortedCopy(hosts);
+    }
+
+    @Extension
+    public static class Descriptor extends PlacementStrategy.Descriptor {
+        @Override
+        public String getDisplayName() {
+            return "Spread";
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import hudson.model.Label;
+import hudson.model.labels.LabelAtom;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.collect.Maps.newHashMap;
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * Started slaves of a {@link DockerJobCloud} that are waiting for a job.
+ * <p/>
+ * Pool slaves run a {@link LabeledDockerImage} in a clean container with the image environment
+ * and are connected before any job asks for them. {@link DockerJobLoadBalancer} claims one for a
+ * queued job that would get the same container, so the job skips the image pull, container
+ * start, and remoting handshake. Claimed slaves are replaced in the background.
+ * <p/>
+ * Pool slaves hold host reservations like any other slave, so they count against host capacity.
+ */
+public class WarmPool {
+    private static final Logger LOG = Logger.getLogger(WarmPool.class.getName());
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder()
+                    .setNameFormat("docker-job-pool-%d")
+                    .setDaemon(true)
+                    .build());
+
+    private final ConcurrentMap<Key, List<DockerJobSlave>> _pools = new ConcurrentHashMap<Key, List<DockerJobSlave>>();
+    private final AtomicBoolean _refillPending = new AtomicBoolean();
+
+    /**
+     * Claim a connected pool slave for a job.
+     *
+     * @param label       label of the job, or null if the job has no label
+     * @param imageName   image the job would run in
+     * @param environment environment the job container would have
+     * @return claimed slave or null if no matching slave is ready
+     */
+    public DockerJobSlave claim(String jobName, Label label, String imageName, Map<String, String> environment) {
+        for (Map.Entry<Key, List<DockerJobSlave>> pool : _pools.entrySet()) {
+            Key key = pool.getKey();
+
+            if (!key.imageName.equals(imageName) || !key.environment.equals(environment)) {
+                continue;
+            }
+
+            if (label != null && !label.matches(key.labels)) {
+                continue;
+            }
+
+            for (DockerJobSlave slave : pool.getValue()) {
+                if (slave.isOnline() && slave.claim(jobName)) {
+                    LOG.log(FINE, "Claimed pool slave: job={0} node={1} image={2}", new Object[]{jobName, slave.getNodeName(), imageName});
+                    pool.getValue().remove(slave);
+                    return slave;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Add a started slave to the pool.
+     */
+    void add(Key key, DockerJobSlave slave) {
+        pool(key).add(slave);
+    }
+
+    public void remove(DockerJobSlave slave) {
+        for (List<DockerJobSlave> slaves : _pools.values()) {
+            slaves.remove(slave);
+        }
+    }
+
+    /**
+     * Number of unclaimed slaves in the pool for each image.
+     */
+    public Map<String, Integer> getSlaveCounts() {
+        Map<String, Integer> counts = newHashMap();
+
+        for (Map.Entry<Key, List<DockerJobSlave>> pool : _pools.entrySet()) {
+            Integer count = counts.get(pool.getKey().imageName);
+            counts.put(pool.getKey().imageName, (count == null ? 0 : count) + pool.getValue().size());
+        }
+
+        return ImmutableMap.copyOf(counts);
+    }
+
+    /**
+     * Bring the pool in line with the configured pool sizes in the background.
+     * <p/>
+     * Requests made while a refill is pending are merged into it.
+     */
+    public void requestRefill(final DockerJobCloud cloud) {
+        if (_refillPending.compareAndSet(false, true)) {
+            EXECUTOR.submit(new Runnable() {
+                @Override
+                public void run() {
+                    _refillPending.set(false);
+
+                    try {
+                        refill(cloud);
+                    } catch (Throwable ex) {
+                        LOG.log(WARNING, "Error refilling warm pool: cloud=" + cloud.getDisplayName(), ex);
+                    }
+                }
+            });
+        }
+    }
+
+    private void refill(DockerJobCloud cloud) throws Exception {
+        Map<Key, LabeledDockerImage> desired = newHashMap();
+
+        if (cloud.isWarmPoolEnabled()) {
+            for (LabeledDockerImage image : DockerJobConfig.get().getLabeledImageIndex().getImages()) {
+                if (image.warmPoolSize > 0) {
+                    desired.put(cloud.getPoolKey(image), image);
+                }
+            }
+        }
+
+        // Retire slaves for images that were removed or whose pool shrank
+        for (Map.Entry<Key, List<DockerJobSlave>> pool : _pools.entrySet()) {
+            LabeledDockerImage image = desired.get(pool.getKey());
+            int surplus = pool.getValue().size() - (image == null ? 0 : image.warmPoolSize);
+
+            for (DockerJobSlave slave : pool.getValue()) {
+                if (surplus <= 0) {
+                    break;
+                }
+
+                // Claiming the slave keeps it from being handed to a job while it shuts down
+                if (slave.claim(slave.getNodeName())) {
+                    LOG.log(FINE, "Retiring pool slave: node={0} image={1}", new Object[]{slave.getNodeName(), pool.getKey().imageName});
+                    pool.getValue().remove(slave);
+                    slave.terminate();
+                    surplus -= 1;
+                }
+            }
+        }
+
+        for (Map.Entry<Key, LabeledDockerImage> entry : desired.entrySet()) {
+            List<DockerJobSlave> slaves = pool(entry.getKey());
+
+            while (slaves.size() < entry.getValue().warmPoolSize) {
+                DockerJobSlave slave = cloud.provisionPoolSlave(entry.getValue(), entry.getKey());
+
+                if (slave == null) {
+                    LOG.log(FINE, "No capacity to refill warm pool: cloud={0} image={1}", new Object[]{cloud.getDisplayName(), entry.getKey().imageName});
+                    return;
+                }
+
+                slaves.add(slave);
+            }
+        }
+    }
+
+    private List<DockerJobSlave> pool(Key key) {
+        List<DockerJobSlave> slaves = _pools.get(key);
+
+        if (slaves == null) {
+            List<DockerJobSlave> newSlaves = new CopyOnWriteArrayList<DockerJobSlave>();
+            slaves = _pools.putIfAbsent(key, newSlaves);
+
+            if (slaves == null) {
+                slaves = newSlaves;
+            }
+        }
+
+        return slaves;
+    }
+
+    /**
+     * Identifies slaves that are interchangeable: same image, same container environment, and
+     * same node labels.
+     */
+    static final class Key {
+        public final String imageName;
+        public final Map<String, String> environment;
+        public final Set<LabelAtom> labels;
+
+        public Key(String imageName, Map<String, String> environment, Set<LabelAtom> labels) {
+            this.imageName = checkNotNull(imageName);
+            this.environment = ImmutableMap.copyOf(environment);
+            this.labels = ImmutableSet.copyOf(labels);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+
+            if (!(o instanceof Key)) {
+                return false;
+            }
+
+            Key other = (Key) o;
+            return imageName.equals(other.imageName) &&
+                    environment.equals(other.environment) &&
+                    labels.equals(other.labels);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(imageName, environment, labels);
+        }
+    }
+}
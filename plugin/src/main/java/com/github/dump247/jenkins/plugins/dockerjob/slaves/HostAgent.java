@@ -0,0 +1,482 @@
+package com.github.dump247.jenkins.plugins.dockerjob.slaves;
+
+import com.google.common.base.Charsets;
+import com.google.common.net.HostAndPort;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.trilead.ssh2.LocalStreamForwarder;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.collect.Lists.newArrayList;
+import static java.lang.String.format;
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.FINER;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * Client for the long running launcher agent on a slave host.
+ * <p/>
+ * The agent ({@code agent.py}) runs in a single SSH session for as long as the host is connected,
+ * so launching a slave does not start a new python interpreter or docker client. Requests and
+ * events are JSON messages framed with a 4 byte length and tagged with a request id. Any number
+ * of requests can be in flight on the one control channel, and events for each request are
+ * dispatched to its handler as they arrive.
+ * <p/>
+ * Slave channel data does not go through the control channel. The agent listens on a loopback
+ * port on the host for each launch and relays it to the container, and the master reaches it
+ * through the SSH connection. With {@link SlaveOptions#isTunnelRemoting()}, the slave jar listens
+ * in the container instead, and the master connects to the container address through the SSH
+ * connection without the relay.
+ */
+public class HostAgent {
+    private static final Logger LOG = Logger.getLogger(HostAgent.class.getName());
+    private static final long REQUEST_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * Time for a tunnelled launch to pull the image, start the container, and start the slave jar.
+     */
+    private static final long TUNNEL_ENDPOINT_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(30);
+
+    /**
+     * Number of log messages of a launch the agent may send before they are read. Half a window
+     * is credited back at a time.
+     */
+    private static final int LOG_WINDOW = 64;
+
+    /**
+     * Sends log credits, so a reader of a launch log does not wait on the control channel of a
+     * busy host.
+     */
+    private static final ThreadPoolExecutor CREDIT_EXECUTOR = new ThreadPoolExecutor(
+            2, 2,
+            60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactoryBuilder()
+                    .setNameFormat("docker-job-agent-credit-%d")
+                    .setDaemon(true)
+                    .build());
+
+    static {
+        CREDIT_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Marks the end of the log of a launch.
+     */
+    private static final byte[] END = new byte[0];
+    public static final String LOG_PATH = "/var/lib/jenkins-docker/agent.log";
+
+    private final SshClient.SshSession _session;
+    private final DataOutputStream _requests;
+    private final AtomicLong _nextId = new AtomicLong(1);
+    private final ConcurrentMap<Long, EventHandler> _handlers = new ConcurrentHashMap<Long, EventHandler>();
+    private volatile boolean _running = true;
+
+    private HostAgent(SshClient.SshSession session) {
+        _session = checkNotNull(session);
+        _requests = new DataOutputStream(session.getStdin());
+    }
+
+    /**
+     * Start the agent on a host. The agent files must already be uploaded.
+     */
+    public static HostAgent start(SshClient sshClient) throws IOException {
+        SshClient.SshSession session = sshClient.createSession();
+
+        try {
+            // The agent only writes to stderr if it crashes. Sending that to a file saves a reader
+            // thread per host on the master.
+            session.execCommand(Ssh.quoteCommand("python3", "/var/lib/jenkins-docker/agent.py") + " 2>" + LOG_PATH);
+        } catch (IOException ex) {
+            session.close();
+            throw ex;
+        }
+
+        HostAgent agent = new HostAgent(session);
+        agent.startReader(sshClient.getHost().toString());
+        return agent;
+    }
+
+    public boolean isRunning() {
+        return _running;
+    }
+
+    /**
+     * Request a slave container launch. This does not wait for the agent to respond.
+     *
+     * @param containerName name of the job container
+     */
+    public Launch launch(String containerName, SlaveOptions options) throws IOException {
+        List<String> environment = newArrayList();
+        List<String> volumes = newArrayList();
+
+        for (Map.Entry<String, String> env : options.getEnvironment().entrySet()) {
+            environment.add(format("%s=%s", env.getKey(), env.getValue()));
+        }
+
+        for (DirectoryMapping dir : options.getDirectoryMappings()) {
+            volumes.add(format("%s:%s:%s", dir.getHostPath(), dir.getContainerPath(), dir.getAccess().value()));
+        }
+
+        JSONObject request = new JSONObject();
+        request.put("op", "launch");
+        request.put("name", containerName);
+        request.put("image", options.getImage());
+        request.put("clean", options.isCleanEnvironment());
+        request.put("pullTtl", options.getImagePullTtlSeconds());
+        request.put("transport", options.isTunnelRemoting() ? "tunnel" : "relay");
+        request.put("logWindow", LOG_WINDOW);
+        request.put("environment", JSONArray.fromObject(environment));
+        request.put("volumes", JSONArray.fromObject(volumes));
+
+        Launch launch = new Launch(_nextId.getAndIncrement(), options.isTunnelRemoting() ? TUNNEL_ENDPOINT_TIMEOUT_MS : REQUEST_TIMEOUT_MS);
+        send(launch.id, request, launch);
+        return launch;
+    }
+
+    /**
+     * Get the state of a container.
+     *
+     * @return result with {@code exists}, and {@code running} and {@code exitCode} if it exists
+     */
+    public JSONObject inspect(String containerName) throws IOException {
+        JSONObject request = new JSONObject();
+        request.put("op", "inspect");
+        request.put("container", containerName);
+        return call(request);
+    }
+
+    /**
+     * Kill a running container.
+     */
+    public void kill(String containerName) throws IOException {
+        JSONObject request = new JSONObject();
+        request.put("op", "kill");
+        request.put("container", containerName);
+        call(request);
+    }
+
+    /**
+     * Open a connection from the host to an address, e.g. the endpoint of a launch.
+     */
+    public LocalStreamForwarder forward(HostAndPort endpoint) throws IOException {
+        return _session.forward(endpoint.getHostText(), endpoint.getPort());
+    }
+
+    public void close() {
+        _running = false;
+        _session.close();
+    }
+
+    private JSONObject call(JSONObject request) throws IOException {
+        Result result = new Result();
+        long id = _nextId.getAndIncrement();
+        send(id, request, result);
+
+        try {
+            return result.future.get(REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(format("Interrupted waiting for agent: op=%s", request.getString("op")));
+        } catch (ExecutionException ex) {
+            throw new IOException(ex.getCause().getMessage(), ex.getCause());
+        } catch (TimeoutException ex) {
+            throw new IOException(format("Timeout waiting for agent: op=%s", request.getString("op")), ex);
+        } finally {
+            _handlers.remove(id);
+        }
+    }
+
+    /**
+     * @param handler handler for the events of the request, or null if its events are not needed
+     */
+    private void send(long id, JSONObject request, EventHandler handler) throws IOException {
+        if (!_running) {
+            throw new IOException("Agent is not running");
+        }
+
+        request.put("id", id);
+        byte[] data = request.toString().getBytes(Charsets.UTF_8);
+
+        if (handler != null) {
+            _handlers.put(id, handler);
+        }
+
+        try {
+            synchronized (_requests) {
+                _requests.writeInt(data.length);
+                _requests.write(data);
+                _requests.flush();
+            }
+        } catch (IOException ex) {
+            _handlers.remove(id);
+            throw ex;
+        }
+    }
+
+    private void startReader(String hostName) {
+        Thread events = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readEvents();
+            }
+        });
+        events.setDaemon(true);
+        events.setName("docker-job-agent-" + hostName);
+        events.start();
+    }
+
+    private void readEvents() {
+        String stopReason = format("Agent stopped (see %s on the host)", LOG_PATH);
+
+        try {
+            DataInputStream events = new DataInputStream(_session.getStdout());
+
+            while (true) {
+                byte[] data = new byte[events.readInt()];
+                events.readFully(data);
+
+                JSONObject event = JSONObject.fromObject(new String(data, Charsets.UTF_8));
+                EventHandler handler = _handlers.get(event.getLong("id"));
+
+                if (handler != null) {
+                    handler.onEvent(event);
+                } else {
+                    LOG.log(FINER, "Agent event without handler: {0}", event);
+                }
+            }
+        } catch (EOFException ex) {
+            LOG.log(FINE, "Agent stopped");
+        } catch (Throwable ex) {
+            LOG.log(WARNING, "Error reading agent events", ex);
+            stopReason = format("Agent failed (see %s on the host): %s", LOG_PATH, ex.getMessage());
+        } finally {
+            _running = false;
+
+            JSONObject event = new JSONObject();
+            event.put("event", "error");
+            event.put("message", stopReason);
+
+            for (EventHandler handler : _handlers.values()) {
+                handler.onEvent(event);
+            }
+
+            _handlers.clear();
+            _session.close();
+        }
+    }
+
+    private interface EventHandler {
+        void onEvent(JSONObject event);
+    }
+
+    private static class Result implements EventHandler {
+        public final SettableFuture<JSONObject> future = SettableFuture.create();
+
+        @Override
+        public void onEvent(JSONObject event) {
+            if ("error".equals(event.optString("event"))) {
+                future.setException(new IOException(event.optString("message")));
+            } else {
+                future.set(event);
+            }
+        }
+    }
+
+    /**
+     * A slave container launch in progress.
+     * <p/>
+     * Log messages are buffered until they are read as a {@link LogSource}. The agent sends at
+     * most {@link #LOG_WINDOW} messages ahead of the reader, so the buffer is bounded even if
+     * nothing reads it.
+     */
+    public class Launch implements EventHandler, LogSource {
+        private final long id;
+        private final long _endpointTimeoutMs;
+        private final SettableFuture<HostAndPort> _endpoint = SettableFuture.create();
+        private final Queue<byte[]> _log = new ConcurrentLinkedQueue<byte[]>();
+
+        /**
+         * Messages read but not yet credited back by {@link #sendCredits}.
+         */
+        private final AtomicInteger _pendingCredits = new AtomicInteger();
+        private final AtomicBoolean _creditQueued = new AtomicBoolean();
+        private byte[] _current;
+        private int _offset;
+        private int _uncredited;
+
+        private Launch(long id, long endpointTimeoutMs) {
+            this.id = id;
+            _endpointTimeoutMs = endpointTimeoutMs;
+        }
+
+        /**
+         * Wait for the address, as seen from the host, that the master connects to for the slave
+         * channel.
+         */
+        public HostAndPort awaitEndpoint() throws IOException {
+            try {
+                return _endpoint.get(_endpointTimeoutMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for agent launch");
+            } catch (ExecutionException ex) {
+                throw new IOException(ex.getCause().getMessage(), ex.getCause());
+            } catch (TimeoutException ex) {
+                throw new IOException("Timeout waiting for agent launch", ex);
+            }
+        }
+
+        /**
+         * Messages from the agent about the container launch. Ends when the container stops.
+         */
+        public LogSource getLog() {
+            return this;
+        }
+
+        @Override
+        public synchronized int read(byte[] buffer, int offset, int length) {
+            int count = 0;
+
+            while (count < length) {
+                if (_current == null || _offset >= _current.length) {
+                    if (_current == END) {
+                        return count > 0 ? count : -1;
+                    }
+
+                    _current = _log.poll();
+                    _offset = 0;
+
+                    if (_current == null) {
+                        break;
+                    }
+
+                    if (_current != END) {
+                        messageRead();
+                    }
+
+                    continue;
+                }
+
+                int chunk = Math.min(length - count, _current.length - _offset);
+                System.arraycopy(_current, _offset, buffer, offset + count, chunk);
+                _offset += chunk;
+                count += chunk;
+            }
+
+            return count;
+        }
+
+        private void messageRead() {
+            _uncredited += 1;
+
+            if (_uncredited < LOG_WINDOW / 2 || !_running || !_handlers.containsKey(id)) {
+                return;
+            }
+
+            _pendingCredits.addAndGet(_uncredited);
+            _uncredited = 0;
+
+            // Credits are sent off the reader thread, and at most one send per launch is queued
+            if (_creditQueued.compareAndSet(false, true)) {
+                try {
+                    CREDIT_EXECUTOR.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            sendCredits();
+                        }
+                    });
+                } catch (RuntimeException ex) {
+                    _creditQueued.set(false);
+                    LOG.log(FINER, "Error queueing agent launch log credit", ex);
+                }
+            }
+        }
+
+        private void sendCredits() {
+            _creditQueued.set(false);
+            int count = _pendingCredits.getAndSet(0);
+
+            if (count <= 0 || !_running || !_handlers.containsKey(id)) {
+                return;
+            }
+
+            JSONObject request = new JSONObject();
+            request.put("op", "credit");
+            request.put("launch", id);
+            request.put("count", count);
+
+            try {
+                send(_nextId.getAndIncrement(), request, null);
+            } catch (IOException ex) {
+                LOG.log(FINER, "Error crediting agent launch log", ex);
+            }
+        }
+
+        /**
+         * Stop the launch. The agent stops the container if it was started.
+         */
+        public void cancel() {
+            if (!_running || !_handlers.containsKey(id)) {
+                return;
+            }
+
+            JSONObject request = new JSONObject();
+            request.put("op", "cancel");
+            request.put("launch", id);
+
+            try {
+                send(_nextId.getAndIncrement(), request, null);
+            } catch (IOException ex) {
+                LOG.log(FINER, "Error cancelling agent launch", ex);
+            }
+        }
+
+        @Override
+        public void onEvent(JSONObject event) {
+            String type = event.optString("event");
+
+            if ("listening".equals(type)) {
+                _endpoint.set(HostAndPort.fromParts(event.optString("host", "127.0.0.1"), event.getInt("port")));
+            } else if ("log".equals(type)) {
+                _log.add((event.optString("message") + "\n").getBytes(Charsets.UTF_8));
+            } else if ("started".equals(type)) {
+                LOG.log(FINE, "Agent started container: {0}", event.optString("container"));
+            } else if ("exited".equals(type) || "error".equals(type)) {
+                if ("error".equals(type)) {
+                    String message = event.optString("message");
+                    _endpoint.setException(new IOException(message));
+                    _log.add(("Error: " + message + "\n").getBytes(Charsets.UTF_8));
+                } else {
+                    _endpoint.setException(new IOException("Container exited before the slave was reachable"));
+                }
+
+                _handlers.remove(id);
+                _log.add(END);
+            }
+        }
+    }
+}
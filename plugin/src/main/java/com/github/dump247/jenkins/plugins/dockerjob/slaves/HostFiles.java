@@ -0,0 +1,331 @@
+package com.github.dump247.jenkins.plugins.dockerjob.slaves;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Resources;
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.SFTPv3Client;
+import com.trilead.ssh2.SFTPv3FileHandle;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+import static com.github.dump247.jenkins.plugins.dockerjob.slaves.Sftp.writeFile;
+import static com.github.dump247.jenkins.plugins.dockerjob.slaves.Sftp.writeFiles;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.collect.Maps.newLinkedHashMap;
+import static com.google.common.collect.Maps.newTreeMap;
+import static java.lang.String.format;
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.FINER;
+
+/**
+ * Files the master keeps on a slave host, uploaded only when their content changes.
+ * <p/>
+ * The host has a manifest ({@code manifest.sha256}, in {@code sha256sum} format) with the digest
+ * of each file as of its last upload. A file is uploaded only if its digest differs from the
+ * manifest or it is missing from the host. Files are written to a temporary path and renamed, and
+ * the manifest is written last, so an interrupted upload is repeated on the next attempt.
+ * <p/>
+ * Changed files are collected by {@link #sync(Content, String)} and written together by
+ * {@link #upload()}, over {@link #UPLOAD_CHANNELS} SFTP channels in parallel. The channel count
+ * can be set with the {@code com.github.dump247.jenkins.plugins.dockerjob.slaves.HostFiles.uploadChannels}
+ * system property.
+ */
+public class HostFiles {
+    private static final Logger LOG = Logger.getLogger(HostFiles.class.getName());
+    public static final String MANIFEST_PATH = "/var/lib/jenkins-docker/manifest.sha256";
+    public static final int UPLOAD_CHANNELS = Integer.getInteger(HostFiles.class.getName() + ".uploadChannels", 4);
+
+    /**
+     * Content of resources and URLs, which do not change while Jenkins is running.
+     */
+    private static final ConcurrentMap<String, Content> CONTENT_CACHE = new ConcurrentHashMap<String, Content>();
+
+    private final Store _store;
+    private final Map<String, String> _manifest;
+    private final Map<String, Content> _pending = newLinkedHashMap();
+    private int _uploadCount;
+    private long _uploadBytes;
+
+    private HostFiles(Store store, Map<String, String> manifest) {
+        _store = checkNotNull(store);
+        _manifest = manifest;
+    }
+
+    /**
+     * Read the manifest from the host. A missing or unreadable manifest is treated as empty.
+     *
+     * @param ftp client for the manifest and renames, on {@code connection}
+     */
+    public static HostFiles open(Connection connection, SFTPv3Client ftp) {
+        return open(new SftpStore(connection, ftp));
+    }
+
+    static HostFiles open(Store store) {
+        Map<String, String> manifest = newTreeMap();
+
+        try {
+            String content = new String(store.read(MANIFEST_PATH), Charsets.UTF_8);
+
+            for (String line : content.split("\n")) {
+                // sha256sum format: digest, two spaces, path
+                String[] parts = line.split("  ", 2);
+
+                if (parts.length == 2) {
+                    manifest.put(parts[1], parts[0]);
+                }
+            }
+        } catch (IOException ex) {
+            LOG.log(FINER, "No host file manifest, uploading all files", ex);
+        }
+
+        return new HostFiles(store, manifest);
+    }
+
+    public static Content resource(Class type, String name) throws IOException {
+        return url(Resources.getResource(type, name));
+    }
+
+    public static Content url(URL url) throws IOException {
+        String key = url.toString();
+        Content content = CONTENT_CACHE.get(key);
+
+        if (content == null) {
+            InputStream stream = url.openStream();
+
+            try {
+                content = new Content(ByteStreams.toByteArray(stream));
+            } finally {
+                stream.close();
+            }
+
+            CONTENT_CACHE.put(key, content);
+        }
+
+        return content;
+    }
+
+    public static Content string(String value) {
+        return new Content(value.getBytes(Charsets.UTF_8));
+    }
+
+    /**
+     * Whether the host has the content at the path, according to the manifest.
+     */
+    public boolean isCurrent(Content content, String path) {
+        return content.digest.equals(_manifest.get(path)) && _store.exists(path);
+    }
+
+    /**
+     * Record content that was put on the host by other means than {@link #upload()}.
+     */
+    public void record(Content content, String path) {
+        _pending.remove(path);
+        _manifest.put(path, content.digest);
+    }
+
+    /**
+     * Queue a file for {@link #upload()} if the host does not already have the same content.
+     *
+     * @return true if the file needs to be uploaded
+     */
+    public boolean sync(Content content, String path) {
+        if (isCurrent(content, path)) {
+            _pending.remove(path);
+            return false;
+        }
+
+        _pending.put(path, content);
+        return true;
+    }
+
+    /**
+     * Upload the queued files.
+     */
+    public void upload() throws IOException {
+        if (_pending.isEmpty()) {
+            return;
+        }
+
+        Map<String, byte[]> tempFiles = newLinkedHashMap();
+
+        for (Map.Entry<String, Content> file : _pending.entrySet()) {
+            LOG.log(FINE, "Uploading host file: path={0} size={1} sha256={2}", new Object[]{file.getKey(), file.getValue().data.length, file.getValue().digest});
+
+            // Drop the entry first, so the file is uploaded again if this fails partway
+            _manifest.remove(file.getKey());
+            tempFiles.put(file.getKey() + ".tmp", file.getValue().data);
+        }
+
+        _store.writeAll(tempFiles);
+
+        for (Map.Entry<String, Content> file : _pending.entrySet()) {
+            delete(file.getKey());
+            _store.rename(file.getKey() + ".tmp", file.getKey());
+
+            _manifest.put(file.getKey(), file.getValue().digest);
+            _uploadCount += 1;
+            _uploadBytes += file.getValue().data.length;
+        }
+
+        _pending.clear();
+    }
+
+    /**
+     * Delete a file from the host, if it exists.
+     */
+    public void remove(String path) throws IOException {
+        if (_manifest.remove(path) != null || _store.exists(path)) {
+            delete(path);
+        }
+    }
+
+    /**
+     * Write the manifest to the host.
+     */
+    public void saveManifest() throws IOException {
+        StringBuilder content = new StringBuilder();
+
+        for (Map.Entry<String, String> entry : _manifest.entrySet()) {
+            content.append(entry.getValue()).append("  ").append(entry.getKey()).append('\n');
+        }
+
+        String tempPath = MANIFEST_PATH + ".tmp";
+        _store.write(tempPath, content.toString().getBytes(Charsets.UTF_8));
+        delete(MANIFEST_PATH);
+        _store.rename(tempPath, MANIFEST_PATH);
+    }
+
+    public Map<String, String> getManifest() {
+        return ImmutableMap.copyOf(_manifest);
+    }
+
+    /**
+     * Number of files uploaded by {@link #upload()}.
+     */
+    public int getUploadCount() {
+        return _uploadCount;
+    }
+
+    /**
+     * Number of bytes uploaded by {@link #upload()}, not counting the manifest.
+     */
+    public long getUploadBytes() {
+        return _uploadBytes;
+    }
+
+    private void delete(String path) throws IOException {
+        if (_store.exists(path)) {
+            _store.delete(path);
+        }
+    }
+
+    /**
+     * File operations on the host.
+     */
+    interface Store {
+        byte[] read(String path) throws IOException;
+
+        /**
+         * Write files over parallel channels.
+         */
+        void writeAll(Map<String, byte[]> files) throws IOException;
+
+        void write(String path, byte[] data) throws IOException;
+
+        void rename(String from, String to) throws IOException;
+
+        boolean exists(String path);
+
+        void delete(String path) throws IOException;
+    }
+
+    private static final class SftpStore implements Store {
+        private final Connection _connection;
+        private final SFTPv3Client _ftp;
+
+        public SftpStore(Connection connection, SFTPv3Client ftp) {
+            _connection = checkNotNull(connection);
+            _ftp = checkNotNull(ftp);
+        }
+
+        @Override
+        public byte[] read(String path) throws IOException {
+            SFTPv3FileHandle handle = _ftp.openFileRO(path);
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+
+            try {
+                byte[] buffer = new byte[8192];
+                long offset = 0;
+                int count;
+
+                while ((count = _ftp.read(handle, offset, buffer, 0, buffer.length)) > 0) {
+                    content.write(buffer, 0, count);
+                    offset += count;
+                }
+            } finally {
+                _ftp.closeFile(handle);
+            }
+
+            return content.toByteArray();
+        }
+
+        @Override
+        public void writeAll(Map<String, byte[]> files) throws IOException {
+            writeFiles(_connection, files, UPLOAD_CHANNELS);
+        }
+
+        @Override
+        public void write(String path, byte[] data) throws IOException {
+            writeFile(_ftp, new ByteArrayInputStream(data), path);
+        }
+
+        @Override
+        public void rename(String from, String to) throws IOException {
+            _ftp.mv(from, to);
+        }
+
+        @Override
+        public boolean exists(String path) {
+            try {
+                _ftp.stat(path);
+                return true;
+            } catch (IOException ex) {
+                return false;
+            }
+        }
+
+        @Override
+        public void delete(String path) throws IOException {
+            _ftp.rm(path);
+        }
+    }
+
+    /**
+     * File content and its SHA-256 digest.
+     */
+    public static final class Content {
+        public final byte[] data;
+        public final String digest;
+
+        public Content(byte[] data) {
+            this.data = checkNotNull(data);
+            this.digest = Hashing.sha256().hashBytes(data).toString();
+        }
+
+        @Override
+        public String toString() {
+            return format("Content{size=%d, sha256=%s}", data.length, digest);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.github.dump247.jenkins.plugins.dockerjob.slaves;
+
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.lang.String.format;
+
+/**
+ * Hardware resources and load of a slave host.
+ */
+public class HostResources {
+    private final int _cores;
+    private final long _memoryMb;
+    private final double _loadAverage;
+    private final long _freeDiskMb;
+
+    public HostResources(int cores, long memoryMb, double loadAverage, long freeDiskMb) {
+        _cores = cores;
+        _memoryMb = memoryMb;
+        _loadAverage = loadAverage;
+        _freeDiskMb = freeDiskMb;
+    }
+
+    /**
+     * Parse the output of {@code host_resources.sh}.
+     */
+    static HostResources parse(List<String> lines) {
+        checkArgument(lines.size() >= 4, "Expected 4 lines of host resources: %s", lines);
+
+        try {
+            return new HostResources(
+                    Integer.parseInt(lines.get(0).trim()),
+                    Long.parseLong(lines.get(1).trim()) / 1024,
+                    Double.parseDouble(lines.get(2).trim()),
+                    Long.parseLong(lines.get(3).trim()) / 1024);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(format("Invalid host resources: %s", lines), ex);
+        }
+    }
+
+    /**
+     * Number of processors available.
+     */
+    public int getCores() {
+        return _cores;
+    }
+
+    /**
+     * Total physical memory in megabytes.
+     */
+    public long getMemoryMb() {
+        return _memoryMb;
+    }
+
+    /**
+     * One minute load average.
+     */
+    public double getLoadAverage() {
+        return _loadAverage;
+    }
+
+    /**
+     * Free disk space in megabytes where docker stores containers and images.
+     */
+    public long getFreeDiskMb() {
+        return _freeDiskMb;
+    }
+
+    @Override
+    public String toString() {
+        return "HostResources{cores=" + _cores + ", memoryMb=" + _memoryMb + ", loadAverage=" + _loadAverage + ", freeDiskMb=" + _freeDiskMb + '}';
+    }
+}
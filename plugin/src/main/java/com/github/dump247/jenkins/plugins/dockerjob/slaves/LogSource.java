@@ -0,0 +1,36 @@
+package com.github.dump247.jenkins.plugins.dockerjob.slaves;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Launch messages of a slave, read without blocking.
+ */
+public interface LogSource {
+    /**
+     * Copy the bytes that are available now, without waiting for more.
+     *
+     * @return number of bytes copied, or -1 once the source has ended and all bytes were read
+     */
+    int read(byte[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * Source over a stream that reports what it has buffered in {@link InputStream#available()}.
+     * The end of the stream is not detected, so the source is read until its slave is closed.
+     */
+    final class OfStream implements LogSource {
+        private final InputStream _stream;
+
+        public OfStream(InputStream stream) {
+            _stream = checkNotNull(stream);
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int available = _stream.available();
+            return available <= 0 ? 0 : _stream.read(buffer, offset, Math.min(length, available));
+        }
+    }
+}
@@ -1,23 +1,71 @@
 package com.github.dump247.jenkins.plugins.dockerjob.slaves;
 
+import com.google.common.base.Throwables;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.Resources;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.trilead.ssh2.Connection;
 import com.trilead.ssh2.SFTPv3Client;
 import com.trilead.ssh2.SFTPv3FileHandle;
 import org.apache.tools.ant.filters.StringInputStream;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Maps.newHashMap;
 import static java.lang.String.format;
+import static java.util.logging.Level.FINE;
 import static java.util.logging.Level.WARNING;
 
 public class Sftp {
     private static final Logger LOG = Logger.getLogger(Sftp.class.getName());
 
+    /**
+     * Size of the file ranges handed to each channel by {@link #writeFiles}. The SFTP client
+     * splits each range into protocol sized write requests.
+     */
+    public static final int CHUNK_SIZE = 256 * 1024;
+
+    /**
+     * Largest data size {@link SFTPv3Client} sends in a single write request.
+     */
+    static final int MAX_WRITE_SIZE = 32768;
+
+    /**
+     * Threads shared by all uploads for the channels after the first, which runs on the calling
+     * thread. Uploads that find every thread busy still make progress on their own thread.
+     */
+    public static final int MAX_THREADS = Integer.getInteger(Sftp.class.getName() + ".maxThreads", 16);
+
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(
+            MAX_THREADS, MAX_THREADS,
+            60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactoryBuilder()
+                    .setNameFormat("docker-job-sftp-%d")
+                    .setDaemon(true)
+                    .build());
+
+    static {
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
     public static void writeString(SFTPv3Client ftp, String content, Charset charset, String path) throws IOException {
         writeFile(ftp, new StringInputStream(content, charset.name()), path);
     }
@@ -26,11 +74,127 @@ public class Sftp {
         writeFile(ftp, Resources.getResource(type, name).openStream(), path);
     }
 
+    /**
+     * Write several files over {@code channels} SFTP channels at once.
+     * <p/>
+     * {@link SFTPv3Client} waits for the acknowledgement of each write request before sending the
+     * next, so a single channel is limited to one request per round trip. Here the files are split
+     * into {@link #CHUNK_SIZE} ranges that are written in parallel over separate channels on the
+     * same connection, which keeps up to {@code channels} requests outstanding. Small files are
+     * spread across the channels as well, so independent files upload concurrently.
+     *
+     * @param files content to write, by remote path
+     */
+    public static void writeFiles(final Connection connection, Map<String, byte[]> files, int channels) throws IOException {
+        SFTPv3Client ftp = new SFTPv3Client(connection);
+
+        try {
+            // Create or truncate every file up front, so the channels only need to open them
+            for (String path : files.keySet()) {
+                ftp.closeFile(ftp.createFileTruncate(path));
+            }
+        } finally {
+            ftp.close();
+        }
+
+        writeChunks(files, channels, new ChannelFactory() {
+            @Override
+            public Channel open() throws IOException {
+                return new SftpChannel(new SFTPv3Client(connection));
+            }
+        });
+    }
+
+    /**
+     * Write existing files in {@link #CHUNK_SIZE} ranges over up to {@code channels} channels.
+     * <p/>
+     * If a channel fails, the others stop after the range they are writing, and the first error
+     * is thrown once all of them have finished.
+     */
+    static void writeChunks(Map<String, byte[]> files, int channels, final ChannelFactory channelFactory) throws IOException {
+        final ConcurrentLinkedQueue<Chunk> chunks = new ConcurrentLinkedQueue<Chunk>();
+
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            for (int offset = 0; offset < file.getValue().length; offset += CHUNK_SIZE) {
+                chunks.add(new Chunk(file.getKey(), file.getValue(), offset, Math.min(CHUNK_SIZE, file.getValue().length - offset)));
+            }
+        }
+
+        int workerCount = Math.max(1, Math.min(channels, chunks.size()));
+        List<Future<Void>> workers = newArrayList();
+        Callable<Void> worker = new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                // Skip opening a channel if the worker was queued until the other channels were done
+                if (!chunks.isEmpty()) {
+                    writeChunks(channelFactory.open(), chunks);
+                }
+
+                return null;
+            }
+        };
+
+        LOG.log(FINE, "Writing files: files={0} chunks={1} channels={2}", new Object[]{files.size(), chunks.size(), workerCount});
+
+        Throwable error = null;
+
+        try {
+            for (int i = 1; i < workerCount; i++) {
+                workers.add(EXECUTOR.submit(worker));
+            }
+
+            worker.call();
+        } catch (Throwable ex) {
+            error = ex;
+        }
+
+        for (Future<Void> future : workers) {
+            if (error != null) {
+                // Stop the other channels from taking more chunks
+                chunks.clear();
+            }
+
+            try {
+                Uninterruptibles.getUninterruptibly(future);
+            } catch (ExecutionException ex) {
+                if (error == null) {
+                    error = ex.getCause();
+                }
+            }
+        }
+
+        if (error != null) {
+            chunks.clear();
+
+            if (error instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted writing files");
+            }
+
+            Throwables.propagateIfPossible(error, IOException.class);
+            throw new IOException(error);
+        }
+    }
+
+    private static void writeChunks(Channel channel, ConcurrentLinkedQueue<Chunk> chunks) throws IOException {
+        try {
+            Chunk chunk;
+
+            while ((chunk = chunks.poll()) != null) {
+                channel.write(chunk.path, chunk.offset, chunk.data, chunk.offset, chunk.length);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
     public static void writeFile(final SFTPv3Client ftp, InputStream content, String path) throws IOException {
         final SFTPv3FileHandle handle = ftp.createFileTruncate(path);
 
         try {
-            ByteStreams.copy(content, new OutputStream() {
+            // Buffer to the largest write request the client sends, since each write waits for a
+            // round trip
+            OutputStream output = new BufferedOutputStream(new OutputStream() {
                 long offset = 0;
 
                 @Override
@@ -43,7 +207,10 @@ public class Sftp {
                     ftp.write(handle, offset, b, off, len);
                     offset += len;
                 }
-            });
+            }, MAX_WRITE_SIZE);
+
+            ByteStreams.copy(content, output);
+            output.flush();
         } finally {
             try {
                 content.close();
@@ -58,4 +225,68 @@ public class Sftp {
             }
         }
     }
+
+    interface ChannelFactory {
+        Channel open() throws IOException;
+    }
+
+    /**
+     * Writes ranges of existing remote files. Used by one thread at a time.
+     */
+    interface Channel {
+        void write(String path, long fileOffset, byte[] data, int offset, int length) throws IOException;
+
+        /**
+         * Close the files that were written and the channel.
+         */
+        void close();
+    }
+
+    private static final class SftpChannel implements Channel {
+        private final SFTPv3Client _ftp;
+        private final Map<String, SFTPv3FileHandle> _handles = newHashMap();
+
+        public SftpChannel(SFTPv3Client ftp) {
+            _ftp = ftp;
+        }
+
+        @Override
+        public void write(String path, long fileOffset, byte[] data, int offset, int length) throws IOException {
+            SFTPv3FileHandle handle = _handles.get(path);
+
+            if (handle == null) {
+                handle = _ftp.openFileRW(path);
+                _handles.put(path, handle);
+            }
+
+            _ftp.write(handle, fileOffset, data, offset, length);
+        }
+
+        @Override
+        public void close() {
+            for (Map.Entry<String, SFTPv3FileHandle> handle : _handles.entrySet()) {
+                try {
+                    _ftp.closeFile(handle.getValue());
+                } catch (IOException ex) {
+                    LOG.log(WARNING, format("Error closing remote file for %s", handle.getKey()), ex);
+                }
+            }
+
+            _ftp.close();
+        }
+    }
+
+    private static final class Chunk {
+        public final String path;
+        public final byte[] data;
+        public final int offset;
+        public final int length;
+
+        public Chunk(String path, byte[] data, int offset, int length) {
+            this.path = path;
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
 }
@@ -1,17 +1,24 @@
 package com.github.dump247.jenkins.plugins.dockerjob.slaves;
 
 import com.cloudbees.plugins.credentials.common.StandardUsernameCredentials;
-import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.CharStreams;
 import com.google.common.net.HostAndPort;
 import com.google.inject.Provider;
 import com.trilead.ssh2.ChannelCondition;
 import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.LocalStreamForwarder;
 import com.trilead.ssh2.SFTPv3Client;
 import com.trilead.ssh2.Session;
+import org.joda.time.Duration;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.StringReader;
 import java.net.URL;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -19,11 +26,9 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
-import static com.github.dump247.jenkins.plugins.dockerjob.slaves.Sftp.writeFile;
-import static com.github.dump247.jenkins.plugins.dockerjob.slaves.Sftp.writeResource;
-import static com.github.dump247.jenkins.plugins.dockerjob.slaves.Sftp.writeString;
 import static com.github.dump247.jenkins.plugins.dockerjob.slaves.Ssh.communicateSuccess;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -31,16 +36,39 @@ import static com.google.common.collect.Lists.newArrayList;
 import static java.lang.String.format;
 import static java.util.logging.Level.FINE;
 import static java.util.logging.Level.FINER;
-import static org.joda.time.Duration.standardSeconds;
+import static java.util.logging.Level.WARNING;
+import static org.joda.time.Duration.standardMinutes;
 
 /**
  * Client that connects to a slave host machine and launches slave docker containers.
  */
 public class SlaveClient {
     private static final Logger LOG = Logger.getLogger(SlaveClient.class.getName());
+    private static final String SLAVE_JAR_PATH = "/var/lib/jenkins-docker/slave/slave.jar";
+    private static final long SEED_START_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(10);
+
+    /**
+     * Time init_host.sh may take. It checks for docker and creates directories, which takes longer
+     * than a second on a loaded host. The probe deadline still bounds the whole initialization.
+     */
+    static final Duration INIT_HOST_TIMEOUT = standardMinutes(2);
+
+    /**
+     * Time listing images or reading resources may take. A hung docker daemon must not block the
+     * probe thread forever.
+     */
+    static final Duration QUERY_HOST_TIMEOUT = standardMinutes(2);
+
+    /**
+     * Time pulling an image may take. Large images on a slow registry take many minutes.
+     */
+    static final Duration PULL_IMAGE_TIMEOUT = standardMinutes(30);
 
     private final SshClient _sshClient;
     private final Map<String, Set<Integer>> _activeJobRunNumbers = new HashMap<String, Set<Integer>>();
+    private HostAgent _agent;
+    private SlaveJarDistributor _distributor;
+    private SshClient.SshSession _seedSession;
 
     public SlaveClient(HostAndPort host, Provider<StandardUsernameCredentials> credentialsProvider) {
         _sshClient = new SshClient(host, credentialsProvider);
@@ -58,15 +86,50 @@ public class SlaveClient {
         return _sshClient.sessionCount();
     }
 
+    public SshClient.PoolStats getPoolStats() {
+        return _sshClient.getStats();
+    }
+
     public void ping() throws IOException {
         _sshClient.ping();
     }
 
+    /**
+     * Measure the round trip time to the host with an SSH keepalive request on an open connection.
+     *
+     * @return round trip time in nanoseconds, or absent if no connection to the host is open
+     */
+    public Optional<Long> heartbeat() throws IOException {
+        return _sshClient.heartbeat();
+    }
+
+    /**
+     * Check if slaves launched through this client are still running.
+     */
+    public boolean hasActiveSlaves() {
+        synchronized (_activeJobRunNumbers) {
+            return !_activeJobRunNumbers.isEmpty();
+        }
+    }
+
     public void close() {
+        stopAgent();
+        stopSeedServer();
         _sshClient.close();
     }
 
     public String initialize(URL slaveJarUrl, String slaveInitScript) throws IOException {
+        return initialize(slaveJarUrl, slaveInitScript, null, null);
+    }
+
+    /**
+     * Initialize the host and upload the slave files.
+     *
+     * @param slaveJarMasterUrl URL hosts can fetch slave.jar from on the master, or null
+     * @param distributor       distributor of slave.jar among the hosts, or null to push the jar
+     *                          to the host
+     */
+    public String initialize(URL slaveJarUrl, String slaveInitScript, String slaveJarMasterUrl, SlaveJarDistributor distributor) throws IOException {
         Connection connection = null;
         SFTPv3Client ftp = null;
 
@@ -76,27 +139,75 @@ public class SlaveClient {
             connection = _sshClient.connect();
             ftp = new SFTPv3Client(connection);
 
-            writeResource(ftp, getClass(), "init_host.sh", "/var/lib/jenkins-docker/init_host.sh");
+            HostFiles files = HostFiles.open(connection, ftp);
+            files.sync(HostFiles.resource(getClass(), "init_host.sh"), "/var/lib/jenkins-docker/init_host.sh");
+            files.upload();
 
             // Run script to initialize the host (create directories, check for dependencies, etc)
             String initializeResult = communicateSuccess(
                     connection,
-                    standardSeconds(1),
+                    INIT_HOST_TIMEOUT,
                     "/bin/bash", "/var/lib/jenkins-docker/init_host.sh");
 
-            // Upload slave files
-            writeResource(ftp, getClass(), "create_slave.py", "/var/lib/jenkins-docker/create_slave.py");
-            writeResource(ftp, getClass(), "launch_slave.sh", "/var/lib/jenkins-docker/slave/launch_slave.sh");
-            writeFile(ftp, slaveJarUrl.openStream(), "/var/lib/jenkins-docker/slave/slave.jar");
+            // Upload slave files that changed since the last initialization
+            files.sync(HostFiles.resource(getClass(), "create_slave.py"), "/var/lib/jenkins-docker/create_slave.py");
+            files.sync(HostFiles.resource(getClass(), "agent.py"), "/var/lib/jenkins-docker/agent.py");
+            files.sync(HostFiles.resource(getClass(), "list_images.py"), "/var/lib/jenkins-docker/list_images.py");
+            files.sync(HostFiles.resource(getClass(), "pull_image.py"), "/var/lib/jenkins-docker/pull_image.py");
+            files.sync(HostFiles.resource(getClass(), "host_resources.sh"), "/var/lib/jenkins-docker/host_resources.sh");
+            files.sync(HostFiles.resource(getClass(), "fetch_file.py"), "/var/lib/jenkins-docker/fetch_file.py");
+            files.sync(HostFiles.resource(getClass(), "seed_server.py"), "/var/lib/jenkins-docker/seed_server.py");
+            files.sync(HostFiles.resource(getClass(), "launch_slave.sh"), "/var/lib/jenkins-docker/slave/launch_slave.sh");
 
             if (slaveInitScript.trim().length() > 0) {
                 if (slaveInitScript.charAt(slaveInitScript.length() - 1) != '\n') {
                     slaveInitScript = slaveInitScript + "\n";
                 }
 
-                writeString(ftp, slaveInitScript, Charsets.UTF_8, "/var/lib/jenkins-docker/slave/init_slave.sh");
+                files.sync(HostFiles.string(slaveInitScript), "/var/lib/jenkins-docker/slave/init_slave.sh");
+            } else {
+                files.remove("/var/lib/jenkins-docker/slave/init_slave.sh");
+            }
+
+            files.upload();
+
+            HostFiles.Content slaveJar = HostFiles.url(slaveJarUrl);
+            SlaveJarDistributor.Source seed = null;
+
+            if (distributor == null) {
+                files.sync(slaveJar, SLAVE_JAR_PATH);
+                files.upload();
+            } else if (files.isCurrent(slaveJar, SLAVE_JAR_PATH)) {
+                seed = distributor.offerSeed(getHost(), slaveJar.digest);
+            } else {
+                seed = distributeSlaveJar(connection, files, slaveJar, slaveJarMasterUrl, distributor);
+            }
+
+            try {
+                files.saveManifest();
+            } catch (IOException ex) {
+                if (seed != null) {
+                    distributor.release(seed);
+                }
+
+                throw ex;
+            }
+
+            if (seed != null) {
+                int seedPort = startSeedServer(distributor);
+
+                if (seedPort > 0) {
+                    distributor.release(seed, slaveJar.digest, seedPort);
+                } else {
+                    distributor.release(seed);
+                }
             }
 
+            LOG.log(FINE, "Initialized {0}: uploadedFiles={1} uploadedBytes={2}", new Object[]{getHost(), files.getUploadCount(), files.getUploadBytes()});
+
+            // A running agent has the old files loaded, so the next launch starts a new one
+            stopAgent();
+
             return initializeResult;
         } finally {
             if (ftp != null) {
@@ -109,6 +220,203 @@ public class SlaveClient {
         }
     }
 
+    /**
+     * Get slave.jar onto the host from the source picked by the distributor.
+     *
+     * @return source to release once the host serves the jar, if the host should become a seed
+     */
+    private SlaveJarDistributor.Source distributeSlaveJar(Connection connection, HostFiles files, HostFiles.Content slaveJar, String masterUrl, SlaveJarDistributor distributor) throws IOException {
+        SlaveJarDistributor.Source source = distributor.acquire(getHost(), slaveJar.digest, masterUrl);
+        LOG.log(FINE, "Distributing slave.jar: host={0} source={1}", new Object[]{getHost(), source});
+
+        switch (source.type) {
+            case SEED:
+            case MASTER:
+                try {
+                    List<String> command = newArrayList("python3", "/var/lib/jenkins-docker/fetch_file.py",
+                            "--sha256", slaveJar.digest,
+                            "--dest", SLAVE_JAR_PATH,
+                            source.url);
+
+                    if (masterUrl != null && !masterUrl.equals(source.url)) {
+                        command.add(masterUrl);
+                    }
+
+                    communicateSuccess(connection, standardMinutes(5), command.toArray(new String[command.size()]));
+                    files.record(slaveJar, SLAVE_JAR_PATH);
+                    return null;
+                } catch (Exception ex) {
+                    LOG.log(WARNING, format("Error fetching slave.jar, pushing it instead: host=%s source=%s", getHost(), source), ex);
+                } finally {
+                    distributor.release(source);
+                }
+
+                files.sync(slaveJar, SLAVE_JAR_PATH);
+                files.upload();
+                return null;
+
+            case PUSH_SEED:
+                try {
+                    files.sync(slaveJar, SLAVE_JAR_PATH);
+                    files.upload();
+                    return source;
+                } catch (IOException ex) {
+                    distributor.release(source);
+                    throw ex;
+                }
+
+            default:
+                files.sync(slaveJar, SLAVE_JAR_PATH);
+                files.upload();
+                return null;
+        }
+    }
+
+    /**
+     * Serve slave.jar from this host to other hosts.
+     *
+     * @return port the server listens on, or 0 if the server could not be started
+     */
+    private synchronized int startSeedServer(SlaveJarDistributor distributor) {
+        stopSeedServer();
+
+        try {
+            _seedSession = _sshClient.createSession();
+            _seedSession.execCommand(Ssh.quoteCommand("python3", "/var/lib/jenkins-docker/seed_server.py", String.valueOf(SlaveJarDistributor.SEED_PORT)));
+            int port = readSeedPort(_seedSession);
+            _distributor = distributor;
+            return port;
+        } catch (IOException ex) {
+            LOG.log(WARNING, format("Error starting slave.jar server: host=%s", getHost()), ex);
+            stopSeedServer();
+            return 0;
+        }
+    }
+
+    /**
+     * Wait for the seed server to report the port it is listening on, which it does once the bind
+     * succeeded.
+     */
+    private static int readSeedPort(SshClient.SshSession session) throws IOException {
+        long deadline = System.currentTimeMillis() + SEED_START_TIMEOUT_MS;
+        InputStream stdout = session.getStdout();
+        StringBuilder line = new StringBuilder();
+
+        while (true) {
+            long remaining = deadline - System.currentTimeMillis();
+
+            if (remaining <= 0) {
+                throw new IOException("Timed out waiting for the slave.jar server to listen");
+            }
+
+            int conditions;
+
+            try {
+                conditions = session.waitForCondition(ChannelCondition.STDOUT_DATA | ChannelCondition.EOF | ChannelCondition.CLOSED, remaining);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for the slave.jar server to listen");
+            }
+
+            if ((conditions & ChannelCondition.STDOUT_DATA) == 0) {
+                if ((conditions & (ChannelCondition.EOF | ChannelCondition.CLOSED)) != 0) {
+                    throw new IOException("slave.jar server exited before listening");
+                }
+
+                continue;
+            }
+
+            int value = stdout.read();
+
+            if (value < 0) {
+                throw new IOException("slave.jar server exited before listening");
+            } else if (value == '\n') {
+                try {
+                    return Integer.parseInt(line.toString().trim());
+                } catch (NumberFormatException ex) {
+                    throw new IOException("Invalid slave.jar server port: " + line);
+                }
+            }
+
+            line.append((char) value);
+        }
+    }
+
+    private synchronized void stopSeedServer() {
+        if (_distributor != null) {
+            _distributor.removeSeed(getHost());
+            _distributor = null;
+        }
+
+        if (_seedSession != null) {
+            _seedSession.close();
+            _seedSession = null;
+        }
+    }
+
+    /**
+     * List the docker images available locally on the host.
+     * <p/>
+     * The host must be initialized first. This also serves as a ping, since it fails if the host
+     * can not be reached.
+     *
+     * @return image IDs, tags ({@code repo:tag}), and digests ({@code repo@digest})
+     */
+    public Set<String> listImages() throws IOException {
+        ImmutableSet.Builder<String> images = ImmutableSet.builder();
+
+        for (String line : readLines("listing images", QUERY_HOST_TIMEOUT, "python3", "/var/lib/jenkins-docker/list_images.py")) {
+            if (line.trim().length() > 0) {
+                images.add(line.trim());
+            }
+        }
+
+        return images.build();
+    }
+
+    /**
+     * Pull an image onto the host. Pulls of the same image by launching slaves are shared.
+     * <p/>
+     * The host must be initialized first.
+     */
+    public void pullImage(String imageName) throws IOException {
+        readLines("pulling image", PULL_IMAGE_TIMEOUT, "python3", "/var/lib/jenkins-docker/pull_image.py", imageName);
+    }
+
+    /**
+     * Get the cores, memory, load, and free disk space of the host.
+     * <p/>
+     * The host must be initialized first.
+     */
+    public HostResources getResources() throws IOException {
+        return HostResources.parse(readLines("reading host resources", QUERY_HOST_TIMEOUT, "/bin/bash", "/var/lib/jenkins-docker/host_resources.sh"));
+    }
+
+    /**
+     * Run a command on the host and return the lines written to stdout.
+     *
+     * @throws RuntimeException if the command fails or does not finish within the timeout
+     */
+    private List<String> readLines(String description, Duration timeout, String... command) throws IOException {
+        SshClient.SshSession session = _sshClient.createSession();
+
+        try {
+            Ssh.CommunicateResult result = session.communicate(Ssh.quoteCommand(command), timeout.getMillis(), TimeUnit.MILLISECONDS);
+
+            if (result.getExitCode() == -1000) {
+                throw new RuntimeException(format("Timed out %s after %dms", description, timeout.getMillis()));
+            }
+
+            if (result.getExitCode() != 0) {
+                throw new RuntimeException(format("Error %s: exitCode=%d\n%s", description, result.getExitCode(), result.getStderr()).trim());
+            }
+
+            return CharStreams.readLines(new StringReader(result.getStdout()));
+        } finally {
+            session.close();
+        }
+    }
+
     public SlaveConnection createSlave(SlaveOptions options) throws IOException {
         String runName;
         int runNumber;
@@ -129,6 +437,12 @@ public class SlaveClient {
             runName = options.getName() + "-" + runNumber;
         }
 
+        HostAgent agent = getAgent();
+
+        if (agent != null) {
+            return createAgentSlave(agent, runName, options, runNumber);
+        }
+
         List<String> command = newArrayList("python3", "/var/lib/jenkins-docker/create_slave.py",
                 "--name", runName,
                 "--image", options.getImage());
@@ -137,6 +451,11 @@ public class SlaveClient {
             command.add("--clean");
         }
 
+        if (options.getImagePullTtlSeconds() > 0) {
+            command.add("--pull-ttl");
+            command.add(String.valueOf(options.getImagePullTtlSeconds()));
+        }
+
         for (Map.Entry<String, String> env : options.getEnvironment().entrySet()) {
             command.add("-e");
             command.add(format("%s=%s", env.getKey(), env.getValue()));
@@ -149,10 +468,16 @@ public class SlaveClient {
 
         LOG.log(FINER, "Running: {0}", command);
         String commandString = Ssh.quoteCommand(command);
-        SlaveConnection connection = new SlaveConnection(_sshClient.createSession(), options.getName(), runNumber);
+        final SshClient.SshSession session = _sshClient.createSession();
+        SlaveConnection connection = new SlaveConnection(session.getStdout(), session.getStdin(), new LogSource.OfStream(session.getStderr()), new Closeable() {
+            @Override
+            public void close() {
+                session.close();
+            }
+        }, options.getName(), runNumber);
 
         try {
-            connection._session.execCommand(commandString);
+            session.execCommand(commandString);
             return connection;
         } catch (IOException ex) {
             connection.close();
@@ -160,28 +485,113 @@ public class SlaveClient {
         }
     }
 
+    private SlaveConnection createAgentSlave(HostAgent agent, String runName, SlaveOptions options, int runNumber) throws IOException {
+        final HostAgent.Launch launch;
+        final LocalStreamForwarder forwarder;
+
+        try {
+            launch = agent.launch(runName, options);
+        } catch (IOException ex) {
+            releaseRunNumber(options.getName(), runNumber);
+            throw ex;
+        }
+
+        try {
+            forwarder = agent.forward(launch.awaitEndpoint());
+        } catch (IOException ex) {
+            launch.cancel();
+            releaseRunNumber(options.getName(), runNumber);
+            throw ex;
+        }
+
+        return new SlaveConnection(forwarder.getInputStream(), forwarder.getOutputStream(), launch.getLog(), new Closeable() {
+            @Override
+            public void close() throws IOException {
+                try {
+                    forwarder.close();
+                } finally {
+                    launch.cancel();
+                }
+            }
+        }, options.getName(), runNumber);
+    }
+
+    /**
+     * Get the running host agent, restarting it if it stopped.
+     *
+     * @return agent or null if the agent can not be started
+     */
+    private synchronized HostAgent getAgent() {
+        if (_agent != null && _agent.isRunning()) {
+            return _agent;
+        }
+
+        try {
+            _agent = HostAgent.start(_sshClient);
+            return _agent;
+        } catch (Exception ex) {
+            LOG.log(WARNING, format("Error starting host agent, launching slaves without it: host=%s", getHost()), ex);
+            _agent = null;
+            return null;
+        }
+    }
+
+    private synchronized void stopAgent() {
+        if (_agent != null) {
+            _agent.close();
+            _agent = null;
+        }
+    }
+
+    private void releaseRunNumber(String jobName, int runNumber) {
+        synchronized (_activeJobRunNumbers) {
+            Set<Integer> runNumbers = _activeJobRunNumbers.get(jobName);
+
+            if (runNumbers != null) {
+                runNumbers.remove(runNumber);
+
+                if (runNumbers.isEmpty()) {
+                    _activeJobRunNumbers.remove(jobName);
+                }
+            }
+        }
+    }
+
     public class SlaveConnection {
-        private final SshClient.SshSession _session;
+        private final InputStream _output;
+        private final OutputStream _input;
+        private final LogSource _log;
+        private final Closeable _resource;
         private final String _jobName;
         private final int _runNumber;
         private boolean _closed;
 
-        private SlaveConnection(SshClient.SshSession session, String jobName, int runNumber) {
-            _session = session;
+        private SlaveConnection(InputStream output, OutputStream input, LogSource log, Closeable resource, String jobName, int runNumber) {
+            _output = output;
+            _input = input;
+            _log = log;
+            _resource = resource;
             _jobName = jobName;
             _runNumber = runNumber;
         }
 
+        public HostAndPort getHost() {
+            return SlaveClient.this.getHost();
+        }
+
         public InputStream getOutput() {
-            return _session.getStdout();
+            return _output;
         }
 
         public OutputStream getInput() {
-            return _session.getStdin();
+            return _input;
         }
 
-        public InputStream getLog() {
-            return _session.getStderr();
+        /**
+         * Messages about the slave launch.
+         */
+        public LogSource getLog() {
+            return _log;
         }
 
         @Override
@@ -194,19 +604,13 @@ public class SlaveClient {
             if (!_closed) {
                 _closed = true;
 
-                synchronized (_activeJobRunNumbers) {
-                    Set<Integer> runNumbers = _activeJobRunNumbers.get(_jobName);
+                releaseRunNumber(_jobName, _runNumber);
 
-                    if (runNumbers != null) {
-                        runNumbers.remove(_runNumber);
-
-                        if (runNumbers.isEmpty()) {
-                            _activeJobRunNumbers.remove(_jobName);
-                        }
-                    }
+                try {
+                    _resource.close();
+                } catch (IOException ex) {
+                    LOG.log(FINER, "Error closing slave connection", ex);
                 }
-
-                _session.close();
             }
         }
     }
@@ -0,0 +1,229 @@
+package com.github.dump247.jenkins.plugins.dockerjob.slaves;
+
+import com.google.common.net.HostAndPort;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static com.google.common.collect.Maps.newHashMap;
+import static java.lang.String.format;
+import static java.util.logging.Level.FINE;
+
+/**
+ * Decides where each host gets {@code slave.jar} from when it is initialized.
+ * <p/>
+ * Pushing the jar to every host over SFTP makes a fleet-wide upgrade scale with master bandwidth.
+ * Instead, the master pushes the jar to {@link #SEED_COUNT} seed hosts, which serve it to the other
+ * hosts over HTTP. The other hosts fetch from the least busy seed, or from the master's
+ * {@code jnlpJars} URL when no seed has capacity. Each seed and the master serve at most
+ * {@link #FAN_OUT} hosts at once. Hosts verify the digest of the fetched jar, and fall back to the
+ * SFTP push if every source fails.
+ * <p/>
+ * Seed count, fan-out, and the seed HTTP port can be set with system properties named after this
+ * class with the suffixes {@code .seedCount}, {@code .fanOut}, and {@code .seedPort}. A seed port of
+ * 0 lets each seed listen on any free port.
+ */
+public class SlaveJarDistributor {
+    private static final Logger LOG = Logger.getLogger(SlaveJarDistributor.class.getName());
+    public static final int SEED_COUNT = Integer.getInteger(SlaveJarDistributor.class.getName() + ".seedCount", 3);
+    public static final int FAN_OUT = Integer.getInteger(SlaveJarDistributor.class.getName() + ".fanOut", 8);
+    public static final int SEED_PORT = Integer.getInteger(SlaveJarDistributor.class.getName() + ".seedPort", 12113);
+
+    /**
+     * Longest time a host waits for a source with capacity before it is pushed the jar. Well below
+     * the default probe timeout, so waiting does not fail the initialization of the host.
+     */
+    private static final long SOURCE_WAIT_MS = TimeUnit.SECONDS.toMillis(20);
+
+    private final Map<HostAndPort, Seed> _seeds = newHashMap();
+    private int _pendingSeeds;
+    private int _masterFetches;
+
+    /**
+     * Pick the source for a host that needs the jar. Waits for a source with capacity.
+     *
+     * @param digest    SHA-256 digest of the jar the host needs
+     * @param masterUrl jar URL on the master, or null if the master URL is not known
+     */
+    public synchronized Source acquire(HostAndPort host, String digest, String masterUrl) {
+        long deadline = System.currentTimeMillis() + SOURCE_WAIT_MS;
+
+        while (true) {
+            Seed seed = null;
+            int readySeeds = 0;
+
+            for (Seed candidate : _seeds.values()) {
+                if (candidate.digest.equals(digest) && !candidate.host.equals(host)) {
+                    readySeeds += 1;
+
+                    if (candidate.fetches < FAN_OUT && (seed == null || candidate.fetches < seed.fetches)) {
+                        seed = candidate;
+                    }
+                }
+            }
+
+            if (seed != null) {
+                seed.fetches += 1;
+                return new Source(Source.Type.SEED, seed.host, seed.getUrl());
+            }
+
+            if (readySeeds + _pendingSeeds < SEED_COUNT) {
+                _pendingSeeds += 1;
+                return new Source(Source.Type.PUSH_SEED, host, null);
+            }
+
+            if (masterUrl != null && _masterFetches < FAN_OUT) {
+                _masterFetches += 1;
+                return new Source(Source.Type.MASTER, null, masterUrl);
+            }
+
+            long remaining = deadline - System.currentTimeMillis();
+
+            if (remaining <= 0) {
+                return new Source(Source.Type.PUSH, host, null);
+            }
+
+            try {
+                wait(remaining);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return new Source(Source.Type.PUSH, host, null);
+            }
+        }
+    }
+
+    /**
+     * Offer a host that already has the jar as a seed.
+     *
+     * @return source to {@link #release} once the host serves the jar, or null if enough hosts
+     *         serve it already
+     */
+    public synchronized Source offerSeed(HostAndPort host, String digest) {
+        int readySeeds = 0;
+
+        for (Seed seed : _seeds.values()) {
+            if (seed.digest.equals(digest)) {
+                readySeeds += 1;
+            }
+        }
+
+        if (_seeds.containsKey(host) || readySeeds + _pendingSeeds >= SEED_COUNT) {
+            return null;
+        }
+
+        _pendingSeeds += 1;
+        return new Source(Source.Type.PUSH_SEED, host, null);
+    }
+
+    /**
+     * Return a source acquired with {@link #acquire} or {@link #offerSeed}, when the host did not
+     * become a seed.
+     */
+    public void release(Source source) {
+        release(source, null, 0);
+    }
+
+    /**
+     * Return a source acquired with {@link #acquire} or {@link #offerSeed}.
+     *
+     * @param seedDigest digest of the jar the host now serves, or null if the host did not become a
+     *                   seed
+     * @param seedPort   port the host serves the jar on
+     */
+    public synchronized void release(Source source, String seedDigest, int seedPort) {
+        switch (source.type) {
+            case SEED:
+                Seed seed = _seeds.get(source.host);
+
+                if (seed != null) {
+                    seed.fetches -= 1;
+                }
+                break;
+
+            case MASTER:
+                _masterFetches -= 1;
+                break;
+
+            case PUSH_SEED:
+                _pendingSeeds -= 1;
+
+                if (seedDigest != null) {
+                    LOG.log(FINE, "Host is serving slave.jar: host={0} port={1} sha256={2}", new Object[]{source.host, seedPort, seedDigest});
+                    _seeds.put(source.host, new Seed(source.host, seedPort, seedDigest));
+                }
+                break;
+
+            default:
+                break;
+        }
+
+        notifyAll();
+    }
+
+    /**
+     * Stop using a host as a seed, e.g. because its connection failed.
+     */
+    public synchronized void removeSeed(HostAndPort host) {
+        if (_seeds.remove(host) != null) {
+            LOG.log(FINE, "Host is no longer serving slave.jar: host={0}", host);
+            notifyAll();
+        }
+    }
+
+    public static final class Source {
+        public static enum Type {
+            /**
+             * Fetch from a seed host.
+             */
+            SEED,
+
+            /**
+             * Fetch from the master jnlpJars URL.
+             */
+            MASTER,
+
+            /**
+             * Push over SFTP and serve the jar to other hosts.
+             */
+            PUSH_SEED,
+
+            /**
+             * Push over SFTP.
+             */
+            PUSH
+        }
+
+        public final Type type;
+        public final HostAndPort host;
+        public final String url;
+
+        public Source(Type type, HostAndPort host, String url) {
+            this.type = type;
+            this.host = host;
+            this.url = url;
+        }
+
+        @Override
+        public String toString() {
+            return format("Source{type=%s, host=%s, url=%s}", type, host, url);
+        }
+    }
+
+    private static final class Seed {
+        public final HostAndPort host;
+        public final int port;
+        public final String digest;
+        public int fetches;
+
+        public Seed(HostAndPort host, int port, String digest) {
+            this.host = host;
+            this.port = port;
+            this.digest = digest;
+        }
+
+        public String getUrl() {
+            return format("http://%s:%d/slave.jar", host.getHostText(), port);
+        }
+    }
+}
@@ -14,6 +14,8 @@ public class SlaveOptions {
     private final String _image;
 
     private boolean _cleanEnvironment;
+    private int _imagePullTtlSeconds;
+    private boolean _tunnelRemoting;
     private Map<String, String> _environment = ImmutableMap.of();
     private List<DirectoryMapping> _directoryMappings = ImmutableList.of();
 
@@ -38,6 +40,30 @@ public class SlaveOptions {
         _cleanEnvironment = cleanEnvironment;
     }
 
+    /**
+     * Skip pulling the image if it was checked against the registry within this many seconds.
+     * Zero always pulls.
+     */
+    public int getImagePullTtlSeconds() {
+        return _imagePullTtlSeconds;
+    }
+
+    public void setImagePullTtlSeconds(int imagePullTtlSeconds) {
+        _imagePullTtlSeconds = imagePullTtlSeconds;
+    }
+
+    /**
+     * Connect to the slave jar in the container directly through SSH, instead of through a relay
+     * process on the host. Only applies to launches through the {@link HostAgent}.
+     */
+    public boolean isTunnelRemoting() {
+        return _tunnelRemoting;
+    }
+
+    public void setTunnelRemoting(boolean tunnelRemoting) {
+        _tunnelRemoting = tunnelRemoting;
+    }
+
     public Map<String, String> getEnvironment() {
         return _environment;
     }
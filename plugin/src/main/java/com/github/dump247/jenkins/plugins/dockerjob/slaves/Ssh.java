@@ -5,20 +5,19 @@ import com.cloudbees.plugins.credentials.common.StandardUsernameCredentials;
 import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
 import com.google.common.base.Charsets;
 import com.google.common.base.Throwables;
-import com.google.common.io.CharStreams;
 import com.google.common.net.HostAndPort;
 import com.trilead.ssh2.ChannelCondition;
 import com.trilead.ssh2.Connection;
 import com.trilead.ssh2.Session;
-import com.trilead.ssh2.StreamGobbler;
 import hudson.util.Secret;
 import org.joda.time.Duration;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.nio.charset.Charset;
+import java.io.InterruptedIOException;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 import static com.google.common.base.Objects.firstNonNull;
@@ -32,11 +31,19 @@ import static java.util.Arrays.asList;
  */
 public class Ssh {
     private static final Pattern REQUIRES_QUOTES = Pattern.compile("[\\s\"']");
+    private static final long EXIT_WAIT_MS = TimeUnit.SECONDS.toMillis(5);
+
+    /**
+     * Time to wait for the TCP connection, and then for the key exchange, so an unreachable or
+     * stuck host does not hold the connecting thread forever.
+     */
+    private static final int CONNECT_TIMEOUT_MS = (int) TimeUnit.SECONDS.toMillis(30);
+    private static final int KEX_TIMEOUT_MS = (int) TimeUnit.SECONDS.toMillis(60);
 
     public static Connection connect(HostAndPort host, StandardUsernameCredentials credentials) throws IOException {
         Connection connection = new Connection(host.getHostText(), host.getPortOrDefault(22));
         connection.setTCPNoDelay(true);
-        connection.connect();
+        connection.connect(null, CONNECT_TIMEOUT_MS, KEX_TIMEOUT_MS);
 
         try {
             if (credentials instanceof StandardUsernamePasswordCredentials) {
@@ -77,30 +84,110 @@ public class Ssh {
 
         try {
             session.execCommand(commandString);
+            return readOutput(session, commandString, timeout.getMillis());
+        } finally {
+            session.close();
+        }
+    }
 
-            StreamGobbler stderr = new StreamGobbler(session.getStderr());
-            StreamGobbler stdout = new StreamGobbler(session.getStdout());
+    /**
+     * Read the stdout and stderr of a command on the calling thread until it exits.
+     * <p/>
+     * Both streams are drained as data arrives, so neither fills its channel window and stalls
+     * the command, without starting a thread per stream like {@link com.trilead.ssh2.StreamGobbler}.
+     *
+     * @param timeoutMs time to wait for the command to finish, or 0 to wait until it closes its
+     *                  output
+     * @return output of the command, with exit code -1000 if it did not exit in time
+     */
+    public static CommunicateResult readOutput(final Session session, String command, long timeoutMs) throws IOException {
+        return readOutput(new CommandSession() {
+            @Override
+            public InputStream getStdout() {
+                return session.getStdout();
+            }
 
-            try {
-                session.waitForCondition(ChannelCondition.EXIT_STATUS, timeout.getMillis());
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
+            @Override
+            public InputStream getStderr() {
+                return session.getStderr();
             }
 
-            return new CommunicateResult(
-                    commandString,
-                    readAll(stdout, Charsets.UTF_8),
-                    readAll(stderr, Charsets.UTF_8),
-                    firstNonNull(session.getExitStatus(), -1000)
-            );
-        } finally {
-            session.close();
+            @Override
+            public int waitForCondition(int conditions, long timeoutMs) throws InterruptedException {
+                return session.waitForCondition(conditions, timeoutMs);
+            }
+
+            @Override
+            public Integer getExitStatus() {
+                return session.getExitStatus();
+            }
+        }, command, timeoutMs);
+    }
+
+    static CommunicateResult readOutput(CommandSession session, String command, long timeoutMs) throws IOException {
+        InputStream stdoutStream = session.getStdout();
+        InputStream stderrStream = session.getStderr();
+        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        long deadline = timeoutMs > 0 ? System.currentTimeMillis() + timeoutMs : Long.MAX_VALUE;
+
+        try {
+            while (true) {
+                if (stdoutStream.available() > 0) {
+                    stdout.write(buffer, 0, stdoutStream.read(buffer));
+                    continue;
+                }
+
+                if (stderrStream.available() > 0) {
+                    stderr.write(buffer, 0, stderrStream.read(buffer));
+                    continue;
+                }
+
+                long remaining = deadline - System.currentTimeMillis();
+
+                if (remaining <= 0) {
+                    break;
+                }
+
+                int conditions = session.waitForCondition(
+                        ChannelCondition.STDOUT_DATA | ChannelCondition.STDERR_DATA | ChannelCondition.EOF,
+                        timeoutMs > 0 ? remaining : 0);
+
+                if ((conditions & ChannelCondition.TIMEOUT) != 0) {
+                    break;
+                }
+
+                if ((conditions & (ChannelCondition.STDOUT_DATA | ChannelCondition.STDERR_DATA)) == 0
+                        && (conditions & ChannelCondition.EOF) != 0) {
+                    // Output is closed and drained, so the exit status follows shortly
+                    long exitWait = Math.min(EXIT_WAIT_MS, Math.max(1, deadline - System.currentTimeMillis()));
+                    session.waitForCondition(ChannelCondition.EXIT_STATUS, exitWait);
+                    break;
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted reading command output: " + truncate(command, 128));
         }
+
+        return new CommunicateResult(
+                command,
+                new String(stdout.toByteArray(), Charsets.UTF_8),
+                new String(stderr.toByteArray(), Charsets.UTF_8),
+                firstNonNull(session.getExitStatus(), -1000)
+        );
     }
 
     public static String communicateSuccess(Connection connection, Duration timeout, String... command) throws IOException {
-        CommunicateResult result = communicate(connection, timeout, command);
+        return checkSuccess(communicate(connection, timeout, command));
+    }
 
+    /**
+     * @return stdout of the command
+     * @throws RuntimeException if the command did not exit with 0
+     */
+    static String checkSuccess(CommunicateResult result) {
         if (result.getExitCode() != 0) {
             String message = format("Command failed: %s\nExit Code: %d\n%s", truncate(result.getCommand(), 128), result.getExitCode(), result.getStderr());
             throw new RuntimeException(message.trim());
@@ -147,9 +234,17 @@ public class Ssh {
         return result.toString();
     }
 
-    private static String readAll(InputStream stream, Charset charset) throws IOException {
-        InputStreamReader reader = new InputStreamReader(stream, charset);
-        return CharStreams.toString(reader);
+    /**
+     * The parts of {@link Session} that {@link #readOutput} uses.
+     */
+    interface CommandSession {
+        InputStream getStdout();
+
+        InputStream getStderr();
+
+        int waitForCondition(int conditions, long timeoutMs) throws InterruptedException;
+
+        Integer getExitStatus();
     }
 
     public static class CommunicateResult {
@@ -3,50 +3,131 @@ package com.github.dump247.jenkins.plugins.dockerjob.slaves;
 import com.cloudbees.plugins.credentials.common.StandardUsernameCredentials;
 import com.google.common.base.Optional;
 import com.google.common.net.HostAndPort;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Provider;
 import com.trilead.ssh2.ChannelCondition;
 import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.ConnectionMonitor;
+import com.trilead.ssh2.LocalStreamForwarder;
 import com.trilead.ssh2.Session;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
-import static com.google.common.collect.Lists.newArrayList;
+import static java.lang.String.format;
 import static java.util.logging.Level.FINE;
 import static java.util.logging.Level.FINER;
 
 /**
  * Manages connections and sessions to an SSH server.
+ * <p/>
+ * Connections are pooled, and each carries up to a limit of sessions. Session counts are atomic
+ * per connection, so opening and closing sessions does not take a lock, and a connection is
+ * picked without blocking other callers. The session limit starts at the configured value (the
+ * {@code com.github.dump247.jenkins.plugins.dockerjob.slaves.SshClient.maxSessions} system
+ * property by default) and is lowered automatically if the server refuses a session below it
+ * (e.g. {@code MaxSessions} in sshd). A lowered limit is raised back after
+ * {@link #LIMIT_RETRY_MS}, in case the refusal was temporary. When the free capacity of the pool
+ * drops below half a connection, a spare connection is opened in the background, so callers
+ * rarely wait on a TCP and SSH handshake. Connections that have had no sessions for {@link #IDLE_TIMEOUT_MS} are closed,
+ * keeping one spare. A lost connection leaves the pool as soon as trilead reports it.
+ * <p/>
+ * Each connection has a receive thread on the master, so sessions are packed onto as few
+ * connections as the server allows. The default limit matches the sshd {@code MaxSessions}
+ * default of 10.
  */
 public class SshClient {
-    public static final int DEFAULT_MAX_SESSIONS = 5;
+    public static final int DEFAULT_MAX_SESSIONS = Integer.getInteger(SshClient.class.getName() + ".maxSessions", 10);
     private static final Logger LOG = Logger.getLogger(SshClient.class.getName());
+    static final long IDLE_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(5);
+    static final long LIMIT_RETRY_MS = TimeUnit.MINUTES.toMillis(10);
+    private static final int MAX_WARMING = 4;
+
+    /**
+     * Runs the idle eviction of every client. Eviction only closes connections, so one thread is
+     * enough.
+     */
+    private static final ScheduledExecutorService EXECUTOR = Executors.newScheduledThreadPool(
+            1,
+            new ThreadFactoryBuilder()
+                    .setNameFormat("docker-job-ssh-%d")
+                    .setDaemon(true)
+                    .build());
+
+    /**
+     * Opens spare connections in the background. Each client warms at most one connection at a
+     * time, and {@link Ssh#connect} times out, so a host that hangs the handshake holds one thread
+     * for a bounded time and does not delay the warm-up or eviction of the other hosts.
+     */
+    private static final ThreadPoolExecutor WARM_EXECUTOR = new ThreadPoolExecutor(
+            MAX_WARMING, MAX_WARMING,
+            60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactoryBuilder()
+                    .setNameFormat("docker-job-ssh-warm-%d")
+                    .setDaemon(true)
+                    .build());
+
+    static {
+        WARM_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
 
     private final HostAndPort _host;
     private final Provider<StandardUsernameCredentials> _credentialsProvider;
+    private final ConnectionFactory _connectionFactory;
 
     /**
      * Maximum number of sessions to open on a connection before creating a new connection.
      */
-    private final int _maxSessions;
-
-    private List<SessionCount> _connections = newArrayList();
+    private final AtomicInteger _maxSessions;
+    private final int _configuredMaxSessions;
+    private volatile long _maxSessionsLowered;
+
+    private final List<PooledConnection> _connections = new CopyOnWriteArrayList<PooledConnection>();
+    private final Object _connectLock = new Object();
+    private final AtomicBoolean _warming = new AtomicBoolean();
+    private final AtomicLong _connectionsOpened = new AtomicLong();
+    private final AtomicLong _connectionsWarmed = new AtomicLong();
+    private final AtomicLong _connectionsEvicted = new AtomicLong();
+    private final AtomicLong _connectWaits = new AtomicLong();
+    private final AtomicLong _sessionsOpened = new AtomicLong();
+    private volatile boolean _closed;
+    private ScheduledFuture<?> _evictTask;
 
     public SshClient(HostAndPort host, Provider<StandardUsernameCredentials> credentialsProvider) {
         this(host, credentialsProvider, DEFAULT_MAX_SESSIONS);
     }
 
-    public SshClient(HostAndPort host, Provider<StandardUsernameCredentials> credentialsProvider, int maxSessions) {
+    public SshClient(final HostAndPort host, final Provider<StandardUsernameCredentials> credentialsProvider, int maxSessions) {
+        this(host, credentialsProvider, maxSessions, new ConnectionFactory() {
+            @Override
+            public Connection connect() throws IOException {
+                return Ssh.connect(host, credentialsProvider.get());
+            }
+        });
+    }
+
+    SshClient(HostAndPort host, Provider<StandardUsernameCredentials> credentialsProvider, int maxSessions, ConnectionFactory connectionFactory) {
         _host = checkNotNull(host);
         _credentialsProvider = checkNotNull(credentialsProvider);
-        _maxSessions = maxSessions;
+        _connectionFactory = checkNotNull(connectionFactory);
+        _maxSessions = new AtomicInteger(maxSessions);
+        _configuredMaxSessions = maxSessions;
 
         checkArgument(maxSessions > 0);
     }
@@ -58,111 +139,382 @@ public class SshClient {
     /**
      * Total number of open SSH sessions.
      */
-    public synchronized int sessionCount() {
+    public int sessionCount() {
         int total = 0;
 
-        for (SessionCount connection : _connections) {
-            total += connection.sessionCount;
+        for (PooledConnection connection : _connections) {
+            total += Math.max(0, connection.sessions.get());
         }
 
         return total;
     }
 
+    /**
+     * Current connection pool statistics.
+     */
+    public PoolStats getStats() {
+        int connections = 0;
+        int idleConnections = 0;
+        int sessions = 0;
+
+        for (PooledConnection connection : _connections) {
+            int count = connection.sessions.get();
+
+            if (count >= 0) {
+                connections += 1;
+                sessions += count;
+
+                if (count == 0) {
+                    idleConnections += 1;
+                }
+            }
+        }
+
+        return new PoolStats(connections, idleConnections, sessions, maxSessions(),
+                _connectionsOpened.get(), _connectionsWarmed.get(), _connectionsEvicted.get(),
+                _connectWaits.get(), _sessionsOpened.get());
+    }
+
     /**
      * Test the connection to the SSH server.
      */
     public void ping() throws IOException {
-        String commandString = Ssh.quoteCommand("true");
-        SshSession session = createSession();
+        keepalive(true);
+    }
 
-        try {
-            session.execCommand(commandString);
+    /**
+     * Send a keepalive request on a pooled connection and wait for the server to answer. This is
+     * handled by the SSH server itself, so it does not open a channel or start a process on the
+     * host. No connection is opened, so a heartbeat never waits on a connect.
+     *
+     * @return round trip time in nanoseconds, or absent if the pool has no connection
+     */
+    public Optional<Long> heartbeat() throws IOException {
+        return keepalive(false);
+    }
+
+    private Optional<Long> keepalive(boolean connect) throws IOException {
+        PooledConnection selected = null;
+
+        // Prefer the busiest connection, which is not about to be evicted. The reservation keeps it
+        // from being evicted while the request is outstanding.
+        while (selected == null) {
+            PooledConnection busiest = null;
 
-            if (session.waitForExit(5, TimeUnit.SECONDS).or(Integer.MIN_VALUE) != 0) {
-                throw new RuntimeException("Unknown error pinging host");
+            for (PooledConnection connection : _connections) {
+                if (connection.sessions.get() >= 0 && (busiest == null || connection.sessions.get() > busiest.sessions.get())) {
+                    busiest = connection;
+                }
             }
-        } catch (InterruptedException ex) {
-            Thread.currentThread().interrupt();
+
+            if (busiest == null) {
+                if (!connect) {
+                    return Optional.absent();
+                }
+
+                synchronized (_connectLock) {
+                    busiest = openConnection();
+                }
+            }
+
+            if (busiest.tryReserve(Integer.MAX_VALUE)) {
+                selected = busiest;
+            }
+        }
+
+        try {
+            long start = System.nanoTime();
+            selected.connection.ping();
+            return Optional.of(System.nanoTime() - start);
+        } catch (IOException ex) {
+            evict(selected);
+            throw ex;
         } finally {
-            closeSession(session);
+            selected.release();
         }
     }
 
     public Connection connect() throws IOException {
-        return Ssh.connect(_host, _credentialsProvider.get());
+        return _connectionFactory.connect();
     }
 
     public Provider<StandardUsernameCredentials> getCredentialsProvider() {
         return _credentialsProvider;
     }
 
-    public synchronized void close() {
-        for (SessionCount count : _connections) {
-            count.connection.close();
+    public void close() {
+        _closed = true;
+
+        synchronized (_connectLock) {
+            if (_evictTask != null) {
+                _evictTask.cancel(false);
+                _evictTask = null;
+            }
+        }
+
+        for (PooledConnection connection : _connections) {
+            connection.sessions.set(-1);
+            connection.connection.close();
         }
 
         _connections.clear();
     }
 
-    public synchronized SshSession createSession() throws IOException {
-        SessionCount selected = null;
+    public SshSession createSession() throws IOException {
+        while (true) {
+            PooledConnection selected = reserveConnection();
+            LOG.log(FINER, "Opening session to {0}", _host);
+
+            try {
+                Session session = selected.connection.openSession();
+                _sessionsOpened.incrementAndGet();
+                return new SshSession(selected, session);
+            } catch (IOException ex) {
+                int otherSessions = selected.release() - 1;
+
+                if (otherSessions > 0 && isSessionRefused(ex)) {
+                    // The server refused a session on a connection that has others open, so its
+                    // limit is lower than ours
+                    LOG.log(FINE, "Server refused session, lowering sessions per connection: host={0} limit={1}", new Object[]{_host, otherSessions});
+                    lowerMaxSessions(otherSessions);
+                } else {
+                    if (otherSessions <= 0) {
+                        evict(selected);
+                    }
+
+                    throw ex;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reserve a session on a pooled connection, opening a connection if every one is full, and
+     * start warming a spare connection if capacity runs low.
+     */
+    PooledConnection reserveConnection() throws IOException {
+        PooledConnection selected = reserveSession();
+
+        while (selected == null) {
+            // Every connection is full. Open one on this thread, unless another thread opened
+            // one while this one waited for the lock.
+            synchronized (_connectLock) {
+                selected = reserveSession();
+
+                if (selected == null) {
+                    _connectWaits.incrementAndGet();
+                    PooledConnection opened = openConnection();
+
+                    if (opened.tryReserve(maxSessions())) {
+                        selected = opened;
+                    }
+                }
+            }
+        }
+
+        warmIfNeeded();
+        return selected;
+    }
+
+    /**
+     * Reserve a session on the connection with the most sessions that still has room. This packs
+     * sessions onto as few connections as possible, so the rest can go idle and be evicted.
+     */
+    private PooledConnection reserveSession() {
+        int limit = maxSessions();
+
+        while (true) {
+            PooledConnection selected = null;
+            int selectedCount = -1;
 
-        // Find connection with most sessions, but still less than max. This maximizes the number
-        // of sessions per connection to minimize open connections.
-        for (SessionCount count : _connections) {
-            if (count.sessionCount < _maxSessions) {
-                if (selected == null || selected.sessionCount < count.sessionCount) {
-                    selected = count;
+            for (PooledConnection connection : _connections) {
+                int count = connection.sessions.get();
+
+                if (count >= 0 && count < limit && count > selectedCount) {
+                    selected = connection;
+                    selectedCount = count;
                 }
             }
+
+            if (selected == null) {
+                return null;
+            }
+
+            if (selected.tryReserve(limit)) {
+                return selected;
+            }
         }
+    }
 
-        if (selected == null) {
-            LOG.log(FINE, "Opening connection to {0}", _host);
-            selected = new SessionCount(connect());
-            _connections.add(selected);
+    private PooledConnection openConnection() throws IOException {
+        if (_closed) {
+            throw new IOException("SSH client is closed");
         }
 
-        LOG.log(FINER, "Opening session to {0}", _host);
-        Session session = selected.connection.openSession();
-        selected.sessionCount += 1;
-        return new SshSession(selected.connection, session);
+        LOG.log(FINE, "Opening connection to {0}", _host);
+        final PooledConnection connection = new PooledConnection(connect());
+
+        // Drop the connection from the pool as soon as it is lost, rather than when the next
+        // session or keepalive on it fails
+        connection.connection.addConnectionMonitor(new ConnectionMonitor() {
+            @Override
+            public void connectionLost(Throwable reason) {
+                evict(connection);
+            }
+        });
+
+        _connections.add(connection);
+        _connectionsOpened.incrementAndGet();
+        startEviction();
+        return connection;
     }
 
-    private synchronized void closeSession(SshSession session) {
-        int emptyConnections = 0;
+    private void lowerMaxSessions(int limit) {
+        while (true) {
+            int current = _maxSessions.get();
 
-        LOG.log(FINER, "Closing session to {0}", _host);
-        session._session.close();
+            if (limit >= current) {
+                return;
+            }
+
+            if (_maxSessions.compareAndSet(current, limit)) {
+                _maxSessionsLowered = System.currentTimeMillis();
+                return;
+            }
+        }
+    }
 
-        Iterator<SessionCount> iter = _connections.iterator();
-        while (iter.hasNext()) {
-            SessionCount count = iter.next();
+    private int maxSessions() {
+        return maxSessions(System.currentTimeMillis());
+    }
+
+    /**
+     * Sessions per connection, raised back to the configured limit once it has been lowered for
+     * {@link #LIMIT_RETRY_MS}. If the server still refuses, the next refusal lowers it again.
+     */
+    int maxSessions(long now) {
+        int limit = _maxSessions.get();
+
+        if (limit < _configuredMaxSessions && now - _maxSessionsLowered >= LIMIT_RETRY_MS
+                && _maxSessions.compareAndSet(limit, _configuredMaxSessions)) {
+            LOG.log(FINE, "Restoring sessions per connection: host={0} limit={1}", new Object[]{_host, _configuredMaxSessions});
+            return _configuredMaxSessions;
+        }
+
+        return _maxSessions.get();
+    }
+
+    /**
+     * Whether opening a session failed because the server refused the channel, as sshd does
+     * above {@code MaxSessions}, rather than because the connection failed.
+     */
+    static boolean isSessionRefused(IOException ex) {
+        for (Throwable cause = ex; cause != null; cause = cause.getCause()) {
+            String message = cause.getMessage();
+
+            if (message != null && (message.contains("ADMINISTRATIVELY_PROHIBITED") || message.contains("open failed"))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Open a spare connection in the background if less than half a connection of session
+     * capacity is left.
+     */
+    private void warmIfNeeded() {
+        int limit = maxSessions();
+        int free = 0;
 
-            if (count.connection == session._connection) {
-                count.sessionCount -= 1;
+        for (PooledConnection connection : _connections) {
+            int count = connection.sessions.get();
+
+            if (count >= 0) {
+                free += Math.max(0, limit - count);
             }
+        }
 
-            // Close the second connection that has no active sessions and any empty connection
-            // after that. Keep one connection with no sessions for additional capacity.
-            if (count.sessionCount == 0) {
-                emptyConnections += 1;
+        if (free * 2 >= limit || _closed || !_warming.compareAndSet(false, true)) {
+            return;
+        }
 
-                if (emptyConnections > 1) {
-                    LOG.log(FINE, "Closing connection to {0}", _host);
-                    count.connection.close();
-                    iter.remove();
+        WARM_EXECUTOR.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    synchronized (_connectLock) {
+                        openConnection();
+                        _connectionsWarmed.incrementAndGet();
+                    }
+                } catch (Throwable ex) {
+                    LOG.log(FINE, "Error opening spare connection to " + _host, ex);
+                } finally {
+                    _warming.set(false);
                 }
             }
+        });
+    }
+
+    private void startEviction() {
+        if (_evictTask == null) {
+            _evictTask = EXECUTOR.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    evictIdle(System.currentTimeMillis());
+                }
+            }, IDLE_TIMEOUT_MS, IDLE_TIMEOUT_MS / 5, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Close connections that have had no sessions for the idle timeout, keeping one spare.
+     */
+    void evictIdle(long now) {
+        long idleBefore = now - IDLE_TIMEOUT_MS;
+        boolean spareKept = false;
+
+        for (PooledConnection connection : _connections) {
+            if (connection.sessions.get() != 0) {
+                continue;
+            }
+
+            if (!spareKept) {
+                spareKept = true;
+                continue;
+            }
+
+            // Marking the connection closed fails if a session was reserved on it meanwhile
+            if (connection.lastUsed < idleBefore && connection.sessions.compareAndSet(0, -1)) {
+                LOG.log(FINE, "Closing idle connection to {0}", _host);
+                _connections.remove(connection);
+                _connectionsEvicted.incrementAndGet();
+                connection.connection.close();
+            }
+        }
+    }
+
+    private void evict(PooledConnection connection) {
+        if (_connections.remove(connection)) {
+            LOG.log(FINE, "Closing failed connection to {0}", _host);
+            connection.sessions.set(-1);
+            connection.connection.close();
         }
     }
 
+    private void closeSession(SshSession session) {
+        LOG.log(FINER, "Closing session to {0}", _host);
+        session._session.close();
+        session._connection.release();
+    }
+
     public final class SshSession {
         private final Session _session;
-        private final Connection _connection;
+        private final PooledConnection _connection;
         private boolean _closed;
 
-        public SshSession(Connection connection, Session session) {
+        private SshSession(PooledConnection connection, Session session) {
             _connection = connection;
             _session = session;
         }
@@ -192,22 +544,130 @@ public class SshClient {
             }
         }
 
+        /**
+         * Open a TCP connection from the SSH server to a host and port, over the same connection
+         * as this session.
+         */
+        public LocalStreamForwarder forward(String host, int port) throws IOException {
+            return _connection.connection.createLocalStreamForwarder(host, port);
+        }
+
         public void execCommand(String cmd) throws IOException {
             _session.execCommand(cmd);
         }
 
+        /**
+         * Run a command and read its output on the calling thread.
+         *
+         * @see Ssh#readOutput(Session, String, long)
+         */
+        public Ssh.CommunicateResult communicate(String cmd, long timeout, TimeUnit timeoutUnit) throws IOException {
+            _session.execCommand(cmd);
+            return Ssh.readOutput(_session, cmd, timeoutUnit.toMillis(timeout));
+        }
+
+        /**
+         * @see Session#waitForCondition(int, long)
+         */
+        public int waitForCondition(int conditions, long timeoutMs) throws InterruptedException {
+            return _session.waitForCondition(conditions, timeoutMs);
+        }
+
         public Optional<Integer> waitForExit(long timeout, TimeUnit timeoutUnit) throws InterruptedException {
             _session.waitForCondition(ChannelCondition.EXIT_STATUS, timeoutUnit.toMillis(timeout));
             return Optional.fromNullable(_session.getExitStatus());
         }
     }
 
-    private static class SessionCount {
+    /**
+     * Snapshot of the connection pool of a client.
+     */
+    public static final class PoolStats {
+        public final int connections;
+        public final int idleConnections;
+        public final int sessions;
+        public final int maxSessionsPerConnection;
+        public final long connectionsOpened;
+        public final long connectionsWarmed;
+        public final long connectionsEvicted;
+
+        /**
+         * Number of times a caller had to wait for a new connection because the pool was full.
+         */
+        public final long connectWaits;
+        public final long sessionsOpened;
+
+        public PoolStats(int connections, int idleConnections, int sessions, int maxSessionsPerConnection,
+                         long connectionsOpened, long connectionsWarmed, long connectionsEvicted,
+                         long connectWaits, long sessionsOpened) {
+            this.connections = connections;
+            this.idleConnections = idleConnections;
+            this.sessions = sessions;
+            this.maxSessionsPerConnection = maxSessionsPerConnection;
+            this.connectionsOpened = connectionsOpened;
+            this.connectionsWarmed = connectionsWarmed;
+            this.connectionsEvicted = connectionsEvicted;
+            this.connectWaits = connectWaits;
+            this.sessionsOpened = sessionsOpened;
+        }
+
+        @Override
+        public String toString() {
+            return format("PoolStats{connections=%d, idleConnections=%d, sessions=%d, maxSessionsPerConnection=%d, " +
+                            "connectionsOpened=%d, connectionsWarmed=%d, connectionsEvicted=%d, connectWaits=%d, sessionsOpened=%d}",
+                    connections, idleConnections, sessions, maxSessionsPerConnection,
+                    connectionsOpened, connectionsWarmed, connectionsEvicted, connectWaits, sessionsOpened);
+        }
+    }
+
+    /**
+     * Opens an authenticated connection to the SSH server.
+     */
+    interface ConnectionFactory {
+        Connection connect() throws IOException;
+    }
+
+    static class PooledConnection {
         public final Connection connection;
-        public int sessionCount;
 
-        public SessionCount(Connection connection) {
+        /**
+         * Open sessions, or -1 once the connection is closed.
+         */
+        public final AtomicInteger sessions = new AtomicInteger();
+        public volatile long lastUsed = System.currentTimeMillis();
+
+        public PooledConnection(Connection connection) {
             this.connection = connection;
         }
+
+        public boolean tryReserve(int limit) {
+            while (true) {
+                int count = sessions.get();
+
+                if (count < 0 || count >= limit) {
+                    return false;
+                }
+
+                if (sessions.compareAndSet(count, count + 1)) {
+                    lastUsed = System.currentTimeMillis();
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * @return number of sessions before the release
+         */
+        public int release() {
+            lastUsed = System.currentTimeMillis();
+
+            while (true) {
+                int count = sessions.get();
+
+                if (count <= 0 || sessions.compareAndSet(count, count - 1)) {
+                    return count;
+                }
+            }
+        }
     }
 }
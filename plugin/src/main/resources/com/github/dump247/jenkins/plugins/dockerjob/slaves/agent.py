@@ -0,0 +1,429 @@
+#
+# Long running agent that launches Jenkins slave containers on the host. The agent is started once
+# per host connection and reuses one python interpreter and docker client for every launch.
+#
+# Requests are read from standard input and events are written to standard output. Each message
+# is a JSON object preceded by its length as a 4 byte big endian integer. Every request has an
+# "id" and every event carries the id of the request it belongs to, so many requests can be in
+# flight at once.
+#
+# Requests:
+#   {"id": 1, "op": "launch", "name": "job", "image": "ubuntu", "clean": false,
+#    "environment": ["A=B"], "volumes": ["/host:/container:ro"], "pullTtl": 300,
+#    "transport": "relay", "logWindow": 64}
+#   {"id": 2, "op": "cancel", "launch": 1}
+#   {"id": 5, "op": "credit", "launch": 1, "count": 32}  no response
+#   {"id": 3, "op": "kill", "container": "job"}
+#   {"id": 4, "op": "inspect", "container": "job"}
+#
+# Events:
+#   {"id": 1, "event": "listening", "host": "127.0.0.1", "port": 40001}
+#                                                   launch: connect here for the slave channel
+#   {"id": 1, "event": "log", "message": "..."}     launch: progress message
+#   {"id": 1, "event": "started", "container": "..."}
+#   {"id": 1, "event": "exited"}                    launch: container stopped, no more events
+#   {"id": 3, "event": "result", ...}               kill and inspect results
+#   {"id": 1, "event": "error", "message": "..."}   request failed, no more events
+#
+# A launch sends at most "logWindow" log events beyond those the master has credited back. Log
+# messages that do not fit, such as a flood of pull progress, are counted and the count is sent
+# once the master has room, so neither side buffers without bound.
+#
+# The master connects to the "listening" address through the SSH connection. With the "relay"
+# transport, the address is a loopback port and the agent relays that connection to the slave jar
+# in the container. With the "tunnel" transport, the slave jar listens in the container and the
+# address is the container's own, so slave channel data does not pass through the agent at all.
+#
+# See HostAgent
+#
+
+import sys
+import os
+import json
+import socket
+import struct
+import threading
+import time
+
+import create_slave
+from create_slave import message
+
+LENGTH = struct.Struct('>I')
+MASTER_CONNECT_TIMEOUT = 60.0
+SLAVE_LISTEN_TIMEOUT = 120.0
+
+
+class Agent(object):
+    def __init__(self, install_dir):
+        self.install_dir = install_dir
+        self.slave_config = create_slave.read_slave_config(install_dir)
+        self.docker_client = create_slave.create_docker_client()
+        self.output_lock = threading.Lock()
+        self.launches = {}
+        self.launches_lock = threading.Lock()
+
+    def send(self, request_id, event, **values):
+        values['id'] = request_id
+        values['event'] = event
+        data = json.dumps(values).encode('utf-8')
+
+        with self.output_lock:
+            sys.stdout.buffer.write(LENGTH.pack(len(data)))
+            sys.stdout.buffer.write(data)
+            sys.stdout.buffer.flush()
+
+    def run(self):
+        try:
+            while True:
+                request = read_message(sys.stdin.buffer)
+
+                if request is None:
+                    break
+
+                handler = getattr(self, 'op_' + request.get('op', ''), None)
+
+                if handler is None:
+                    self.send(request.get('id'), 'error', message='Unknown op: {}'.format(request.get('op')))
+                else:
+                    th = threading.Thread(target=self.handle, args=(handler, request))
+                    th.daemon = True
+                    th.start()
+        finally:
+            # The master is gone, so nothing can use the slaves anymore
+            with self.launches_lock:
+                launches = list(self.launches.values())
+
+            for launch in launches:
+                launch.cancel()
+
+    def handle(self, handler, request):
+        try:
+            handler(request)
+        except Exception as ex:
+            self.send(request['id'], 'error', message='{}: {}'.format(type(ex).__name__, ex))
+
+    def op_launch(self, request):
+        launch = Launch(self, request)
+
+        with self.launches_lock:
+            self.launches[request['id']] = launch
+
+        try:
+            launch.run()
+        finally:
+            with self.launches_lock:
+                del self.launches[request['id']]
+
+    def op_credit(self, request):
+        with self.launches_lock:
+            launch = self.launches.get(request['launch'])
+
+        if launch is not None:
+            launch.add_log_credits(request['count'])
+
+    def op_cancel(self, request):
+        with self.launches_lock:
+            launch = self.launches.get(request['launch'])
+
+        if launch is not None:
+            launch.cancel()
+
+        self.send(request['id'], 'result', cancelled=launch is not None)
+
+    def op_kill(self, request):
+        self.docker_client.kill(request['container'])
+        self.send(request['id'], 'result', container=request['container'])
+
+    def op_inspect(self, request):
+        container = create_slave.find_job_container(self.docker_client, request['container'])
+
+        if container is None:
+            self.send(request['id'], 'result', container=request['container'], exists=False)
+        else:
+            state = container.get('State') or {}
+            self.send(request['id'], 'result',
+                      container=request['container'],
+                      exists=True,
+                      id=container['Id'],
+                      image=container['Image'],
+                      running=state.get('Running', False),
+                      exitCode=state.get('ExitCode'))
+
+
+class Launch(object):
+    def __init__(self, agent, request):
+        self.agent = agent
+        self.request = request
+        self.cancelled = threading.Event()
+        self.sockets = []
+        self.container_id = None
+        self.log_lock = threading.Lock()
+        self.log_credits = request.get('logWindow')
+        self.skipped_logs = 0
+
+    def log(self, value):
+        with self.log_lock:
+            if self.log_credits is not None:
+                if self.log_credits <= 0:
+                    self.skipped_logs += 1
+                    return
+
+                self.log_credits -= 1
+
+            if self.skipped_logs > 0:
+                value = '({} messages skipped)\n{}'.format(self.skipped_logs, value)
+                self.skipped_logs = 0
+
+            # Sent under the lock so messages stay in order
+            self.agent.send(self.request['id'], 'log', message=value)
+
+    def add_log_credits(self, count):
+        with self.log_lock:
+            if self.log_credits is not None:
+                self.log_credits += count
+
+    def flush_log(self):
+        with self.log_lock:
+            if self.skipped_logs > 0:
+                self.agent.send(self.request['id'], 'log',
+                                message='({} messages skipped)'.format(self.skipped_logs))
+                self.skipped_logs = 0
+
+    def cancel(self):
+        self.cancelled.set()
+
+        for sock in list(self.sockets):
+            sock.close()
+
+        # A tunnelled launch waits for the container to exit
+        if self.container_id is not None:
+            try:
+                self.agent.docker_client.kill(self.container_id)
+            except Exception:
+                pass
+
+    def track(self, sock):
+        self.sockets.append(sock)
+
+        if self.cancelled.is_set():
+            sock.close()
+
+        return sock
+
+    def run(self):
+        try:
+            self.launch()
+        finally:
+            for sock in self.sockets:
+                sock.close()
+
+    def launch(self):
+        request = self.request
+        agent = self.agent
+        docker_client = agent.docker_client
+        tunnel = request.get('transport') == 'tunnel'
+        master_server = None
+        slave_server = None
+
+        if not tunnel:
+            # Listen for the master before doing anything slow so it can connect while the image
+            # is pulled and the container starts
+            master_server = self.track(socket.socket(socket.AF_INET, socket.SOCK_STREAM))
+            master_server.bind(('127.0.0.1', 0))
+            master_server.listen(1)
+            master_server.settimeout(MASTER_CONNECT_TIMEOUT)
+            agent.send(request['id'], 'listening', host='127.0.0.1', port=master_server.getsockname()[1])
+
+            # Each launch waits for its slave on its own port, so launches do not queue on the host
+            slave_server = self.track(create_slave.create_server(agent.slave_config['CONNECT_ADDRESS']))
+
+        for env in request.get('environment') or []:
+            if not create_slave.ENV_VAR_PATTERN.match(env):
+                raise ValueError('{} is not a valid environment variable'.format(env))
+
+        start_opts = create_slave.prepare_container(
+            docker_client,
+            agent.install_dir,
+            request['name'],
+            request['image'],
+            request.get('clean', False),
+            request.get('environment') or [],
+            [create_slave.parse_volume(v) for v in request.get('volumes') or []],
+            self.log,
+            create_slave.ImagePuller(docker_client, agent.install_dir, request.get('pullTtl', 0)),
+            'tunnel' if tunnel else 'connect',
+            None if tunnel else slave_server.getsockname()[1])
+        container_id = start_opts['container']
+        run_dir = create_slave.job_run_dir(agent.install_dir, request['name'])
+
+        try:
+            if tunnel:
+                self.tunnel(start_opts, run_dir)
+                return
+
+            self.log('Starting container: {}'.format(start_opts))
+            docker_client.start(**start_opts)
+            agent.send(request['id'], 'started', container=container_id)
+
+            master, _ = master_server.accept()
+            self.track(master)
+            master_server.close()
+
+            slave, _ = slave_server.accept()
+            self.track(slave)
+            slave_server.close()
+
+            relay(master, slave)
+        finally:
+            create_slave.stop_container(docker_client, container_id, request['name'],
+                                        request.get('clean', False), self.log)
+            create_slave.remove_run_dir(run_dir)
+            self.flush_log()
+            agent.send(request['id'], 'exited')
+
+    def tunnel(self, start_opts, run_dir):
+        request = self.request
+        agent = self.agent
+        docker_client = agent.docker_client
+        container_id = start_opts['container']
+
+        self.log('Starting container: {}'.format(start_opts))
+        docker_client.start(**start_opts)
+        self.container_id = container_id
+        agent.send(request['id'], 'started', container=container_id)
+
+        if self.cancelled.is_set():
+            return
+
+        port = wait_for_slave_port(docker_client, container_id, os.path.join(run_dir, 'slave.port'),
+                                   self.cancelled)
+        address = container_address(docker_client.inspect_container(container_id))
+        agent.send(request['id'], 'listening', host=address, port=port)
+
+        # The slave jar exits when the master closes the channel, or cancel kills the container
+        docker_client.wait(container_id)
+
+
+def container_address(info):
+    """
+    Address the master can reach the slave at through the host. Only the default bridge network
+    sets NetworkSettings.IPAddress, so other networks are looked up by name.
+    """
+    if info.get('HostConfig', {}).get('NetworkMode') == 'host':
+        return '127.0.0.1'
+
+    settings = info.get('NetworkSettings') or {}
+
+    if settings.get('IPAddress'):
+        return settings['IPAddress']
+
+    for name, network in sorted((settings.get('Networks') or {}).items()):
+        if network and network.get('IPAddress'):
+            return network['IPAddress']
+
+    raise RuntimeError('Container has no IP address to tunnel to, use the relay transport: networkMode={}'.format(
+        info.get('HostConfig', {}).get('NetworkMode')))
+
+
+def wait_for_slave_port(docker_client, container_id, port_file, cancelled):
+    deadline = time.time() + SLAVE_LISTEN_TIMEOUT
+    last_value = None
+    next_check = 0
+
+    while True:
+        if cancelled.is_set():
+            raise RuntimeError('Launch cancelled')
+
+        if time.time() > deadline:
+            raise RuntimeError('Slave did not start listening within {} seconds'.format(SLAVE_LISTEN_TIMEOUT))
+
+        if time.time() >= next_check:
+            state = docker_client.inspect_container(container_id).get('State') or {}
+
+            if not state.get('Running', False):
+                raise RuntimeError('Container exited before the slave started: exitCode={}'.format(
+                    state.get('ExitCode')))
+
+            next_check = time.time() + 1.0
+
+        try:
+            with open(port_file) as f:
+                value = f.read().strip()
+        except OSError:
+            value = None
+
+        # The file is written while this polls, so only trust a value that reads the same twice
+        if value and value == last_value:
+            return int(value)
+
+        last_value = value
+        time.sleep(0.05)
+
+
+def relay(master, slave):
+    for sock in (master, slave):
+        sock.settimeout(None)
+        sock.setsockopt(socket.IPPROTO_TCP, socket.TCP_NODELAY, 1)
+
+    th = threading.Thread(target=lambda: copy_socket(master, slave))
+    th.daemon = True
+    th.start()
+
+    try:
+        copy_socket(slave, master)
+        th.join(5.0)
+    finally:
+        master.close()
+        slave.close()
+
+
+def copy_socket(source, target):
+    try:
+        while True:
+            data = source.recv(4096)
+
+            if len(data) <= 0:
+                break
+
+            target.sendall(data)
+    except OSError:
+        pass
+    finally:
+        try:
+            target.shutdown(socket.SHUT_WR)
+        except OSError:
+            pass
+
+
+def read_exactly(stream, count):
+    data = b''
+
+    while len(data) < count:
+        chunk = stream.read(count - len(data))
+
+        if not chunk:
+            return None
+
+        data += chunk
+
+    return data
+
+
+def read_message(stream):
+    header = read_exactly(stream, LENGTH.size)
+
+    if header is None:
+        return None
+
+    data = read_exactly(stream, LENGTH.unpack(header)[0])
+    return None if data is None else json.loads(data.decode('utf-8'))
+
+
+def main():
+    install_dir = os.path.dirname(os.path.abspath(__file__))
+    message('Agent started: pid={}'.format(os.getpid()))
+    Agent(install_dir).run()
+
+
+if __name__ == '__main__':
+    main()
@@ -13,6 +13,9 @@ import threading
 import re
 import os
 import hashlib
+import fcntl
+import shlex
+import shutil
 from functools import partial
 import binascii
 
@@ -26,6 +29,13 @@ INVALID_CONTAINER_ESCAPE = '_'
 INVALID_INITIAL_CONTAINER_CHAR = re.compile(r"[^a-zA-Z0-9]")
 INVALID_CONTAINER_CHARS = re.compile(r"[^a-zA-Z0-9.-]")  # _ is not here because is used as escape
 
+# Per-launch directory shared with the container. The master side writes slave.conf before the
+# container starts; in tunnel mode the slave jar writes the port it listens on to slave.port.
+CONTAINER_RUN_DIR = '/var/run/jenkins-docker'
+
+# Time for the container to start and the slave jar to connect
+SLAVE_CONNECT_TIMEOUT = 60.0
+
 
 def message(value):
     sys.stderr.write(value)
@@ -44,7 +54,7 @@ def hash_file(f):
     return hash.hexdigest()
 
 
-def pull_job_image(docker_client, name):
+def pull_job_image(docker_client, name, log=message):
     for line in docker_client.pull(name, stream=True):
         pull_msg = json.loads(line.decode('utf-8'))
 
@@ -56,9 +66,98 @@ def pull_job_image(docker_client, name):
             raise Exception(pull_msg['error'])
 
         if 'progress' in pull_msg:
-            message('{}: {}'.format(pull_msg['status'], pull_msg['progress']))
+            log('{}: {}'.format(pull_msg['status'], pull_msg['progress']))
         else:
-            message(pull_msg['status'])
+            log(pull_msg['status'])
+
+
+class ImagePuller(object):
+    """
+    Coordinates image pulls on the host, across the agent threads and create_slave processes.
+
+    Each image has a lock file and a stamp file under images/ in the install directory. The lock
+    is held for the duration of a pull, so concurrent launches of one image wait for the pull in
+    progress and skip their own pull when it completes. The stamp records when the image was last
+    checked against the registry. An image checked less than ttl seconds ago is not pulled. An
+    older image that exists locally is used as is and refreshed in the background.
+    """
+
+    def __init__(self, docker_client, install_dir, ttl=0):
+        self.docker_client = docker_client
+        self.state_dir = os.path.join(install_dir, 'images')
+        self.ttl = ttl
+
+    def ensure_image(self, name, log=message):
+        stamp_file, lock_file = self._files(name)
+        checked = self._checked_time(stamp_file)
+
+        if self.ttl > 0 and self._exists(name):
+            if time.time() - checked < self.ttl:
+                log('Image {} was checked {:.0f}s ago, not pulling'.format(name, time.time() - checked))
+            else:
+                log('Using local image {}, refreshing it in the background'.format(name))
+                th = threading.Thread(target=self._refresh, args=(name, stamp_file, lock_file))
+                th.daemon = True
+                th.start()
+
+            return
+
+        wait_start = time.time()
+
+        with open(lock_file, 'a') as lock:
+            fcntl.flock(lock, fcntl.LOCK_EX)
+
+            try:
+                # Another launch pulled the image while this one waited for the lock
+                if self._checked_time(stamp_file) >= wait_start:
+                    log('Image {} was pulled by another launch'.format(name))
+                    return
+
+                pull_job_image(self.docker_client, name, log)
+                self._touch(stamp_file)
+            finally:
+                fcntl.flock(lock, fcntl.LOCK_UN)
+
+    def _refresh(self, name, stamp_file, lock_file):
+        try:
+            with open(lock_file, 'a') as lock:
+                try:
+                    fcntl.flock(lock, fcntl.LOCK_EX | fcntl.LOCK_NB)
+                except OSError:
+                    return  # Pull already in progress
+
+                try:
+                    pull_job_image(self.docker_client, name, log=lambda value: None)
+                    self._touch(stamp_file)
+                    message('Refreshed image {}'.format(name))
+                finally:
+                    fcntl.flock(lock, fcntl.LOCK_UN)
+        except Exception as ex:
+            message('Error refreshing image {}: {}'.format(name, ex))
+
+    def _files(self, name):
+        os.makedirs(self.state_dir, exist_ok=True)
+        key = hashlib.sha256(name.encode('utf-8')).hexdigest()
+        return os.path.join(self.state_dir, key + '.stamp'), os.path.join(self.state_dir, key + '.lock')
+
+    def _exists(self, name):
+        try:
+            self.docker_client.inspect_image(name)
+            return True
+        except docker.errors.APIError:
+            return False
+
+    @staticmethod
+    def _checked_time(stamp_file):
+        try:
+            return os.path.getmtime(stamp_file)
+        except OSError:
+            return 0
+
+    @staticmethod
+    def _touch(stamp_file):
+        with open(stamp_file, 'a'):
+            os.utime(stamp_file, None)
 
 
 def find_job_container(docker_client, name):
@@ -78,16 +177,16 @@ def env_to_map(env):
     return {key: value for key, value in [entry.split('=', 2) for entry in env]}
 
 
-def container_changed(docker_client, container_info, create_opts):
+def container_changed(docker_client, container_info, create_opts, log=message):
     # Check if name of the container parent image has changed
     if create_opts['image'] != container_info['Config']['Image']:
-        message('Image name changed: expected={}, found={}'.format(
+        log('Image name changed: expected={}, found={}'.format(
             create_opts['image'], container_info['Config']['Image']))
         return True
 
     # Check if command used to launch container has changed
     if create_opts['command'] != container_info['Config']['Cmd']:
-        message('Command changed: expected={}, found={}'.format(
+        log('Command changed: expected={}, found={}'.format(
             create_opts['command'], container_info['Config']['Cmd']))
         return True
 
@@ -95,7 +194,7 @@ def container_changed(docker_client, container_info, create_opts):
     container_vols = (container_info['Config']['Volumes'] or {}).keys()
     expected_vols = set(create_opts['volumes'])
     if container_vols != expected_vols:
-        message('Volumes changed: expected={}, found={}'.format(expected_vols, container_vols))
+        log('Volumes changed: expected={}, found={}'.format(expected_vols, container_vols))
         return True
 
     # Check to see if container parent image has been modified
@@ -112,37 +211,28 @@ def container_changed(docker_client, container_info, create_opts):
     container_env = env_to_map(container_info['Config']['Env'])
 
     if len(expected_env) != len(container_env):
-        message('Environment changed: expected={}, found={}'.format(expected_env, container_env))
+        log('Environment changed: expected={}, found={}'.format(expected_env, container_env))
         return True
 
     for k, v in expected_env.items():
         if k not in container_env or v != container_env[k]:
-            message('Environment changed: expected={}, found={}'.format(
+            log('Environment changed: expected={}, found={}'.format(
                 expected_env, container_env))
             return True
 
     return False
 
 
-def create_server(address, port):
-    while True:
-        server = socket.socket(socket.AF_INET, socket.SOCK_STREAM)
-        server.setsockopt(socket.SOL_SOCKET, socket.SO_REUSEADDR, 1)
-        server.setsockopt(socket.IPPROTO_TCP, socket.TCP_NODELAY, 1)
-        server.settimeout(10.0)
-
-        try:
-            server.bind((address, port))
-            server.listen(1)
-            break
-        except OSError as ex:
-            # retry if address already in use
-            if ex.errno != 98:
-                raise
-
-            server.close()
-            time.sleep(0.25)
-
+def create_server(address):
+    """
+    Listen for the slave of one launch on an ephemeral port, so any number of launches on the host
+    can wait for their slaves at once. The port is passed to the container in the run directory.
+    """
+    server = socket.socket(socket.AF_INET, socket.SOCK_STREAM)
+    server.setsockopt(socket.IPPROTO_TCP, socket.TCP_NODELAY, 1)
+    server.settimeout(SLAVE_CONNECT_TIMEOUT)
+    server.bind((address, 0))
+    server.listen(1)
     return server
 
 
@@ -209,7 +299,10 @@ def decode_arg(value):
 
 
 def volume(value):
-    value = decode_arg(value)
+    return parse_volume(decode_arg(value))
+
+
+def parse_volume(value):
     match = VOLUME_PATTERN.match(value)
 
     if not match:
@@ -241,117 +334,191 @@ def encode_container_name(name):
     return first + INVALID_CONTAINER_CHARS.sub(lambda m: escape_container_char(m.group(0)), rest)
 
 
-def main(args):
-    parser = argparse.ArgumentParser(
-        description=('Start a new Jenkins slave in a docker container. '
-                     'Output from the slave slave jar is written to stdout and input to the slave is received on stdin. '
-                     'Messages related to managing the slave container are written to stderr.'))
-    parser.add_argument('--image',
-                        help='Docker image to launch to slave in.',
-                        required=True,
-                        type=decode_arg)
-    parser.add_argument('--name',
-                        help='Name of the job. This will become the docker container name.',
-                        required=True,
-                        type=decode_arg)
-    parser.add_argument('--clean',
-                        help=('Always create a new container. '
-                              'The default is to reuse a previous job container if it exists and '
-                              'the options are the same.'),
-                        action='store_true')
-    parser.add_argument('--env', '-e',
-                        help='Environment variable to set in the container.',
-                        metavar='NAME=VALUE',
-                        action='append',
-                        dest='environment',
-                        type=env_var,
-                        default=[])
-    parser.add_argument('--volume', '-v',
-                        help=('Bind a directory from the host machine into the job container. '
-                              'Access can be "ro" or "rw". Default is "ro".'),
-                        metavar='/host:/container[:access]',
-                        action='append',
-                        dest='volumes',
-                        type=volume,
-                        default=[])
-    options = parser.parse_args(args)
+def read_slave_config(install_dir):
+    with open(os.path.join(install_dir, 'slave', 'properties.sh')) as fh:
+        return env_to_map(fh.readlines())
 
-    install_dir = os.path.dirname(os.path.abspath(__file__))
-    slave_dir = os.path.join(install_dir, 'slave')
 
-    with open(os.path.join(slave_dir, 'properties.sh')) as fh:
-        slave_config = env_to_map(fh.readlines())
+def job_run_dir(install_dir, name):
+    return os.path.join(install_dir, 'run', encode_container_name(name))
+
+
+def prepare_run_dir(path, settings):
+    """
+    Create the run directory of a launch and write the settings for launch_slave.sh to it.
+    """
+    if not os.path.isdir(path):
+        os.makedirs(path)
+
+    # The slave may run as any user in the container
+    os.chmod(path, 0o777)
+
+    port_file = os.path.join(path, 'slave.port')
+
+    if os.path.exists(port_file):
+        os.remove(port_file)
+
+    with open(os.path.join(path, 'slave.conf'), 'w') as f:
+        for key, value in sorted(settings.items()):
+            f.write('{}={}\n'.format(key, shlex.quote(str(value))))
 
-    server_address = slave_config['CONNECT_ADDRESS']
-    server_port = int(slave_config['CONNECT_PORT'])
 
-    container_name = encode_container_name(options.name)
+def remove_run_dir(path):
+    shutil.rmtree(path, ignore_errors=True)
 
-    message(
-        'Creating slave container for job "{}" (container={})'.format(options.name, container_name))
 
+def create_docker_client():
     # TODO override docker url in configuration
     # TODO use minimum possible API version?
-    docker_client = docker.Client(base_url='unix://var/run/docker.sock', version='1.15')
+    return docker.Client(base_url='unix://var/run/docker.sock', version='1.15')
+
+
+def prepare_container(docker_client, install_dir, name, image, clean, environment, volumes, log=message,
+                      puller=None, transport='connect', connect_port=None):
+    """
+    Pull the job image and create the job container, or reuse the existing job container if
+    nothing has changed. Returns the options to start the container with.
+
+    transport is "connect" for the slave to connect to connect_port on the docker0 address, or
+    "tunnel" for the slave to listen on a port that the master connects to through SSH.
+    """
+    slave_dir = os.path.join(install_dir, 'slave')
+    container_name = encode_container_name(name)
+    run_dir = job_run_dir(install_dir, name)
+    settings = {'TRANSPORT': transport}
+
+    if connect_port is not None:
+        settings['CONNECT_PORT'] = connect_port
+
+    prepare_run_dir(run_dir, settings)
+
+    log('Creating slave container for job "{}" (container={})'.format(name, container_name))
 
     # Pull the image so we have the latest version locally
-    pull_job_image(docker_client, options.image)
+    if puller is None:
+        puller = ImagePuller(docker_client, install_dir)
+
+    puller.ensure_image(image, log)
 
     # Check if container exists or needs to be updated
     container_info = find_job_container(docker_client, container_name)
 
     create_container = True
     create_opts = {
-        'image': options.image,
+        'image': image,
         'name': container_name,
         # Include a hash of the init file in the command. The hash is not actually used by the
         # launch script, but only included to ensure the command changes when the init script
         # changes. This ensures that an init script change will cause the container to be recreated.
         'command': ['/bin/bash', install_dir + '/launch_slave.sh',
                     hash_file(slave_dir + '/init_slave.sh')],
-        'volumes': [install_dir] + [v['container'] for v in options.volumes],
-        'environment': options.environment
+        'volumes': [install_dir, CONTAINER_RUN_DIR] + [v['container'] for v in volumes],
+        'environment': environment
     }
     start_opts = {
         'container': None,  # container id; set later
         'binds': dict(
             {v['host']: {'bind': v['container'], 'ro': v['ro']}
-             for v in options.volumes},
+             for v in volumes},
             **{slave_dir: {
                 'bind': install_dir,
                 'ro': True
+            }, run_dir: {
+                'bind': CONTAINER_RUN_DIR,
+                'ro': False
             }
             })
     }
 
     if container_info is None:
-        message('No existing container found. Will create new container for job "{}"'.format(
-            options.name))
+        log('No existing container found. Will create new container for job "{}"'.format(name))
     else:
-        create_container = options.clean or \
-                           container_changed(docker_client, container_info, create_opts)
+        create_container = clean or \
+                           container_changed(docker_client, container_info, create_opts, log)
 
         if create_container:
-            message('Deleting old container {} for job "{}"'.format(
-                container_info['Id'], options.name))
+            log('Deleting old container {} for job "{}"'.format(container_info['Id'], name))
             docker_client.remove_container(container_info['Id'], v=True, force=True)
         else:
-            message('Reusing existing container {} for job "{}"'.format(
-                container_info['Id'], options.name))
+            log('Reusing existing container {} for job "{}"'.format(container_info['Id'], name))
             start_opts['container'] = container_info['Id']
 
     if create_container:
-        message('Creating container: {}'.format(create_opts))
+        log('Creating container: {}'.format(create_opts))
         create_result = docker_client.create_container(**create_opts)
         start_opts['container'] = create_result['Id']
 
         for warning in create_result.get('Warnings') or []:
-            message('Warning: {}'.format(warning))
+            log('Warning: {}'.format(warning))
     else:
         # Kill the container, if it is currently running
         docker_client.kill(start_opts['container'])
 
-    server = create_server(server_address, server_port)
+    return start_opts
+
+
+def stop_container(docker_client, container_id, name, clean, log=message):
+    if clean:
+        log('Deleting container {} for job "{}"'.format(container_id, name))
+        docker_client.remove_container(container_id, v=True, force=True)
+    else:
+        log('Stopping container {} for job "{}"'.format(container_id, name))
+        docker_client.kill(container_id)
+
+
+def main(args):
+    parser = argparse.ArgumentParser(
+        description=('Start a new Jenkins slave in a docker container. '
+                     'Output from the slave slave jar is written to stdout and input to the slave is received on stdin. '
+                     'Messages related to managing the slave container are written to stderr.'))
+    parser.add_argument('--image',
+                        help='Docker image to launch to slave in.',
+                        required=True,
+                        type=decode_arg)
+    parser.add_argument('--name',
+                        help='Name of the job. This will become the docker container name.',
+                        required=True,
+                        type=decode_arg)
+    parser.add_argument('--clean',
+                        help=('Always create a new container. '
+                              'The default is to reuse a previous job container if it exists and '
+                              'the options are the same.'),
+                        action='store_true')
+    parser.add_argument('--env', '-e',
+                        help='Environment variable to set in the container.',
+                        metavar='NAME=VALUE',
+                        action='append',
+                        dest='environment',
+                        type=env_var,
+                        default=[])
+    parser.add_argument('--volume', '-v',
+                        help=('Bind a directory from the host machine into the job container. '
+                              'Access can be "ro" or "rw". Default is "ro".'),
+                        metavar='/host:/container[:access]',
+                        action='append',
+                        dest='volumes',
+                        type=volume,
+                        default=[])
+    parser.add_argument('--pull-ttl',
+                        help=('Do not pull the image if it was checked within this many seconds. '
+                              'An older local image is used and refreshed in the background. '
+                              'The default is 0, which always pulls.'),
+                        metavar='SECONDS',
+                        dest='pull_ttl',
+                        type=int,
+                        default=0)
+    options = parser.parse_args(args)
+
+    install_dir = os.path.dirname(os.path.abspath(__file__))
+    slave_config = read_slave_config(install_dir)
+
+    server = create_server(slave_config['CONNECT_ADDRESS'])
+
+    docker_client = create_docker_client()
+    start_opts = prepare_container(docker_client, install_dir, options.name, options.image,
+                                   options.clean, options.environment, options.volumes,
+                                   puller=ImagePuller(docker_client, install_dir, options.pull_ttl),
+                                   connect_port=server.getsockname()[1])
 
     message('Starting container: {}'.format(start_opts))
     docker_client.start(**start_opts)
@@ -359,14 +526,8 @@ def main(args):
     try:
         run_server(server)
     finally:
-        if options.clean:
-            message('Deleting container {} for job "{}"'.format(
-                start_opts['container'], options.name))
-            docker_client.remove_container(start_opts['container'], v=True, force=True)
-        else:
-            message('Stopping container {} for job "{}"'.format(
-                start_opts['container'], options.name))
-            docker_client.kill(start_opts['container'])
+        stop_container(docker_client, start_opts['container'], options.name, options.clean)
+        remove_run_dir(job_run_dir(install_dir, options.name))
 
 
 if __name__ == '__main__':
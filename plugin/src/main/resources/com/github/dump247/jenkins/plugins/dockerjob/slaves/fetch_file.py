@@ -0,0 +1,57 @@
+#
+# Download a file from the first URL that works and verify its SHA-256 digest. The file is written
+# to a temporary path and renamed, so the destination is never left partially written.
+#
+# See SlaveJarDistributor
+#
+
+import sys
+import os
+import argparse
+import hashlib
+import urllib.request
+
+TIMEOUT = 30
+
+
+def fetch(url, dest, digest):
+    temp = dest + '.fetch'
+    hash = hashlib.sha256()
+
+    with urllib.request.urlopen(url, timeout=TIMEOUT) as response, open(temp, 'wb') as fh:
+        while True:
+            data = response.read(65536)
+
+            if not data:
+                break
+
+            hash.update(data)
+            fh.write(data)
+
+    if hash.hexdigest() != digest:
+        os.remove(temp)
+        raise ValueError('Digest mismatch: expected={} actual={}'.format(digest, hash.hexdigest()))
+
+    os.rename(temp, dest)
+
+
+def main(args):
+    parser = argparse.ArgumentParser(description='Download a file and verify its digest.')
+    parser.add_argument('--sha256', required=True, help='Expected SHA-256 digest of the file.')
+    parser.add_argument('--dest', required=True, help='Path to write the file to.')
+    parser.add_argument('urls', nargs='+', help='URLs to try, in order.')
+    options = parser.parse_args(args)
+
+    for url in options.urls:
+        try:
+            fetch(url, options.dest, options.sha256)
+            print(url)
+            return 0
+        except Exception as ex:
+            sys.stderr.write('Error fetching {}: {}\n'.format(url, ex))
+
+    return 1
+
+
+if __name__ == '__main__':
+    sys.exit(main(sys.argv[1:]))
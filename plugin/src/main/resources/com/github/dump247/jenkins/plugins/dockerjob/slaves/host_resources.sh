@@ -0,0 +1,19 @@
+#!/bin/bash
+
+#
+# Print the resources of the host, one value per line: number of cores, total memory (KB), one
+# minute load average, and free disk space (KB) where docker stores containers and images.
+#
+# See SlaveClient#getResources()
+#
+
+set -o errexit
+set -o nounset
+
+DOCKER_DIR=/var/lib/docker
+[ -d "${DOCKER_DIR}" ] || DOCKER_DIR=/
+
+nproc
+awk '/^MemTotal:/ {print $2}' /proc/meminfo
+cut -d ' ' -f 1 /proc/loadavg
+df -Pk "${DOCKER_DIR}" | awk 'NR == 2 {print $4}'
@@ -22,13 +22,12 @@ for key, value in cli.version().items():
 
 LAUNCH_DIR=/var/lib/jenkins-docker
 
-# Clean the launch directory
-rm -rf ${LAUNCH_DIR}/* >/dev/null
+# Files in the launch directory are kept between initializations. The master only uploads files
+# whose digest differs from the manifest (see HostFiles).
 mkdir -p ${LAUNCH_DIR}/slave >/dev/null
 
 # Discover IP address of docker0 interface
-# The specific port number value is irrelevant so long as the port is available
+# The port is picked for each launch and written to the launch run directory (see create_server)
 cat >${LAUNCH_DIR}/slave/properties.sh <<EOF
 CONNECT_ADDRESS=$(/sbin/ip addr show docker0 | grep -o 'inet [0-9]\+\.[0-9]\+\.[0-9]\+\.[0-9]\+' | grep -o [0-9].*)
-CONNECT_PORT=12112
 EOF
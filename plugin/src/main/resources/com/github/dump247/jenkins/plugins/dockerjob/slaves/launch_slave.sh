@@ -11,6 +11,13 @@ SLAVE_JAR_PATH="${DIR}/slave.jar"
 
 source "${DIR}/properties.sh"
 
+# Written per launch by the host agent or create_slave.py, with the transport and the port to
+# connect to
+RUN_DIR=/var/run/jenkins-docker
+TRANSPORT=connect
+CONNECT_PORT=
+[ -f "${RUN_DIR}/slave.conf" ] && source "${RUN_DIR}/slave.conf"
+
 if [[ -f ${SLAVE_JAR_PATH} ]]; then
     cp -f "${SLAVE_JAR_PATH}" /tmp/slave.jar
 else
@@ -30,4 +37,10 @@ if [[ -z ${JAVA_BIN} ]]; then
     exit 1
 fi
 
-"${JAVA_BIN}" -jar /tmp/slave.jar -connectTo "${CONNECT_ADDRESS}:${CONNECT_PORT}"
\ No newline at end of file
+if [[ ${TRANSPORT} == tunnel ]]; then
+    # Listen on an ephemeral port. The host agent reads the port from the run directory and the
+    # master connects to it directly through the SSH connection.
+    "${JAVA_BIN}" -jar /tmp/slave.jar -tcp "${RUN_DIR}/slave.port"
+else
+    "${JAVA_BIN}" -jar /tmp/slave.jar -connectTo "${CONNECT_ADDRESS}:${CONNECT_PORT}"
+fi
@@ -0,0 +1,27 @@
+#
+# List the docker images available locally on the host. Each image ID, tag, and digest is written to
+# standard output on its own line.
+#
+# See SlaveClient#listImages()
+#
+
+import docker
+
+
+def main():
+    docker_client = docker.Client(base_url='unix://var/run/docker.sock', version='1.15')
+
+    for image in docker_client.images():
+        print(image['Id'])
+
+        for tag in image.get('RepoTags') or []:
+            if tag != '<none>:<none>':
+                print(tag)
+
+        for digest in image.get('RepoDigests') or []:
+            if digest != '<none>@<none>':
+                print(digest)
+
+
+if __name__ == '__main__':
+    main()
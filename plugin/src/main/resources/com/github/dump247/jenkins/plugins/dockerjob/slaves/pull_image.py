@@ -0,0 +1,24 @@
+#
+# Pull docker images onto the host. Pulls are coordinated with launching slaves, so an image that
+# a slave launch is already pulling is not pulled twice.
+#
+# See SlaveClient#pullImage()
+#
+
+import sys
+import os
+
+import create_slave
+
+
+def main(args):
+    install_dir = os.path.dirname(os.path.abspath(__file__))
+    puller = create_slave.ImagePuller(create_slave.create_docker_client(), install_dir)
+
+    for image in args:
+        puller.ensure_image(image, log=lambda value: None)
+        print(image)
+
+
+if __name__ == '__main__':
+    main(sys.argv[1:])
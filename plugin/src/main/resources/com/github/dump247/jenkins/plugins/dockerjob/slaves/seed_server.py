@@ -0,0 +1,59 @@
+#
+# Serve slave.jar to other hosts over HTTP while the master is connected. The server stops when
+# standard input is closed, which happens when the master closes the SSH session.
+#
+# Once the server is listening, the port is written to standard output on one line, so the master
+# knows the bind succeeded. Port 0 picks any free port.
+#
+# See SlaveJarDistributor
+#
+
+import sys
+import os
+import threading
+import http.server
+import socketserver
+
+
+class Handler(http.server.SimpleHTTPRequestHandler):
+    def do_GET(self):
+        # Only the jar is served, not a directory listing of the host
+        if self.path != '/slave.jar':
+            self.send_error(404)
+            return
+
+        super().do_GET()
+
+    def log_message(self, format, *args):
+        pass
+
+
+class Server(socketserver.ThreadingMixIn, http.server.HTTPServer):
+    daemon_threads = True
+    allow_reuse_address = True
+
+
+def wait_for_stdin_close():
+    while sys.stdin.buffer.read(4096):
+        pass
+
+    os._exit(0)
+
+
+def main(args):
+    port = int(args[0])
+    os.chdir(os.path.join(os.path.dirname(os.path.abspath(__file__)), 'slave'))
+
+    server = Server(('', port), Handler)
+    sys.stdout.write('{}\n'.format(server.server_address[1]))
+    sys.stdout.flush()
+
+    th = threading.Thread(target=wait_for_stdin_close)
+    th.daemon = True
+    th.start()
+
+    server.serve_forever()
+
+
+if __name__ == '__main__':
+    main(sys.argv[1:])
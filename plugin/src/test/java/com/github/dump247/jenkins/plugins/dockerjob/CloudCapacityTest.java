@@ -0,0 +1,91 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import com.google.common.net.HostAndPort;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class CloudCapacityTest {
+    private static final HostAndPort HOST_A = HostAndPort.fromParts("host-a", 22);
+    private static final HostAndPort HOST_B = HostAndPort.fromParts("host-b", 22);
+
+    private final CloudCapacity _capacity = new CloudCapacity();
+
+    @Test
+    public void countsSlavesUntilTerminated() {
+        _capacity.slaveCreated();
+        _capacity.slaveCreated();
+        _capacity.slaveTerminated();
+
+        assertEquals(1, _capacity.getSlaveCount());
+    }
+
+    @Test
+    public void reserveStopsAtLimit() {
+        assertNotNull(_capacity.tryReserve(HOST_A, 2));
+        assertNotNull(_capacity.tryReserve(HOST_A, 2));
+        assertNull(_capacity.tryReserve(HOST_A, 2));
+        assertNotNull(_capacity.tryReserve(HOST_B, 2));
+
+        assertEquals(2, _capacity.getHostSlots(HOST_A));
+        assertEquals(1, _capacity.getHostSlots(HOST_B));
+        assertEquals(2, (int) _capacity.getHostSlotCounts().get(HOST_A));
+    }
+
+    @Test
+    public void unknownHostHasNoSlots() {
+        assertEquals(0, _capacity.getHostSlots(HOST_A));
+        assertNull(_capacity.tryReserve(HOST_A, 0));
+    }
+
+    @Test
+    public void concurrentReservesNeverExceedLimit() throws Exception {
+        final int limit = 50;
+        final int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Integer>> results = newArrayList();
+
+        try {
+            for (int t = 0; t < threads; t++) {
+                results.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        start.await();
+                        int reserved = 0;
+
+                        for (int i = 0; i < limit; i++) {
+                            if (_capacity.tryReserve(HOST_A, limit) != null) {
+                                reserved += 1;
+                            }
+                        }
+
+                        return reserved;
+                    }
+                }));
+            }
+
+            start.countDown();
+            int total = 0;
+
+            for (Future<Integer> result : results) {
+                total += result.get();
+            }
+
+            assertEquals(limit, total);
+            assertEquals(limit, _capacity.getHostSlots(HOST_A));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
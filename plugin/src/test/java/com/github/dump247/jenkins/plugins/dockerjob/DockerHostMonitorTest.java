@@ -0,0 +1,298 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import com.cloudbees.plugins.credentials.common.StandardUsernameCredentials;
+import com.github.dump247.jenkins.plugins.dockerjob.slaves.HostResources;
+import com.github.dump247.jenkins.plugins.dockerjob.slaves.SlaveClient;
+import com.github.dump247.jenkins.plugins.dockerjob.slaves.SlaveJarDistributor;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.net.HostAndPort;
+import com.google.inject.Provider;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.net.URL;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DockerHostMonitorTest {
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private final Map<HostAndPort, FakeClient> _clients = new ConcurrentHashMap<HostAndPort, FakeClient>();
+    private StubProvider _provider;
+    private DockerJobCloud _cloud;
+    private DockerHostMonitor _monitor;
+
+    @After
+    public void retireMonitor() {
+        if (_cloud != null) {
+            j.jenkins.clouds.remove(_cloud);
+            _monitor.refresh();
+        }
+    }
+
+    @Test
+    public void concurrentProbesPublishEveryHost() throws Exception {
+        List<String> hosts = newArrayList();
+
+        for (int i = 0; i < 10; i++) {
+            hosts.add("host-" + i);
+        }
+
+        DockerHostMonitor monitor = monitor(60, hosts.toArray(new String[hosts.size()]));
+        monitor.refresh();
+
+        for (String host : hosts) {
+            monitor.probe(host(host));
+        }
+
+        awaitSuccessfulHosts(monitor, hosts.size());
+
+        for (String host : hosts) {
+            HostState state = monitor.getSnapshot().getHost(host(host));
+            assertSame(_clients.get(host(host)), state.client);
+            assertEquals(4, state.slotLimit);
+        }
+    }
+
+    @Test
+    public void hostsRemovedFromProviderAreDropped() throws Exception {
+        DockerHostMonitor monitor = monitor(60, "idle", "busy");
+        monitor.refresh();
+        monitor.probe(host("idle"));
+        monitor.probe(host("busy"));
+        awaitSuccessfulHosts(monitor, 2);
+
+        FakeClient busy = _clients.get(host("busy"));
+        busy.active = true;
+        _provider.hosts = ImmutableList.of();
+        monitor.refresh();
+
+        assertEquals(0, monitor.getHosts().size());
+        assertTrue(_clients.get(host("idle")).closed);
+        assertFalse(busy.closed);
+
+        busy.active = false;
+        DockerHostMonitor.closeIdleClients();
+        assertTrue(busy.closed);
+    }
+
+    @Test
+    public void stoppedMonitorStartsOnNextUse() throws Exception {
+        DockerHostMonitor monitor = monitor(60, "host");
+        assertFalse(monitor.isRunning());
+
+        monitor.getHosts();
+        assertTrue(monitor.isRunning());
+        awaitSuccessfulHosts(monitor, 1);
+
+        monitor.stop();
+        assertFalse(monitor.isRunning());
+
+        // The snapshot is kept while stopped
+        assertEquals(1, monitor.getHosts().size());
+        assertTrue(monitor.isRunning());
+    }
+
+    @Test
+    public void monitorOfRemovedCloudClosesHostsAndStaysStopped() throws Exception {
+        DockerHostMonitor monitor = monitor(60, "host");
+        monitor.getHosts();
+        awaitSuccessfulHosts(monitor, 1);
+
+        j.jenkins.clouds.remove(_cloud);
+        monitor.refresh();
+
+        assertFalse(monitor.isRunning());
+        assertTrue(_clients.get(host("host")).closed);
+        assertEquals(0, monitor.getHosts().size());
+        assertFalse(monitor.isRunning());
+    }
+
+    @Test
+    public void timedOutProbeKeepsClientWithActiveSlaves() throws Exception {
+        DockerHostMonitor monitor = monitor(1, "host");
+        monitor.refresh();
+        monitor.probe(host("host"));
+        awaitSuccessfulHosts(monitor, 1);
+
+        FakeClient client = _clients.get(host("host"));
+        client.active = true;
+        client.block = new CountDownLatch(1);
+        monitor.probe(host("host"));
+
+        try {
+            awaitStatus(monitor, host("host"), HostState.Status.UNRESPONSIVE);
+            assertSame(client, monitor.getSnapshot().getHost(host("host")).client);
+            assertFalse(client.closed);
+        } finally {
+            client.block.countDown();
+        }
+
+        // The late probe result does not close the kept client either
+        Thread.sleep(200);
+        assertFalse(client.closed);
+        client.active = false;
+    }
+
+    @Test
+    public void idleClientIsClosedRightAway() {
+        FakeClient client = new FakeClient("idle");
+
+        DockerHostMonitor.closeWhenIdle(client);
+
+        assertTrue(client.closed);
+    }
+
+    @Test
+    public void busyClientIsClosedOnceItsSlavesAreGone() {
+        FakeClient client = new FakeClient("busy");
+        client.active = true;
+
+        DockerHostMonitor.closeWhenIdle(client);
+        DockerHostMonitor.closeIdleClients();
+        assertFalse(client.closed);
+
+        client.active = false;
+        DockerHostMonitor.closeIdleClients();
+        assertTrue(client.closed);
+
+        // Closed only once
+        DockerHostMonitor.closeIdleClients();
+        assertEquals(1, client.closeCount);
+    }
+
+    private DockerHostMonitor monitor(int probeTimeoutSeconds, String... hosts) {
+        _provider = new StubProvider();
+        _provider.hosts = hosts(hosts);
+        _cloud = new DockerJobCloud("docker", _provider, 22, "", 4, 0, 0, 0, 0, 10, probeTimeoutSeconds,
+                "", "", "", "", false, false, false, null);
+        j.jenkins.clouds.add(_cloud);
+
+        _monitor = _cloud.getHostMonitor();
+        _monitor.setClientFactory(new DockerHostMonitor.ClientFactory() {
+            @Override
+            public SlaveClient create(HostAndPort host) {
+                FakeClient client = new FakeClient(host);
+                _clients.put(host, client);
+                return client;
+            }
+        });
+
+        return _monitor;
+    }
+
+    private static HostAndPort host(String name) {
+        return HostAndPort.fromParts(name, 22);
+    }
+
+    private static List<HostAndPort> hosts(String... names) {
+        List<HostAndPort> hosts = newArrayList();
+
+        for (String name : names) {
+            hosts.add(host(name));
+        }
+
+        return hosts;
+    }
+
+    private static void awaitSuccessfulHosts(DockerHostMonitor monitor, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+
+        while (monitor.getSnapshot().getSuccessfulHostCount() < count) {
+            assertTrue("Timed out waiting for hosts", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static void awaitStatus(DockerHostMonitor monitor, HostAndPort host, HostState.Status status) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+
+        while (monitor.getSnapshot().getHost(host).status != status) {
+            assertTrue("Timed out waiting for host status " + status, System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    static final class StubProvider extends DockerHostProvider {
+        volatile List<HostAndPort> hosts = ImmutableList.of();
+
+        @Override
+        public Collection<HostAndPort> listHosts() {
+            return hosts;
+        }
+    }
+
+    static class FakeClient extends SlaveClient {
+        volatile boolean active;
+        volatile boolean closed;
+        volatile int closeCount;
+
+        /**
+         * Holds reading the host resources until counted down, if set.
+         */
+        volatile CountDownLatch block;
+
+        FakeClient(String host) {
+            this(HostAndPort.fromParts(host, 22));
+        }
+
+        FakeClient(HostAndPort host) {
+            super(host, new Provider<StandardUsernameCredentials>() {
+                @Override
+                public StandardUsernameCredentials get() {
+                    return null;
+                }
+            });
+        }
+
+        @Override
+        public String initialize(URL slaveJarUrl, String slaveInitScript, String slaveJarMasterUrl, SlaveJarDistributor distributor) {
+            return "Fake host";
+        }
+
+        @Override
+        public HostResources getResources() {
+            CountDownLatch latch = block;
+
+            if (latch != null) {
+                try {
+                    latch.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            return new HostResources(8, 16384, 0.5, 100000);
+        }
+
+        @Override
+        public Set<String> listImages() {
+            return ImmutableSet.of();
+        }
+
+        @Override
+        public boolean hasActiveSlaves() {
+            return active;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            closeCount += 1;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import hudson.model.AbstractProject;
+import hudson.model.Label;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DockerJobProvisionerTest {
+    /**
+     * Holds submitted requests until the test runs them.
+     */
+    private final List<Runnable> _submitted = new CopyOnWriteArrayList<Runnable>();
+    private final AtomicInteger _provisionCalls = new AtomicInteger();
+    private volatile boolean _supported = true;
+
+    private final DockerJobProvisioner _provisioner = new DockerJobProvisioner(new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            _submitted.add(command);
+        }
+    }) {
+        @Override
+        boolean isSupported(Label label) {
+            return _supported;
+        }
+
+        @Override
+        boolean provisionJob(String jobName, AbstractProject job, Label label) {
+            _provisionCalls.incrementAndGet();
+            return false;
+        }
+    };
+
+    @Test
+    public void repeatedRequestsForAJobAreMerged() {
+        assertTrue(_provisioner.provision("job-a", null, null));
+        assertTrue(_provisioner.provision("job-a", null, null));
+        assertTrue(_provisioner.provision("job-b", null, null));
+
+        assertEquals(2, _submitted.size());
+    }
+
+    @Test
+    public void concurrentRequestsForAJobSubmitOnce() throws Exception {
+        int threads = 16;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Boolean>> results = newArrayList();
+
+        try {
+            for (int i = 0; i < threads; i++) {
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        start.await();
+                        return _provisioner.provision("job-a", null, null);
+                    }
+                }));
+            }
+
+            start.countDown();
+
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(1, _submitted.size());
+    }
+
+    @Test
+    public void finishedRequestAllowsANewOne() {
+        _provisioner.provision("job-a", null, null);
+        _submitted.remove(0).run();
+
+        assertEquals(1, _provisionCalls.get());
+
+        _provisioner.provision("job-a", null, null);
+
+        assertEquals(1, _submitted.size());
+    }
+
+    @Test
+    public void unsupportedJobIsNotSubmitted() {
+        _supported = false;
+
+        assertFalse(_provisioner.provision("job-a", null, null));
+        assertEquals(0, _submitted.size());
+    }
+}
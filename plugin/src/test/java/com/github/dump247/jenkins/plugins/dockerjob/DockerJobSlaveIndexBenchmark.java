@@ -0,0 +1,93 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import com.google.common.collect.ImmutableList;
+import hudson.model.Node;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.util.List;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static java.lang.String.format;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Time for one queue maintenance pass to find the slave of every queued job, with 100 to 5,000
+ * docker job slaves, using {@link DockerJobSlaveIndex} and using a walk of the node list (how
+ * {@link DockerJobLoadBalancer#map} found slaves before the index).
+ * <p/>
+ * The slave lookup is the only part of map that grows with the number of nodes. Not run by the
+ * normal build; run with {@code mvn test -Dtest=DockerJobSlaveIndexBenchmark}.
+ */
+public class DockerJobSlaveIndexBenchmark {
+    private static final int[] NODE_COUNTS = {100, 500, 1000, 2000, 5000};
+    private static final int ROUNDS = 5;
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void mapLookup() throws Exception {
+        System.out.println("nodes  index-pass-ms  index-lookup-us  scan-pass-ms  scan-lookup-us");
+
+        for (int count : NODE_COUNTS) {
+            DockerJobSlaveIndex index = new DockerJobSlaveIndex();
+            List<Node> nodes = newArrayList();
+            List<String> jobs = newArrayList();
+
+            for (int i = 0; i < count; i++) {
+                DockerJobSlave slave = DockerJobSlaveIndexTest.slave("node-" + i, "job-" + i);
+                index.add(slave);
+                nodes.add(slave);
+                jobs.add("job-" + i);
+            }
+
+            nodes = ImmutableList.copyOf(nodes);
+
+            // Warm up, then keep the best round
+            long indexNanos = Long.MAX_VALUE;
+            long scanNanos = Long.MAX_VALUE;
+
+            for (int round = 0; round < ROUNDS + 2; round++) {
+                long start = System.nanoTime();
+
+                for (String job : jobs) {
+                    assertNotNull(index.find(job));
+                }
+
+                long middle = System.nanoTime();
+
+                for (String job : jobs) {
+                    assertNotNull(scan(nodes, job));
+                }
+
+                long end = System.nanoTime();
+
+                if (round >= 2) {
+                    indexNanos = Math.min(indexNanos, middle - start);
+                    scanNanos = Math.min(scanNanos, end - middle);
+                }
+            }
+
+            System.out.println(format("%5d  %13.3f  %15.3f  %12.3f  %14.3f",
+                    count,
+                    indexNanos / 1e6, indexNanos / 1e3 / count,
+                    scanNanos / 1e6, scanNanos / 1e3 / count));
+        }
+    }
+
+    private static DockerJobSlave scan(List<Node> nodes, String jobName) {
+        for (Node node : nodes) {
+            if (node instanceof DockerJobSlave) {
+                DockerJobSlave slave = (DockerJobSlave) node;
+
+                if (!slave.isMapped() && jobName.equals(slave.getJobName())) {
+                    return slave;
+                }
+            }
+        }
+
+        return null;
+    }
+}
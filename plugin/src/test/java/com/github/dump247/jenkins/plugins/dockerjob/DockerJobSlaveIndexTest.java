@@ -0,0 +1,161 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import com.github.dump247.jenkins.plugins.dockerjob.slaves.SlaveOptions;
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableSet;
+import hudson.model.labels.LabelAtom;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class DockerJobSlaveIndexTest {
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private final DockerJobSlaveIndex _index = new DockerJobSlaveIndex();
+
+    static DockerJobSlave slave(String nodeName, String jobName) throws Exception {
+        return new DockerJobSlave(nodeName, "", jobName, "/", ImmutableSet.<LabelAtom>of(),
+                new DockerJobComputerLauncher("cloud", new SlaveOptions(nodeName, "image"), null));
+    }
+
+    @Test
+    public void findReturnsSlaveForJob() throws Exception {
+        DockerJobSlave a = slave("node-a", "job-a");
+        DockerJobSlave b = slave("node-b", "job-b");
+
+        _index.add(a);
+        _index.add(b);
+
+        assertSame(a, _index.find("job-a"));
+        assertSame(b, _index.find("job-b"));
+        assertNull(_index.find("job-c"));
+    }
+
+    @Test
+    public void addIsIdempotent() throws Exception {
+        DockerJobSlave a = slave("node-a", "job-a");
+
+        _index.add(a);
+        _index.add(a);
+
+        assertEquals(1, _index.size());
+    }
+
+    @Test
+    public void removeDropsOnlyThatSlave() throws Exception {
+        DockerJobSlave a1 = slave("node-a1", "job-a");
+        DockerJobSlave a2 = slave("node-a2", "job-a");
+
+        _index.add(a1);
+        _index.add(a2);
+        _index.remove(a1);
+
+        assertSame(a2, _index.find("job-a"));
+        assertEquals(1, _index.size());
+
+        _index.remove(a2);
+        _index.remove(a2);
+
+        assertNull(_index.find("job-a"));
+        assertEquals(0, _index.size());
+    }
+
+    @Test
+    public void concurrentAddAndRemoveKeepEverySlave() throws Exception {
+        final int threads = 8;
+        final int slavesPerThread = 200;
+        final List<DockerJobSlave> kept = newArrayList();
+        final List<List<DockerJobSlave>> work = newArrayList();
+
+        // Every thread adds to the same few jobs, so the CAS loops contend on each list
+        for (int t = 0; t < threads; t++) {
+            List<DockerJobSlave> slaves = newArrayList();
+
+            for (int i = 0; i < slavesPerThread; i++) {
+                DockerJobSlave slave = slave("node-" + t + "-" + i, "job-" + (i % 4));
+                slaves.add(slave);
+
+                if (i % 2 == 0) {
+                    kept.add(slave);
+                }
+            }
+
+            work.add(slaves);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> results = newArrayList();
+
+        try {
+            for (final List<DockerJobSlave> slaves : work) {
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        start.await();
+
+                        for (DockerJobSlave slave : slaves) {
+                            _index.add(slave);
+                        }
+
+                        for (int i = 1; i < slaves.size(); i += 2) {
+                            _index.remove(slaves.get(i));
+                        }
+
+                        return null;
+                    }
+                }));
+            }
+
+            start.countDown();
+
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(kept.size(), _index.size());
+    }
+
+    @Test
+    public void retainAllDropsUnregisteredSlaves() throws Exception {
+        final DockerJobSlave registered = slave("node-a1", "job-a");
+        DockerJobSlave removed = slave("node-a2", "job-a");
+
+        _index.add(removed);
+        _index.add(registered);
+        _index.retainAll(new Predicate<DockerJobSlave>() {
+            @Override
+            public boolean apply(DockerJobSlave slave) {
+                return slave == registered;
+            }
+        });
+
+        assertSame(registered, _index.find("job-a"));
+        assertEquals(1, _index.size());
+    }
+
+    @Test
+    public void configurationChangeDropsSlavesMissingFromJenkins() throws Exception {
+        _index.add(slave("node-a", "job-a"));
+        _index.onConfigurationChange();
+
+        assertNull(_index.find("job-a"));
+        assertEquals(0, _index.size());
+    }
+}
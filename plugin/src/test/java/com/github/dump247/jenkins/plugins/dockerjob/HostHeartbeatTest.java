@@ -0,0 +1,158 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import com.cloudbees.plugins.credentials.common.StandardUsernameCredentials;
+import com.github.dump247.jenkins.plugins.dockerjob.slaves.SlaveClient;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.net.HostAndPort;
+import com.google.inject.Provider;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HostHeartbeatTest {
+    private static final HostAndPort HOST = HostAndPort.fromParts("host", 22);
+
+    private final List<String> _failures = new CopyOnWriteArrayList<String>();
+    private final HostHeartbeat _heartbeat = new HostHeartbeat(new HostHeartbeat.Listener() {
+        @Override
+        public void heartbeatFailed(HostState host, String message) {
+            _failures.add(message);
+        }
+    });
+
+    @Test
+    public void failsHostOnlyAfterConsecutiveMisses() throws Exception {
+        FakeClient client = new FakeClient();
+        List<HostState> hosts = ImmutableList.of(state(client));
+
+        client.fail = true;
+
+        for (int i = 1; i < HostHeartbeat.MISSES_TO_FAIL; i++) {
+            beatAndWait(hosts, client, i);
+        }
+
+        assertEquals(0, _failures.size());
+
+        // An answered heartbeat starts the count again
+        client.fail = false;
+        beatAndWait(hosts, client, HostHeartbeat.MISSES_TO_FAIL);
+        client.fail = true;
+
+        for (int i = 1; i < HostHeartbeat.MISSES_TO_FAIL; i++) {
+            beatAndWait(hosts, client, HostHeartbeat.MISSES_TO_FAIL + i);
+        }
+
+        assertEquals(0, _failures.size());
+
+        beatAndWait(hosts, client, HostHeartbeat.MISSES_TO_FAIL * 2);
+
+        for (int i = 0; i < 500 && _failures.isEmpty(); i++) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(1, _failures.size());
+        assertEquals(HostHeartbeat.MISSES_TO_FAIL, _heartbeat.getStats().get(HOST).getConsecutiveFailures());
+    }
+
+    @Test
+    public void hostWithoutConnectionIsNotCounted() throws Exception {
+        FakeClient client = new FakeClient();
+        List<HostState> hosts = ImmutableList.of(state(client));
+
+        client.connected = false;
+
+        // Beat until the host was skipped more times than it takes to fail it
+        for (int sent = 0; sent <= HostHeartbeat.MISSES_TO_FAIL; ) {
+            _heartbeat.beat(hosts);
+
+            if (client.sent.tryAcquire(10, TimeUnit.MILLISECONDS)) {
+                sent += 1;
+            }
+        }
+
+        Thread.sleep(50);
+
+        assertEquals(0, _failures.size());
+        assertNull(_heartbeat.getStats().get(HOST));
+    }
+
+    @Test
+    public void timeoutCountsFromSend() throws Exception {
+        FakeClient client = new FakeClient();
+        client.block = new CountDownLatch(1);
+        List<HostState> hosts = ImmutableList.of(state(client));
+
+        _heartbeat.beat(hosts);
+        assertTrue(client.sent.tryAcquire(5, TimeUnit.SECONDS));
+        long sent = System.currentTimeMillis();
+
+        _heartbeat.beat(hosts, sent + HostHeartbeat.TIMEOUT_MS - 1000);
+        assertEquals(0, _heartbeat.getStats().get(HOST) == null ? 0 : _heartbeat.getStats().get(HOST).getFailures());
+
+        _heartbeat.beat(hosts, sent + HostHeartbeat.TIMEOUT_MS + 1000);
+        assertEquals(1, _heartbeat.getStats().get(HOST).getFailures());
+
+        client.block.countDown();
+    }
+
+    private void beatAndWait(List<HostState> hosts, FakeClient client, long count) throws Exception {
+        _heartbeat.beat(hosts);
+        assertTrue(client.sent.tryAcquire(5, TimeUnit.SECONDS));
+
+        for (int i = 0; i < 500 && (_heartbeat.getStats().get(HOST) == null || _heartbeat.getStats().get(HOST).getCount() < count); i++) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(count, _heartbeat.getStats().get(HOST).getCount());
+    }
+
+    private static HostState state(SlaveClient client) {
+        return new HostState(HOST, HostState.Status.SUCCESS, "", client, ImmutableSet.<String>of(), null, 1);
+    }
+
+    private static final class FakeClient extends SlaveClient {
+        final Semaphore sent = new Semaphore(0);
+        volatile boolean fail;
+        volatile boolean connected = true;
+        volatile CountDownLatch block;
+
+        FakeClient() {
+            super(HOST, new Provider<StandardUsernameCredentials>() {
+                @Override
+                public StandardUsernameCredentials get() {
+                    return null;
+                }
+            });
+        }
+
+        @Override
+        public Optional<Long> heartbeat() throws IOException {
+            sent.release();
+
+            if (block != null) {
+                try {
+                    block.await();
+                } catch (InterruptedException ex) {
+                    throw new IOException(ex);
+                }
+            }
+
+            if (fail) {
+                throw new IOException("no answer");
+            }
+
+            return connected ? Optional.of(1000000L) : Optional.<Long>absent();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import com.google.common.net.HostAndPort;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HostReservationTest {
+    private static final HostAndPort HOST = HostAndPort.fromParts("host-a", 22);
+
+    private final CloudCapacity _capacity = new CloudCapacity();
+
+    @Test
+    public void releaseFreesTheSlot() {
+        HostReservation reservation = _capacity.tryReserve(HOST, 1);
+
+        assertFalse(reservation.isReleased());
+        assertNull(_capacity.tryReserve(HOST, 1));
+
+        reservation.release();
+
+        assertTrue(reservation.isReleased());
+        assertEquals(0, _capacity.getHostSlots(HOST));
+        assertNotNull(_capacity.tryReserve(HOST, 1));
+    }
+
+    @Test
+    public void releaseTwiceFreesOneSlot() {
+        HostReservation first = _capacity.tryReserve(HOST, 2);
+        _capacity.tryReserve(HOST, 2);
+
+        first.release();
+        first.release();
+
+        assertEquals(1, _capacity.getHostSlots(HOST));
+    }
+
+    @Test
+    public void concurrentReleaseFreesOneSlot() throws Exception {
+        final HostReservation reservation = _capacity.tryReserve(HOST, 10);
+        _capacity.tryReserve(HOST, 10);
+
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> results = newArrayList();
+
+        try {
+            for (int i = 0; i < threads; i++) {
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        start.await();
+                        reservation.release();
+                        return null;
+                    }
+                }));
+            }
+
+            start.countDown();
+
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(1, _capacity.getHostSlots(HOST));
+    }
+}
@@ -0,0 +1,39 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import com.google.common.net.HostAndPort;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JobAffinityTest {
+    private static final HostAndPort HOST_A = HostAndPort.fromParts("host-a", 22);
+    private static final HostAndPort HOST_B = HostAndPort.fromParts("host-b", 22);
+
+    @Test
+    public void countsHitsAndMisses() {
+        JobAffinity affinity = new JobAffinity();
+
+        affinity.placed("job", HOST_A);
+        affinity.placed("job", HOST_A);
+        affinity.placed("job", HOST_B);
+
+        assertEquals(HOST_B, affinity.getHost("job"));
+        assertNull(affinity.getHost("other"));
+        assertEquals(1, affinity.getHitCount());
+        assertEquals(1, affinity.getMissCount());
+    }
+
+    @Test
+    public void remembersAtMostMaxJobs() {
+        JobAffinity affinity = new JobAffinity(100);
+
+        for (int i = 0; i < 1000; i++) {
+            affinity.placed("job-" + i, HOST_A);
+        }
+
+        assertTrue(affinity.size() <= 100);
+        assertEquals(HOST_A, affinity.getHost("job-999"));
+    }
+}
@@ -0,0 +1,68 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import hudson.model.Label;
+import hudson.model.labels.LabelAtom;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+public class LabeledImageIndexTest {
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private static LabeledDockerImage image(String name, String labels) {
+        return new LabeledDockerImage(name, labels, "", 0);
+    }
+
+    @Test
+    public void candidatesShareAnAtomWithTheLabel() throws Exception {
+        LabeledDockerImage java = image("java", "java jdk7");
+        LabeledDockerImage python = image("python", "python");
+        LabeledDockerImage jdk8 = image("jdk8", "java jdk8");
+        LabeledImageIndex index = new LabeledImageIndex(ImmutableList.of(java, python, jdk8));
+
+        assertEquals(ImmutableList.of(java, jdk8), index.getCandidates(Label.parseExpression("java")));
+        assertEquals(ImmutableList.of(java, python), index.getCandidates(Label.parseExpression("python || jdk7")));
+        assertEquals(ImmutableList.of(jdk8), index.getCandidates(Label.parseExpression("jdk8 && linux")));
+        assertEquals(ImmutableList.of(), index.getCandidates(Label.parseExpression("ruby")));
+    }
+
+    @Test
+    public void prunedImagesCanNotChangeTheMatch() throws Exception {
+        List<LabeledDockerImage> images = ImmutableList.of(
+                image("java", "java jdk7"),
+                image("python", "python"),
+                image("jdk8", "java jdk8"),
+                image("ruby", "ruby linux"));
+        LabeledImageIndex index = new LabeledImageIndex(images);
+        Set<LabelAtom> cloudLabels = ImmutableSet.of(LabelAtom.get("docker"));
+
+        for (String expression : ImmutableList.of("java", "python || jdk7", "jdk8 && java", "docker", "docker && ruby", "go")) {
+            Label label = Label.parseExpression(expression);
+            List<LabeledDockerImage> candidates = index.getCandidates(label);
+
+            for (LabeledDockerImage image : images) {
+                if (!candidates.contains(image)) {
+                    assertEquals(expression + " " + image.imageName,
+                            label.matches(cloudLabels),
+                            label.matches(Sets.union(image.getLabels(), cloudLabels)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void emptyIndexHasNoCandidates() throws Exception {
+        LabeledImageIndex index = new LabeledImageIndex(ImmutableList.<LabeledDockerImage>of());
+
+        assertEquals(ImmutableList.of(), index.getCandidates(Label.parseExpression("java")));
+    }
+}
@@ -0,0 +1,90 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import com.github.dump247.jenkins.plugins.dockerjob.slaves.LogSource;
+import com.google.common.base.Charsets;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LogPumpTest {
+    @Test
+    public void blockedOutputDoesNotStarveOtherStreams() throws Exception {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch unblock = new CountDownLatch(1);
+        OutputStream blocked = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] data, int offset, int length) throws IOException {
+                writing.countDown();
+
+                try {
+                    unblock.await();
+                } catch (InterruptedException ex) {
+                    throw new IOException(ex);
+                }
+            }
+        };
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        LogPump.Stream blockedStream = LogPump.start("blocked", new EndlessSource(), blocked);
+        LogPump.Stream stream = null;
+
+        try {
+            assertTrue(writing.await(5, TimeUnit.SECONDS));
+
+            stream = LogPump.start("other", new OnceSource("Pulling image\n"), output);
+
+            for (int i = 0; i < 500 && output.size() == 0; i++) {
+                Thread.sleep(10);
+            }
+
+            assertEquals("Pulling image\n", new String(output.toByteArray(), Charsets.UTF_8));
+        } finally {
+            unblock.countDown();
+            blockedStream.close();
+
+            if (stream != null) {
+                stream.close();
+            }
+        }
+    }
+
+    private static final class OnceSource implements LogSource {
+        private byte[] _data;
+
+        OnceSource(String data) {
+            _data = data.getBytes(Charsets.UTF_8);
+        }
+
+        @Override
+        public synchronized int read(byte[] buffer, int offset, int length) {
+            if (_data == null) {
+                return -1;
+            }
+
+            System.arraycopy(_data, 0, buffer, offset, _data.length);
+            int count = _data.length;
+            _data = null;
+            return count;
+        }
+    }
+
+    private static final class EndlessSource implements LogSource {
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            buffer[offset] = 'x';
+            return 1;
+        }
+    }
+}
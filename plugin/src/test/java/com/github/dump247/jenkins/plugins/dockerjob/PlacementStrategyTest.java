@@ -0,0 +1,75 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import com.github.dump247.jenkins.plugins.dockerjob.slaves.SlaveOptions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.net.HostAndPort;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Set;
+
+import static com.google.common.collect.Sets.newHashSet;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+public class PlacementStrategyTest {
+    private static final SlaveOptions OPTIONS = new SlaveOptions("slave", "image");
+
+    private final HostCapacity _full = host("full", 9, 10);
+    private final HostCapacity _half = host("half", 5, 10);
+    private final HostCapacity _empty = host("empty", 0, 10);
+    private final List<HostCapacity> _hosts = ImmutableList.of(_half, _full, _empty);
+
+    private static HostCapacity host(String name, int used, int max) {
+        HostState state = new HostState(HostAndPort.fromParts(name, 22), HostState.Status.SUCCESS, "",
+                null, ImmutableSet.<String>of(), null, max);
+        return new HostCapacity(state, used, max);
+    }
+
+    @Test
+    public void spreadPrefersMostRemainingSlots() {
+        assertEquals(ImmutableList.of(_empty, _half, _full), new SpreadPlacementStrategy().rankHosts(_hosts, OPTIONS));
+    }
+
+    @Test
+    public void binPackPrefersFewestRemainingSlots() {
+        assertEquals(ImmutableList.of(_full, _half, _empty), new BinPackPlacementStrategy().rankHosts(_hosts, OPTIONS));
+    }
+
+    @Test
+    public void randomOfTwoRanksEveryHost() {
+        RandomOfTwoPlacementStrategy strategy = new RandomOfTwoPlacementStrategy();
+
+        for (int i = 0; i < 100; i++) {
+            List<HostCapacity> ranked = strategy.rankHosts(_hosts, OPTIONS);
+
+            assertEquals(_hosts.size(), ranked.size());
+            assertEquals(newHashSet(_hosts), newHashSet(ranked));
+
+            // The better of the two random choices goes first
+            assertTrue(ranked.get(0).getRemainingSlots() >= ranked.get(1).getRemainingSlots());
+
+            // The host with the fewest remaining slots can only be picked second
+            assertNotSame(_full, ranked.get(0));
+        }
+    }
+
+    @Test
+    public void randomOfTwoSpreadsFirstChoice() {
+        RandomOfTwoPlacementStrategy strategy = new RandomOfTwoPlacementStrategy();
+        Set<HostCapacity> firstChoices = newHashSet();
+
+        for (int i = 0; i < 200; i++) {
+            firstChoices.add(strategy.rankHosts(_hosts, OPTIONS).get(0));
+        }
+
+        assertEquals(ImmutableSet.of(_empty, _half), firstChoices);
+    }
+
+    @Test
+    public void randomOfTwoWithOneHost() {
+        assertEquals(ImmutableList.of(_half), new RandomOfTwoPlacementStrategy().rankHosts(ImmutableList.of(_half), OPTIONS));
+    }
+}
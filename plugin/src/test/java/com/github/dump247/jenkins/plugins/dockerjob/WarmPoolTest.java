@@ -0,0 +1,130 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import com.github.dump247.jenkins.plugins.dockerjob.slaves.SlaveOptions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import hudson.model.Label;
+import hudson.model.labels.LabelAtom;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Sets.newHashSet;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class WarmPoolTest {
+    private static final Map<String, String> ENV = ImmutableMap.of("LANG", "C");
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private final WarmPool _pool = new WarmPool();
+    private final Set<LabelAtom> _labels = ImmutableSet.of(LabelAtom.get("docker"), LabelAtom.get("java"));
+    private final WarmPool.Key _key = new WarmPool.Key("java", ENV, _labels);
+
+    private PoolSlave add(String name) throws Exception {
+        PoolSlave slave = new PoolSlave(name, _labels);
+        _pool.add(_key, slave);
+        return slave;
+    }
+
+    @Test
+    public void claimTakesMatchingSlave() throws Exception {
+        PoolSlave slave = add("pool-1");
+
+        assertSame(slave, _pool.claim("job", Label.parseExpression("java"), "java", ENV));
+        assertEquals("job", slave.getJobName());
+        assertEquals(0, (int) _pool.getSlaveCounts().get("java"));
+        assertNull(_pool.claim("job", Label.parseExpression("java"), "java", ENV));
+    }
+
+    @Test
+    public void claimSkipsOfflineSlaves() throws Exception {
+        PoolSlave offline = add("pool-1");
+        offline._online = false;
+        PoolSlave online = add("pool-2");
+
+        assertSame(online, _pool.claim("job", null, "java", ENV));
+        assertNull(offline.getJobName());
+    }
+
+    @Test
+    public void claimRequiresSameImageEnvironmentAndLabels() throws Exception {
+        add("pool-1");
+
+        assertNull(_pool.claim("job", null, "python", ENV));
+        assertNull(_pool.claim("job", null, "java", ImmutableMap.<String, String>of()));
+        assertNull(_pool.claim("job", Label.parseExpression("python"), "java", ENV));
+        assertEquals(1, (int) _pool.getSlaveCounts().get("java"));
+    }
+
+    @Test
+    public void concurrentClaimsGetDistinctSlaves() throws Exception {
+        final int slaves = 5;
+        final int threads = 8;
+
+        for (int i = 0; i < slaves; i++) {
+            add("pool-" + i);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<DockerJobSlave>> results = newArrayList();
+
+        try {
+            for (int i = 0; i < threads; i++) {
+                final String jobName = "job-" + i;
+
+                results.add(executor.submit(new Callable<DockerJobSlave>() {
+                    @Override
+                    public DockerJobSlave call() throws Exception {
+                        start.await();
+                        return _pool.claim(jobName, null, "java", ENV);
+                    }
+                }));
+            }
+
+            start.countDown();
+            List<DockerJobSlave> claimed = newArrayList();
+
+            for (Future<DockerJobSlave> result : results) {
+                DockerJobSlave slave = result.get();
+
+                if (slave != null) {
+                    claimed.add(slave);
+                }
+            }
+
+            assertEquals(slaves, claimed.size());
+            assertEquals(slaves, newHashSet(claimed).size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static class PoolSlave extends DockerJobSlave {
+        private volatile boolean _online = true;
+
+        public PoolSlave(String name, Set<LabelAtom> labels) throws Exception {
+            super(name, "", null, "/", labels,
+                    new DockerJobComputerLauncher("cloud", new SlaveOptions(name, "java"), null));
+        }
+
+        @Override
+        public boolean isOnline() {
+            return _online;
+        }
+    }
+}
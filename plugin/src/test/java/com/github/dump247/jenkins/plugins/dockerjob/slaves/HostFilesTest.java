@@ -0,0 +1,168 @@
+package com.github.dump247.jenkins.plugins.dockerjob.slaves;
+
+import com.google.common.base.Charsets;
+import org.junit.Test;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HostFilesTest {
+    private static final String PATH = "/var/lib/jenkins-docker/agent.py";
+
+    @Test
+    public void unchangedFileIsNotUploaded() throws Exception {
+        MemoryStore store = new MemoryStore();
+        upload(store, HostFiles.string("v1"));
+
+        HostFiles files = HostFiles.open(store);
+        store.uploads.clear();
+
+        assertFalse(files.sync(HostFiles.string("v1"), PATH));
+        files.upload();
+        assertEquals(0, store.uploads.size());
+        assertEquals(0, files.getUploadCount());
+    }
+
+    @Test
+    public void changedFileIsUploaded() throws Exception {
+        MemoryStore store = new MemoryStore();
+        upload(store, HostFiles.string("v1"));
+
+        HostFiles files = HostFiles.open(store);
+        HostFiles.Content changed = HostFiles.string("v2");
+        assertTrue(files.sync(changed, PATH));
+        files.upload();
+        files.saveManifest();
+
+        assertArrayEquals(changed.data, store.files.get(PATH));
+        assertEquals(changed.digest, HostFiles.open(store).getManifest().get(PATH));
+    }
+
+    @Test
+    public void missingFileIsUploaded() throws Exception {
+        MemoryStore store = new MemoryStore();
+        HostFiles.Content content = HostFiles.string("v1");
+        upload(store, content);
+        store.files.remove(PATH);
+
+        HostFiles files = HostFiles.open(store);
+        assertTrue(files.sync(content, PATH));
+        files.upload();
+
+        assertArrayEquals(content.data, store.files.get(PATH));
+    }
+
+    @Test
+    public void failedUploadDropsManifestEntry() throws Exception {
+        MemoryStore store = new MemoryStore();
+        upload(store, HostFiles.string("v1"));
+
+        HostFiles files = HostFiles.open(store);
+        HostFiles.Content changed = HostFiles.string("v2");
+        files.sync(changed, PATH);
+        store.failWrites = true;
+
+        try {
+            files.upload();
+            fail("Expected IOException");
+        } catch (IOException ex) {
+            assertSame(MemoryStore.WRITE_FAILED, ex);
+        }
+
+        assertFalse(files.getManifest().containsKey(PATH));
+
+        // The next attempt uploads the file again
+        store.failWrites = false;
+        assertTrue(files.sync(changed, PATH));
+        files.upload();
+        files.saveManifest();
+
+        assertArrayEquals(changed.data, store.files.get(PATH));
+        assertEquals(changed.digest, HostFiles.open(store).getManifest().get(PATH));
+    }
+
+    @Test
+    public void manifestIsWrittenInSha256sumFormat() throws Exception {
+        MemoryStore store = new MemoryStore();
+        HostFiles.Content content = HostFiles.string("v1");
+        upload(store, content);
+
+        String manifest = new String(store.files.get(HostFiles.MANIFEST_PATH), Charsets.UTF_8);
+        assertEquals(content.digest + "  " + PATH + "\n", manifest);
+        assertFalse(store.files.containsKey(HostFiles.MANIFEST_PATH + ".tmp"));
+        assertFalse(store.files.containsKey(PATH + ".tmp"));
+    }
+
+    private static void upload(MemoryStore store, HostFiles.Content content) throws IOException {
+        HostFiles files = HostFiles.open(store);
+        files.sync(content, PATH);
+        files.upload();
+        files.saveManifest();
+    }
+
+    private static final class MemoryStore implements HostFiles.Store {
+        static final IOException WRITE_FAILED = new IOException("write failed");
+
+        final Map<String, byte[]> files = new ConcurrentHashMap<String, byte[]>();
+        final List<String> uploads = new CopyOnWriteArrayList<String>();
+        volatile boolean failWrites;
+
+        @Override
+        public byte[] read(String path) throws IOException {
+            byte[] data = files.get(path);
+
+            if (data == null) {
+                throw new FileNotFoundException(path);
+            }
+
+            return data;
+        }
+
+        @Override
+        public void writeAll(Map<String, byte[]> files) throws IOException {
+            if (failWrites) {
+                throw WRITE_FAILED;
+            }
+
+            uploads.addAll(files.keySet());
+            this.files.putAll(files);
+        }
+
+        @Override
+        public void write(String path, byte[] data) throws IOException {
+            files.put(path, data);
+        }
+
+        @Override
+        public void rename(String from, String to) throws IOException {
+            byte[] data = files.remove(from);
+
+            if (data == null) {
+                throw new FileNotFoundException(from);
+            }
+
+            files.put(to, data);
+        }
+
+        @Override
+        public boolean exists(String path) {
+            return files.containsKey(path);
+        }
+
+        @Override
+        public void delete(String path) throws IOException {
+            files.remove(path);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.github.dump247.jenkins.plugins.dockerjob.slaves;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Time to upload the slave files (a 600KB slave.jar and two small scripts) with 1 to 8 channels,
+ * over fake channels that take {@link #RTT_MS} for every {@link Sftp#MAX_WRITE_SIZE} write
+ * request, like {@link com.trilead.ssh2.SFTPv3Client} waiting for each acknowledgement.
+ * <p/>
+ * The numbers are synthetic. They measure how {@link Sftp#writeChunks} spreads the chunks over
+ * the channels against a modeled round trip only. No SSH connection, SFTPv3Client, encryption,
+ * channel window or server disk is involved, so they are not the throughput of a real host.
+ * <p/>
+ * Not run by the normal build; run with {@code mvn test -Dtest=SftpBenchmark}.
+ */
+public class SftpBenchmark {
+    private static final int RTT_MS = 20;
+    private static final int[] CHANNELS = {1, 2, 4, 8};
+
+    @Test
+    public void upload() throws Exception {
+        Map<String, byte[]> files = ImmutableMap.of(
+                "/slave.jar", new byte[600 * 1024],
+                "/init_host.sh", new byte[4 * 1024],
+                "/init_slave.sh", new byte[2 * 1024]);
+
+        System.out.println("Synthetic: fake channels, " + RTT_MS + "ms per write request");
+        System.out.println("channels  upload-ms");
+
+        for (int channels : CHANNELS) {
+            long start = System.nanoTime();
+            Sftp.writeChunks(files, channels, new Sftp.ChannelFactory() {
+                @Override
+                public Sftp.Channel open() throws IOException {
+                    return new Sftp.Channel() {
+                        @Override
+                        public void write(String path, long fileOffset, byte[] data, int offset, int length) throws IOException {
+                            for (int written = 0; written < length; written += Sftp.MAX_WRITE_SIZE) {
+                                try {
+                                    Thread.sleep(RTT_MS);
+                                } catch (InterruptedException ex) {
+                                    throw new IOException(ex);
+                                }
+                            }
+                        }
+
+                        @Override
+                        public void close() {
+                        }
+                    };
+                }
+            });
+
+            System.out.println(String.format("%8d  %9d", channels, (System.nanoTime() - start) / 1000000));
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.github.dump247.jenkins.plugins.dockerjob.slaves;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class SftpTest {
+    @Test
+    public void writeChunksWritesEveryRange() throws Exception {
+        byte[] jar = bytes(Sftp.CHUNK_SIZE * 3 + 100);
+        byte[] script = bytes(10);
+        FakeChannels channels = new FakeChannels(ImmutableMap.of("/slave.jar", jar.length, "/init.sh", script.length), -1);
+
+        Sftp.writeChunks(ImmutableMap.of("/slave.jar", jar, "/init.sh", script), 4, channels);
+
+        assertArrayEquals(jar, channels.files.get("/slave.jar"));
+        assertArrayEquals(script, channels.files.get("/init.sh"));
+        assertEquals(channels.opened.get(), channels.closed.get());
+    }
+
+    @Test
+    public void writeChunksWaitsForOtherChannelsOnFailure() throws Exception {
+        byte[] jar = bytes(Sftp.CHUNK_SIZE * 20);
+        FakeChannels channels = new FakeChannels(ImmutableMap.of("/slave.jar", jar.length), 2);
+
+        try {
+            Sftp.writeChunks(ImmutableMap.of("/slave.jar", jar), 4, channels);
+            fail("Expected IOException");
+        } catch (IOException ex) {
+            assertSame(FakeChannels.FAILURE, ex);
+        }
+
+        // Every channel finished and closed before the error was thrown
+        assertEquals(channels.opened.get(), channels.closed.get());
+        assertEquals(0, channels.active.get());
+    }
+
+    private static byte[] bytes(int length) {
+        byte[] data = new byte[length];
+
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) i;
+        }
+
+        return data;
+    }
+
+    private static final class FakeChannels implements Sftp.ChannelFactory {
+        static final IOException FAILURE = new IOException("write failed");
+
+        final Map<String, byte[]> files = new ConcurrentHashMap<String, byte[]>();
+        final AtomicInteger opened = new AtomicInteger();
+        final AtomicInteger closed = new AtomicInteger();
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger writes = new AtomicInteger();
+        final int _failAt;
+
+        FakeChannels(Map<String, Integer> sizes, int failAt) {
+            for (Map.Entry<String, Integer> size : sizes.entrySet()) {
+                files.put(size.getKey(), new byte[size.getValue()]);
+            }
+
+            _failAt = failAt;
+        }
+
+        @Override
+        public Sftp.Channel open() throws IOException {
+            opened.incrementAndGet();
+
+            return new Sftp.Channel() {
+                @Override
+                public void write(String path, long fileOffset, byte[] data, int offset, int length) throws IOException {
+                    active.incrementAndGet();
+
+                    try {
+                        if (writes.incrementAndGet() == _failAt) {
+                            throw FAILURE;
+                        }
+
+                        Thread.sleep(5);
+                        System.arraycopy(data, offset, files.get(path), (int) fileOffset, length);
+                    } catch (InterruptedException ex) {
+                        throw new IOException(ex);
+                    } finally {
+                        active.decrementAndGet();
+                    }
+                }
+
+                @Override
+                public void close() {
+                    closed.incrementAndGet();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.github.dump247.jenkins.plugins.dockerjob.slaves;
+
+import com.google.common.net.HostAndPort;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class SlaveJarDistributorTest {
+    private static final HostAndPort SEED = HostAndPort.fromParts("10.0.0.1", 22);
+    private static final HostAndPort HOST = HostAndPort.fromParts("10.0.0.2", 22);
+
+    @Test
+    public void seedUrlUsesReportedPort() {
+        SlaveJarDistributor distributor = new SlaveJarDistributor();
+
+        SlaveJarDistributor.Source seed = distributor.acquire(SEED, "abc", null);
+        assertEquals(SlaveJarDistributor.Source.Type.PUSH_SEED, seed.type);
+        distributor.release(seed, "abc", 40123);
+
+        SlaveJarDistributor.Source source = distributor.acquire(HOST, "abc", null);
+        assertEquals(SlaveJarDistributor.Source.Type.SEED, source.type);
+        assertEquals("http://10.0.0.1:40123/slave.jar", source.url);
+    }
+
+    @Test
+    public void seedThatFailedToListenIsNotUsed() {
+        SlaveJarDistributor distributor = new SlaveJarDistributor();
+
+        for (int i = 0; i < SlaveJarDistributor.SEED_COUNT; i++) {
+            distributor.release(distributor.acquire(HostAndPort.fromParts("10.0.1." + i, 22), "abc", null));
+        }
+
+        // No seed is serving the jar, so the next host becomes a seed instead of fetching
+        assertEquals(SlaveJarDistributor.Source.Type.PUSH_SEED, distributor.acquire(HOST, "abc", null).type);
+    }
+}
@@ -0,0 +1,265 @@
+package com.github.dump247.jenkins.plugins.dockerjob.slaves;
+
+import com.cloudbees.plugins.credentials.common.StandardUsernameCredentials;
+import com.google.common.net.HostAndPort;
+import com.google.inject.Provider;
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.ConnectionMonitor;
+import com.trilead.ssh2.Session;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SshClientTest {
+    @Test
+    public void sessionsArePackedOntoTheBusiestConnection() throws Exception {
+        FakeConnections connections = new FakeConnections(false);
+        SshClient client = client(3, connections);
+
+        SshClient.PooledConnection first = client.reserveConnection();
+        assertSame(first, client.reserveConnection());
+        assertSame(first, client.reserveConnection());
+
+        SshClient.PooledConnection second = client.reserveConnection();
+        assertNotSame(first, second);
+
+        // Both have room, the busier one gets the session
+        first.release();
+        assertSame(first, client.reserveConnection());
+        assertSame(second, client.reserveConnection());
+        assertEquals(2, connections.opened.size());
+        assertEquals(5, client.sessionCount());
+    }
+
+    @Test
+    public void spareConnectionIsWarmedWhenCapacityRunsLow() throws Exception {
+        FakeConnections connections = new FakeConnections(true);
+        SshClient client = client(4, connections);
+
+        client.reserveConnection();
+        client.reserveConnection();
+        assertEquals(1, connections.opened.size());
+
+        // One free session is less than half a connection
+        client.reserveConnection();
+        awaitWarmed(client, 1);
+
+        SshClient.PoolStats stats = client.getStats();
+        assertEquals(2, stats.connections);
+        assertEquals(1, stats.idleConnections);
+        assertEquals(1, stats.connectWaits);
+    }
+
+    @Test
+    public void idleConnectionsAreEvictedKeepingOneSpare() throws Exception {
+        FakeConnections connections = new FakeConnections(false);
+        SshClient client = client(1, connections);
+
+        SshClient.PooledConnection first = client.reserveConnection();
+        SshClient.PooledConnection second = client.reserveConnection();
+        SshClient.PooledConnection third = client.reserveConnection();
+        first.release();
+        second.release();
+        third.release();
+        long now = System.currentTimeMillis();
+
+        client.evictIdle(now);
+        assertEquals(3, client.getStats().connections);
+
+        client.evictIdle(now + SshClient.IDLE_TIMEOUT_MS + 1000);
+        assertEquals(1, client.getStats().connections);
+        assertEquals(2, client.getStats().connectionsEvicted);
+        assertEquals(2, connections.closedCount());
+    }
+
+    @Test
+    public void connectionWithSessionsIsNotEvicted() throws Exception {
+        FakeConnections connections = new FakeConnections(false);
+        SshClient client = client(1, connections);
+
+        SshClient.PooledConnection first = client.reserveConnection();
+        SshClient.PooledConnection second = client.reserveConnection();
+        client.reserveConnection();
+        first.release();
+        second.release();
+
+        client.evictIdle(System.currentTimeMillis() + SshClient.IDLE_TIMEOUT_MS + 1000);
+
+        SshClient.PoolStats stats = client.getStats();
+        assertEquals(2, stats.connections);
+        assertEquals(1, stats.idleConnections);
+        assertEquals(1, stats.sessions);
+    }
+
+    @Test
+    public void lostConnectionIsEvicted() throws Exception {
+        FakeConnections connections = new FakeConnections(false);
+        SshClient client = client(4, connections);
+
+        SshClient.PooledConnection first = client.reserveConnection();
+        connections.opened.get(0).lose();
+
+        assertEquals(0, client.getStats().connections);
+        assertTrue(connections.opened.get(0).closed);
+        assertNotSame(first, client.reserveConnection());
+    }
+
+    @Test
+    public void failedSessionOnIdleConnectionEvictsIt() throws Exception {
+        FakeConnections connections = new FakeConnections(false);
+        SshClient client = client(4, connections);
+
+        try {
+            client.createSession();
+            fail("Expected IOException");
+        } catch (IOException ex) {
+            assertSame(FakeConnection.NO_SESSIONS, ex);
+        }
+
+        assertEquals(0, client.getStats().connections);
+        assertTrue(connections.opened.get(0).closed);
+    }
+
+    @Test
+    public void refusedSessionLowersLimitUntilRetry() throws Exception {
+        FakeConnections connections = new FakeConnections(false);
+        SshClient client = client(4, connections);
+
+        client.reserveConnection();
+        client.reserveConnection();
+        client.reserveConnection();
+        connections.opened.get(0).openError = new IOException("Could not open channel (The server refused to open the channel (SSH_OPEN_ADMINISTRATIVELY_PROHIBITED, 'open failed'))");
+
+        // The refusal lowers the limit to 3, so the retry opens a second connection, which fails
+        try {
+            client.createSession();
+            fail("Expected IOException");
+        } catch (IOException ex) {
+            assertSame(FakeConnection.NO_SESSIONS, ex);
+        }
+
+        long now = System.currentTimeMillis();
+        assertEquals(2, connections.opened.size());
+        assertEquals(3, client.maxSessions(now));
+        assertEquals(4, client.maxSessions(now + SshClient.LIMIT_RETRY_MS));
+    }
+
+    @Test
+    public void otherSessionFailureKeepsLimitAndConnection() throws Exception {
+        FakeConnections connections = new FakeConnections(false);
+        SshClient client = client(4, connections);
+        IOException failure = new IOException("Connection reset");
+
+        client.reserveConnection();
+        connections.opened.get(0).openError = failure;
+
+        try {
+            client.createSession();
+            fail("Expected IOException");
+        } catch (IOException ex) {
+            assertSame(failure, ex);
+        }
+
+        SshClient.PoolStats stats = client.getStats();
+        assertEquals(4, stats.maxSessionsPerConnection);
+        assertEquals(1, stats.connections);
+        assertEquals(1, stats.sessions);
+        assertFalse(connections.opened.get(0).closed);
+    }
+
+    private static SshClient client(int maxSessions, FakeConnections connections) {
+        return new SshClient(HostAndPort.fromParts("fake", 22), new Provider<StandardUsernameCredentials>() {
+            @Override
+            public StandardUsernameCredentials get() {
+                return null;
+            }
+        }, maxSessions, connections);
+    }
+
+    private static void awaitWarmed(SshClient client, long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+
+        while (client.getStats().connectionsWarmed < count) {
+            assertTrue("Timed out waiting for a spare connection", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static final class FakeConnections implements SshClient.ConnectionFactory {
+        final List<FakeConnection> opened = new CopyOnWriteArrayList<FakeConnection>();
+        final boolean _warm;
+
+        /**
+         * @param warm whether background warm-up may open connections; without it the tests
+         *             control exactly which connections exist
+         */
+        FakeConnections(boolean warm) {
+            _warm = warm;
+        }
+
+        @Override
+        public Connection connect() throws IOException {
+            if (!_warm && Thread.currentThread().getName().startsWith("docker-job-ssh-warm-")) {
+                throw new IOException("Warm-up disabled");
+            }
+
+            FakeConnection connection = new FakeConnection();
+            opened.add(connection);
+            return connection;
+        }
+
+        int closedCount() {
+            int count = 0;
+
+            for (FakeConnection connection : opened) {
+                if (connection.closed) {
+                    count += 1;
+                }
+            }
+
+            return count;
+        }
+    }
+
+    private static final class FakeConnection extends Connection {
+        static final IOException NO_SESSIONS = new IOException("Fake connection has no sessions");
+
+        volatile IOException openError = NO_SESSIONS;
+        volatile boolean closed;
+        private final List<ConnectionMonitor> _monitors = new CopyOnWriteArrayList<ConnectionMonitor>();
+
+        FakeConnection() {
+            super("fake", 22);
+        }
+
+        @Override
+        public Session openSession() throws IOException {
+            throw openError;
+        }
+
+        @Override
+        public void addConnectionMonitor(ConnectionMonitor monitor) {
+            _monitors.add(monitor);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        void lose() {
+            for (ConnectionMonitor monitor : _monitors) {
+                monitor.connectionLost(new IOException("Connection lost"));
+            }
+        }
+    }
+}
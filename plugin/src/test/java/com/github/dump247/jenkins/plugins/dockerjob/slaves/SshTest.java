@@ -0,0 +1,113 @@
+package com.github.dump247.jenkins.plugins.dockerjob.slaves;
+
+import com.google.common.base.Charsets;
+import com.trilead.ssh2.ChannelCondition;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SshTest {
+    @Test
+    public void initHostScriptSlowerThanOneSecondSucceeds() throws Exception {
+        SlowCommand command = new SlowCommand(1500, "initialized\n");
+
+        String stdout = Ssh.checkSuccess(Ssh.readOutput(command, "init_host.sh", SlaveClient.INIT_HOST_TIMEOUT.getMillis()));
+
+        assertEquals("initialized\n", stdout);
+    }
+
+    @Test
+    public void noTimeoutWaitsForOutputToClose() throws Exception {
+        SlowCommand command = new SlowCommand(1500, "done\n");
+
+        Ssh.CommunicateResult result = Ssh.readOutput(command, "slow", 0);
+
+        assertEquals(0, result.getExitCode());
+        assertEquals("done\n", result.getStdout());
+    }
+
+    @Test
+    public void commandPastTimeoutFails() throws Exception {
+        SlowCommand command = new SlowCommand(1500, "done\n");
+
+        try {
+            Ssh.checkSuccess(Ssh.readOutput(command, "slow", 200));
+            fail("Expected RuntimeException");
+        } catch (RuntimeException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("Exit Code: -1000"));
+        }
+    }
+
+    /**
+     * Command that writes its output, closes it, and exits with 0 once {@code runMs} have passed.
+     */
+    private static final class SlowCommand implements Ssh.CommandSession {
+        private final long _finishAt;
+        private final ByteArrayInputStream _data;
+        private final InputStream _stdout;
+
+        SlowCommand(long runMs, String stdout) {
+            _finishAt = System.currentTimeMillis() + runMs;
+            _data = new ByteArrayInputStream(stdout.getBytes(Charsets.UTF_8));
+
+            _stdout = new InputStream() {
+                @Override
+                public int read() {
+                    return _data.read();
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) {
+                    return _data.read(buffer, offset, length);
+                }
+
+                @Override
+                public int available() {
+                    return isFinished() ? _data.available() : 0;
+                }
+            };
+        }
+
+        private boolean isFinished() {
+            return System.currentTimeMillis() >= _finishAt;
+        }
+
+        @Override
+        public InputStream getStdout() {
+            return _stdout;
+        }
+
+        @Override
+        public InputStream getStderr() {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        @Override
+        public int waitForCondition(int conditions, long timeoutMs) throws InterruptedException {
+            long remaining = _finishAt - System.currentTimeMillis();
+
+            if (timeoutMs > 0 && timeoutMs < remaining) {
+                TimeUnit.MILLISECONDS.sleep(timeoutMs);
+                return ChannelCondition.TIMEOUT;
+            }
+
+            if (remaining > 0) {
+                TimeUnit.MILLISECONDS.sleep(remaining);
+            }
+
+            int result = ChannelCondition.EOF | ChannelCondition.EXIT_STATUS;
+            return _data.available() > 0 ? result | ChannelCondition.STDOUT_DATA : result;
+        }
+
+        @Override
+        public Integer getExitStatus() {
+            return isFinished() ? 0 : null;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+#
+# Time for a burst of launches on one host to all have their slaves connected, with a port per
+# launch (create_slave.create_server) and with the single host-wide port used before, where each
+# launch retried the bind until the previous launch's slave had connected.
+#
+# Containers are replaced by threads that connect after BOOT_SECONDS, so this measures the
+# queueing on the port alone. Not run with the tests; run with:
+# python3 plugin/src/test/python/launch_benchmark.py
+#
+
+import errno
+import socket
+import threading
+import time
+
+import support  # noqa: F401
+import create_slave
+
+BOOT_SECONDS = 0.2
+BURSTS = [1, 5, 10, 20]
+SHARED_PORT = 12112
+
+
+def shared_port_server():
+    while True:
+        server = socket.socket(socket.AF_INET, socket.SOCK_STREAM)
+        server.setsockopt(socket.SOL_SOCKET, socket.SO_REUSEADDR, 1)
+
+        try:
+            server.bind(('127.0.0.1', SHARED_PORT))
+            server.listen(1)
+            return server
+        except OSError as ex:
+            if ex.errno != errno.EADDRINUSE:
+                raise
+
+            server.close()
+            time.sleep(0.25)
+
+
+def boot_slave(port):
+    time.sleep(BOOT_SECONDS)
+    socket.create_connection(('127.0.0.1', port)).close()
+
+
+def launch(create_server):
+    server = create_server()
+
+    try:
+        slave = threading.Thread(target=boot_slave, args=(server.getsockname()[1],))
+        slave.start()
+        accepted, _ = server.accept()
+        accepted.close()
+        slave.join()
+    finally:
+        server.close()
+
+
+def burst(count, create_server):
+    launches = [threading.Thread(target=launch, args=(create_server,)) for _ in range(count)]
+    start = time.time()
+
+    for th in launches:
+        th.start()
+
+    for th in launches:
+        th.join()
+
+    return time.time() - start
+
+
+def main():
+    print('launches  port-per-launch-ms  shared-port-ms')
+
+    for count in BURSTS:
+        per_launch = burst(count, lambda: create_slave.create_server('127.0.0.1'))
+        shared = burst(count, shared_port_server)
+        print('{:8d}  {:18.0f}  {:14.0f}'.format(count, per_launch * 1000, shared * 1000))
+
+
+if __name__ == '__main__':
+    main()
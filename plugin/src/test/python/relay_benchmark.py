@@ -0,0 +1,101 @@
+#
+# Throughput of slave channel data from the container to the master over loopback, sent directly
+# (the "tunnel" transport, where the master connects to the slave) and through agent.relay (the
+# "relay" transport, where the agent copies every byte between two sockets).
+#
+# Loopback leaves out the SSH hop both transports share, so this shows the cost of the relay copy
+# alone. Not run with the tests; run with: python3 plugin/src/test/python/relay_benchmark.py
+#
+
+import socket
+import threading
+import time
+
+import support  # noqa: F401
+import agent
+
+TOTAL_BYTES = 256 * 1024 * 1024
+CHUNK = b'x' * 65536
+ROUNDS = 3
+
+
+def listen():
+    server = socket.socket(socket.AF_INET, socket.SOCK_STREAM)
+    server.bind(('127.0.0.1', 0))
+    server.listen(1)
+    return server
+
+
+def connect(server):
+    client = socket.create_connection(server.getsockname())
+    accepted, _ = server.accept()
+    server.close()
+    return client, accepted
+
+
+def send_all(sock):
+    sent = 0
+
+    while sent < TOTAL_BYTES:
+        sock.sendall(CHUNK)
+        sent += len(CHUNK)
+
+    sock.shutdown(socket.SHUT_WR)
+
+
+def receive_all(sock):
+    received = 0
+
+    while True:
+        data = sock.recv(262144)
+
+        if not data:
+            return received
+
+        received += len(data)
+
+
+def transfer(slave, master):
+    sender = threading.Thread(target=send_all, args=(slave,))
+    start = time.time()
+    sender.start()
+    received = receive_all(master)
+    elapsed = time.time() - start
+    sender.join()
+    assert received == TOTAL_BYTES
+    return TOTAL_BYTES / elapsed / 1024 / 1024
+
+
+def direct():
+    slave, master = connect(listen())
+
+    try:
+        return transfer(slave, master)
+    finally:
+        slave.close()
+        master.close()
+
+
+def relayed():
+    slave, agent_slave = connect(listen())
+    agent_master, master = connect(listen())
+    relay = threading.Thread(target=agent.relay, args=(agent_master, agent_slave))
+    relay.daemon = True
+    relay.start()
+
+    try:
+        return transfer(slave, master)
+    finally:
+        slave.close()
+        master.close()
+        relay.join(5.0)
+
+
+def main():
+    print('transport  MB/s (best of {})'.format(ROUNDS))
+    print('tunnel     {:.0f}'.format(max(direct() for _ in range(ROUNDS))))
+    print('relay      {:.0f}'.format(max(relayed() for _ in range(ROUNDS))))
+
+
+if __name__ == '__main__':
+    main()
@@ -0,0 +1,24 @@
+#
+# Puts the host scripts on the path for the tests, with a stand-in for the docker module, which
+# the scripts only use against a real docker daemon.
+#
+# Run the tests with: python3 -m unittest discover -s plugin/src/test/python
+#
+
+import os
+import sys
+import types
+
+SCRIPTS_DIR = os.path.join(os.path.dirname(os.path.abspath(__file__)), '..', '..', 'main', 'resources',
+                           'com', 'github', 'dump247', 'jenkins', 'plugins', 'dockerjob', 'slaves')
+
+if 'docker' not in sys.modules:
+    docker = types.ModuleType('docker')
+    docker.Client = object
+    docker.errors = types.ModuleType('docker.errors')
+    docker.errors.APIError = type('APIError', (Exception,), {})
+    sys.modules['docker'] = docker
+    sys.modules['docker.errors'] = docker.errors
+
+if SCRIPTS_DIR not in sys.path:
+    sys.path.insert(0, SCRIPTS_DIR)
@@ -0,0 +1,30 @@
+import unittest
+
+import support  # noqa: F401
+import agent
+
+
+class ContainerAddressTest(unittest.TestCase):
+    def test_default_bridge(self):
+        info = {'NetworkSettings': {'IPAddress': '172.17.0.2', 'Networks': {}}}
+        self.assertEqual('172.17.0.2', agent.container_address(info))
+
+    def test_user_defined_network(self):
+        info = {'HostConfig': {'NetworkMode': 'builds'},
+                'NetworkSettings': {'IPAddress': '', 'Networks': {'builds': {'IPAddress': '10.1.0.5'}}}}
+        self.assertEqual('10.1.0.5', agent.container_address(info))
+
+    def test_host_network(self):
+        info = {'HostConfig': {'NetworkMode': 'host'}, 'NetworkSettings': {'IPAddress': '', 'Networks': {}}}
+        self.assertEqual('127.0.0.1', agent.container_address(info))
+
+    def test_no_address(self):
+        info = {'HostConfig': {'NetworkMode': 'none'},
+                'NetworkSettings': {'IPAddress': '', 'Networks': {'none': {'IPAddress': ''}}}}
+
+        with self.assertRaises(RuntimeError):
+            agent.container_address(info)
+
+
+if __name__ == '__main__':
+    unittest.main()
@@ -0,0 +1,49 @@
+import socket
+import threading
+import unittest
+
+import support  # noqa: F401
+import create_slave
+
+
+class CreateServerTest(unittest.TestCase):
+    LAUNCHES = 20
+
+    def test_concurrent_launches_get_distinct_ports(self):
+        servers = []
+        lock = threading.Lock()
+        ready = threading.Barrier(self.LAUNCHES)
+
+        def launch():
+            ready.wait()
+            server = create_slave.create_server('127.0.0.1')
+
+            with lock:
+                servers.append(server)
+
+        threads = [threading.Thread(target=launch) for _ in range(self.LAUNCHES)]
+
+        for th in threads:
+            th.start()
+
+        for th in threads:
+            th.join()
+
+        try:
+            ports = [server.getsockname()[1] for server in servers]
+            self.assertEqual(self.LAUNCHES, len(set(ports)))
+
+            # Every launch can be waiting for its slave at the same time
+            slaves = [socket.create_connection(('127.0.0.1', port)) for port in ports]
+
+            for server, slave in zip(servers, slaves):
+                accepted, _ = server.accept()
+                accepted.close()
+                slave.close()
+        finally:
+            for server in servers:
+                server.close()
+
+
+if __name__ == '__main__':
+    unittest.main()
@@ -0,0 +1,129 @@
+import json
+import os
+import shutil
+import tempfile
+import threading
+import time
+import unittest
+
+import support  # noqa: F401
+import create_slave
+
+
+class FakeDockerClient(object):
+    """
+    Stands in for docker.Client. Each pull waits for the release event, so a test can hold a pull
+    in progress.
+    """
+
+    def __init__(self, images=()):
+        self.images = set(images)
+        self.pulls = []
+        self.release = threading.Event()
+        self.release.set()
+        self._lock = threading.Lock()
+
+    def pull(self, name, stream=False):
+        with self._lock:
+            self.pulls.append(name)
+
+        self.release.wait(5)
+        self.images.add(name)
+        yield json.dumps({'status': 'Downloaded newer image for ' + name}).encode('utf-8')
+
+    def inspect_image(self, name):
+        if name not in self.images:
+            raise create_slave.docker.errors.APIError('No such image: ' + name)
+
+        return {'Id': name}
+
+
+class ImagePullerTest(unittest.TestCase):
+    IMAGE = 'example/builder:latest'
+
+    def setUp(self):
+        self.install_dir = tempfile.mkdtemp()
+
+    def tearDown(self):
+        shutil.rmtree(self.install_dir)
+
+    def test_concurrent_launches_pull_once(self):
+        client = FakeDockerClient()
+        puller = create_slave.ImagePuller(client, self.install_dir)
+        launches = 5
+        ready = threading.Barrier(launches)
+        client.release.clear()
+
+        def launch():
+            ready.wait()
+            puller.ensure_image(self.IMAGE, log=lambda value: None)
+
+        threads = [threading.Thread(target=launch) for _ in range(launches)]
+
+        for th in threads:
+            th.start()
+
+        # Every launch is waiting on the first pull before it completes
+        time.sleep(0.3)
+        client.release.set()
+
+        for th in threads:
+            th.join(5)
+
+        self.assertEqual([self.IMAGE], client.pulls)
+
+    def test_fresh_stamp_skips_pull(self):
+        client = FakeDockerClient(images=[self.IMAGE])
+        puller = create_slave.ImagePuller(client, self.install_dir, ttl=60)
+        self._touch_stamp(puller, time.time())
+
+        puller.ensure_image(self.IMAGE, log=lambda value: None)
+
+        self.assertEqual([], client.pulls)
+
+    def test_stale_stamp_refreshes_in_background(self):
+        client = FakeDockerClient(images=[self.IMAGE])
+        puller = create_slave.ImagePuller(client, self.install_dir, ttl=60)
+        stamp_file = self._touch_stamp(puller, time.time() - 120)
+        client.release.clear()
+
+        # Returns while the refresh pull is still blocked
+        start = time.time()
+        puller.ensure_image(self.IMAGE, log=lambda value: None)
+        self.assertLess(time.time() - start, 1.0)
+
+        client.release.set()
+        self._wait_for(lambda: time.time() - os.path.getmtime(stamp_file) < 60)
+        self.assertEqual([self.IMAGE], client.pulls)
+
+    def test_missing_image_is_pulled_despite_fresh_stamp(self):
+        client = FakeDockerClient()
+        puller = create_slave.ImagePuller(client, self.install_dir, ttl=60)
+        self._touch_stamp(puller, time.time() - 1)
+
+        puller.ensure_image(self.IMAGE, log=lambda value: None)
+
+        self.assertEqual([self.IMAGE], client.pulls)
+
+    def _touch_stamp(self, puller, mtime):
+        stamp_file, _ = puller._files(self.IMAGE)
+
+        with open(stamp_file, 'a'):
+            pass
+
+        os.utime(stamp_file, (mtime, mtime))
+        return stamp_file
+
+    @staticmethod
+    def _wait_for(condition, timeout=5.0):
+        deadline = time.time() + timeout
+
+        while not condition():
+            if time.time() > deadline:
+                raise AssertionError('Timed out waiting for condition')
+
+            time.sleep(0.01)
+
+
+if __name__ == '__main__':
+    unittest.main()